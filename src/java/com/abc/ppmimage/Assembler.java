@@ -1,18 +1,29 @@
 package com.abc.ppmimage;
 
-import com.abc.pp.fifo.deluxe_bounded.PPDeluxeBoundedFifo;
-import com.abc.thread.ThreadTools;
-
 public class Assembler {
-	private final PPDeluxeBoundedFifo<PipelineWork> input;
+	private final PipelineFifo<PipelineWork> input;
 	private final PpmImage[] output;
 	private final PpmImage.Row[] rows;
+	// the pixels of recycled bands, allocated with the first one
+	private int[] pixels;
+	private int columnCount;
 	private final int imageIndex;
 	private Thread thread;
 	private volatile boolean keepGoing;
+	private final PipelineMetrics metrics;
+	private final PipelineMetrics.StageRecorder recorder;
+
+	public Assembler(PipelineFifo<PipelineWork> input, PpmImage[] output, int imageIndex, int rowCount) {
+		this(input, output, imageIndex, rowCount, null);
+	}
+
+	// the end-to-end latency of each row is recorded here, where it reaches its image
+	public Assembler(PipelineFifo<PipelineWork> input, PpmImage[] output, int imageIndex, int rowCount,
+			PipelineMetrics metrics) {
 
-	public Assembler(PPDeluxeBoundedFifo<PipelineWork> input, PpmImage[] output, int imageIndex, int rowCount) {
 		this.input = input;
+		this.metrics = metrics;
+		recorder = metrics != null ? metrics.stage(getClass().getSimpleName()) : null;
 		this.output = output;
 		this.imageIndex = imageIndex;
 		rows = new PpmImage.Row[rowCount];
@@ -21,25 +32,37 @@ public class Assembler {
 		thread.start();
 	}
 
-	// takes a stream of rows and assembles them into an image
+	// takes a stream of row bands and assembles them into an image
 	private void runWork() {
 		try {
 			while (keepGoing) {
-				PPDeluxeBoundedFifo.RemoveSingleResult<PipelineWork> removeResult = input.remove();
-				switch (removeResult.getStatus()) {
-					case EMPTY_AND_NO_MORE_ADDS_ALLOWED:
-						return;
-					case SUCCESS:
-						PipelineWork work = removeResult.getItem();
-						rows[work.rowIndex] = work.row;
-						break;
+				long waitStartNanos = System.nanoTime();
+				PipelineWork work = input.removeOrNull();
+				if (work == null) return;
+				long startNanos = System.nanoTime();
+				if (work.isRecycled()) {
+					if (pixels == null) {
+						columnCount = work.columnCount;
+						pixels = new int[rows.length * columnCount];
+					}
+					work.copyPixelsTo(pixels);
+				} else {
+					System.arraycopy(work.rows, 0, rows, work.firstRowIndex, work.getRowCount());
+				}
+				int rowCount = work.getRowCount();
+				if (metrics != null) metrics.recordRowLatency(work);
+				if (work.isRecycled()) work.recycle();
+				if (recorder != null) {
+					long busyNanos = System.nanoTime() - startNanos;
+					recorder.record(rowCount, busyNanos, startNanos - waitStartNanos);
 				}
 			}
 		} catch (InterruptedException x) {
 			// ignore
 		} finally {
-			output[imageIndex] = new PpmImage(rows);
-			ThreadTools.outln(Thread.currentThread().getName() + " finished");
+			output[imageIndex] = pixels != null ? PpmImage.wrapIntBits(rows.length, columnCount, pixels) :
+				new PpmImage(rows);
+			ThreadLog.finished();
 		}
 	}
 
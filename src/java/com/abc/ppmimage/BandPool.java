@@ -0,0 +1,91 @@
+package com.abc.ppmimage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// recycled PipelineWork envelopes, each with its two band buffers, so that once the pool is warm a band costs no
+// allocation: the Producer takes an envelope and copies the band's pixels in, every stage writes from one buffer
+// into the other, and whoever copies the finished pixels out (Assembler, ImageCompletions) gives it back
+//
+// envelopes are kept by size class (buffer length rounded up to a power of two) in a few stripes, each behind its
+// own lock; a thread gives back into its own stripe and takes from its own first and then from the others, since
+// the thread taking (a producer) is never the one giving back
+class BandPool {
+	private static final int STRIPE_COUNT = 8;
+	// envelopes kept per stripe and size class, any more are left to the garbage collector
+	private static final int MAX_PER_STRIPE = 256;
+
+	private final Stripe[] stripes;
+	private final AtomicLong createdCount = new AtomicLong();
+
+	public BandPool() {
+		stripes = new Stripe[STRIPE_COUNT];
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	// only row-local stages on the DEDICATED_THREADS engine work on the band buffers directly
+	static void confirmUsable(PipelineStage[] pipeline, PipelineConfig config) {
+		if (config.getEngine() != PipelineConfig.Engine.DEDICATED_THREADS) {
+			throw new IllegalArgumentException("recycled buffers need the DEDICATED_THREADS engine");
+		}
+		for (PipelineStage stage : pipeline) {
+			if (!stage.isRowLocal()) {
+				throw new IllegalArgumentException("recycled buffers need row-local stages, " + stage + " isn't");
+			}
+		}
+	}
+
+	// an envelope for rowCount rows of columnCount pixels, its pixels are whatever the last user left there
+	public PipelineWork acquire(int firstRowIndex, int imageIndex, int imageRowCount, int rowCount, int columnCount) {
+		int sizeClass = getSizeClass(rowCount * columnCount);
+		int home = getStripeIndex();
+		PipelineWork work = null;
+		for (int i = 0; i < STRIPE_COUNT && work == null; i++) {
+			work = stripes[(home + i) & (STRIPE_COUNT - 1)].take(sizeClass);
+		}
+		if (work == null) {
+			work = new PipelineWork(this, 1 << sizeClass);
+			createdCount.incrementAndGet();
+		}
+		work.reset(firstRowIndex, imageIndex, imageRowCount, rowCount, columnCount);
+		return work;
+	}
+
+	public void release(PipelineWork work) {
+		stripes[getStripeIndex()].give(getSizeClass(work.getCapacity()), work);
+	}
+
+	// envelopes created so far, it stops growing once the pool is warm
+	public long getCreatedCount() {
+		return createdCount.get();
+	}
+
+	// the smallest power of two that holds pixelCount
+	private static int getSizeClass(int pixelCount) {
+		return 32 - Integer.numberOfLeadingZeros(Math.max(1, pixelCount) - 1);
+	}
+
+	@SuppressWarnings("deprecation")
+	private static int getStripeIndex() {
+		return (int) Thread.currentThread().getId() & (STRIPE_COUNT - 1);
+	}
+
+	// a stack per size class, guarded by the instance's monitor
+	private static final class Stripe {
+		private final PipelineWork[][] stacks = new PipelineWork[32][];
+		private final int[] sizes = new int[32];
+
+		synchronized PipelineWork take(int sizeClass) {
+			if (sizes[sizeClass] == 0) return null;
+			PipelineWork work = stacks[sizeClass][--sizes[sizeClass]];
+			stacks[sizeClass][sizes[sizeClass]] = null;
+			return work;
+		}
+
+		synchronized void give(int sizeClass, PipelineWork work) {
+			if (stacks[sizeClass] == null) stacks[sizeClass] = new PipelineWork[MAX_PER_STRIPE];
+			if (sizes[sizeClass] < MAX_PER_STRIPE) stacks[sizeClass][sizes[sizeClass]++] = work;
+		}
+	}
+}
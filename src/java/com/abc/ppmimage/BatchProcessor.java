@@ -0,0 +1,309 @@
+package com.abc.ppmimage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// runs every PPM file of a directory (or matching a glob) through the pipeline into an output directory, with
+// decoding, processing and encoding of different files overlapping:
+// - the calling thread reads each file's header, reserves the memory the file will need and hands the file to
+//   the I/O threads for decoding; it blocks while the window of files in flight or the memory ceiling is full
+// - a compute thread takes whatever has been decoded and runs it through executePipeline as one batch, so the
+//   pipeline's workers (PipelineConfig) are the compute budget
+// - the I/O threads write each result out in the format of its input and release the file's reservation
+public class BatchProcessor {
+	private static final Job END_OF_INPUT = new Job(null, null, null, 0);
+
+	private final PipelineStage[] pipeline;
+	private final PipelineConfig config;
+	private int ioThreadCount = 4;
+	private int maxFilesInFlight = 16;
+	private long memoryCeilingBytes = 512L * 1024 * 1024;
+
+	public BatchProcessor(PipelineStage[] pipeline, PipelineConfig config) {
+		this.pipeline = pipeline.clone();
+		this.config = config;
+	}
+
+	// threads reading and writing files, the compute threads are set up by the PipelineConfig
+	public BatchProcessor setIoThreadCount(int ioThreadCount) {
+		if (ioThreadCount < 1) throw new IllegalArgumentException("ioThreadCount must be at least 1");
+		this.ioThreadCount = ioThreadCount;
+		return this;
+	}
+
+	public BatchProcessor setMaxFilesInFlight(int maxFilesInFlight) {
+		if (maxFilesInFlight < 1) throw new IllegalArgumentException("maxFilesInFlight must be at least 1");
+		this.maxFilesInFlight = maxFilesInFlight;
+		return this;
+	}
+
+	// the pixels of the decoded and the processed images of all files in flight stay below this; a single file
+	// larger than the ceiling is still processed, alone
+	public BatchProcessor setMemoryCeilingBytes(long memoryCeilingBytes) {
+		if (memoryCeilingBytes < 1024) throw new IllegalArgumentException("memoryCeilingBytes must be at least 1024");
+		this.memoryCeilingBytes = memoryCeilingBytes;
+		return this;
+	}
+
+	// input is a directory (all of its *.ppm files) or a glob in the file name, like frames/shot-*.ppm
+	public Report run(String input, File outputDirectory) throws IOException, InterruptedException {
+		List<Path> inputs = listInputs(input);
+		if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+			throw new IOException("can't create output directory " + outputDirectory);
+		}
+
+		long startNanos = System.nanoTime();
+		int memoryPermits = (int) Math.min(Integer.MAX_VALUE, memoryCeilingBytes / 1024);
+		Semaphore memory = new Semaphore(memoryPermits);
+		Semaphore window = new Semaphore(maxFilesInFlight);
+		CountDownLatch allDone = new CountDownLatch(inputs.size());
+		Report report = new Report(inputs.size());
+		ExecutorService io = Executors.newFixedThreadPool(ioThreadCount);
+		BlockingQueue<Job> decoded = new LinkedBlockingQueue<>();
+		AtomicBoolean computeStopped = new AtomicBoolean();
+
+		Thread compute = new Thread(() -> runCompute(decoded, computeStopped, io, memory, window, allDone, report),
+			"BatchCompute");
+		compute.start();
+		try {
+			for (Path path : inputs) {
+				Job job;
+				try {
+					job = readHeader(path, new File(outputDirectory, path.getFileName().toString()), memoryPermits);
+				} catch (IOException x) {
+					report.fail(path, x);
+					allDone.countDown();
+					continue;
+				}
+				window.acquire();
+				memory.acquire(job.memoryPermits);
+				io.execute(() -> {
+					try {
+						job.image = PpmReader.read(job.input.toString());
+						report.bytesRead.addAndGet(job.input.toFile().length());
+						decoded.add(job);
+						// nobody takes it any more, whoever sees that first fails it
+						if (computeStopped.get()) failDecoded(decoded, memory, window, allDone, report);
+					} catch (IOException | RuntimeException | Error x) {
+						finish(job, x, memory, window, allDone, report);
+					}
+				});
+			}
+			allDone.await();
+		} finally {
+			decoded.add(END_OF_INPUT);
+			compute.join();
+			io.shutdown();
+		}
+
+		report.elapsedNanos = System.nanoTime() - startNanos;
+		return report;
+	}
+
+	// processes everything decoded so far together, while the I/O threads decode the next files; if the thread
+	// stops early, the files it holds and any decoded later fail, so run() doesn't wait for them forever
+	private void runCompute(BlockingQueue<Job> decoded, AtomicBoolean computeStopped, ExecutorService io,
+			Semaphore memory, Semaphore window, CountDownLatch allDone, Report report) {
+
+		ThreadLog.starting();
+		List<Job> batch = new ArrayList<>();
+		try {
+			while (true) {
+				batch.add(decoded.take());
+				decoded.drainTo(batch);
+				boolean endOfInput = batch.remove(END_OF_INPUT);
+				if (!batch.isEmpty()) processBatch(batch, io, memory, window, allDone, report);
+				if (endOfInput) return;
+			}
+		} catch (InterruptedException x) {
+			// ignore
+		} finally {
+			computeStopped.set(true);
+			for (Job job : batch) {
+				finish(job, new IllegalStateException("the compute thread stopped"), memory, window, allDone, report);
+			}
+			failDecoded(decoded, memory, window, allDone, report);
+			ThreadLog.finished();
+		}
+	}
+
+	// the decoded files no compute thread is going to take
+	private static void failDecoded(BlockingQueue<Job> decoded, Semaphore memory, Semaphore window,
+			CountDownLatch allDone, Report report) {
+
+		List<Job> left = new ArrayList<>();
+		decoded.drainTo(left);
+		for (Job job : left) {
+			if (job != END_OF_INPUT) {
+				finish(job, new IllegalStateException("the compute thread stopped"), memory, window, allDone, report);
+			}
+		}
+	}
+
+	// every job of the batch is finished or handed to the I/O threads once this returns normally, then the batch is
+	// empty; an exception leaves the jobs that weren't handed over in it
+	private void processBatch(List<Job> batch, ExecutorService io, Semaphore memory, Semaphore window,
+			CountDownLatch allDone, Report report) throws InterruptedException {
+
+		PpmImage[] images = new PpmImage[batch.size()];
+		for (int i = 0; i < images.length; i++) {
+			images[i] = batch.get(i).image;
+		}
+		PpmImage[] results;
+		try {
+			results = PpmImageDemo.executePipeline(images, pipeline, config);
+		} catch (RuntimeException | Error x) {
+			// an OutOfMemoryError on a batch too large for the heap fails its files, not the whole run
+			for (Job job : batch) {
+				finish(job, x, memory, window, allDone, report);
+			}
+			batch.clear();
+			return;
+		}
+		report.batchCount.incrementAndGet();
+
+		int handedOff = 0;
+		try {
+			for (int i = 0; i < results.length; i++) {
+				Job job = batch.get(i);
+				PpmImage result = results[i];
+				job.image = null; // the input can go as soon as the result exists
+				io.execute(() -> {
+					try {
+						result.writeToFilename(job.output.getPath(), job.format);
+						report.pixelCount.addAndGet((long) result.getRowCount() * result.getColumnCount());
+						finish(job, null, memory, window, allDone, report);
+					} catch (IOException | RuntimeException | Error x) {
+						finish(job, x, memory, window, allDone, report);
+					}
+				});
+				handedOff++;
+			}
+		} finally {
+			batch.subList(0, handedOff).clear();
+		}
+	}
+
+	private static void finish(Job job, Throwable failure, Semaphore memory, Semaphore window, CountDownLatch allDone,
+			Report report) {
+
+		if (failure != null) {
+			report.fail(job.input, failure);
+		} else {
+			report.succeeded.incrementAndGet();
+		}
+		job.image = null;
+		memory.release(job.memoryPermits);
+		window.release();
+		allDone.countDown();
+	}
+
+	// just the header, for the format and the size; the pixels are read by the I/O threads
+	private static Job readHeader(Path input, File output, int maxPermits) throws IOException {
+		try (PpmReader reader = new PpmReader(PpmReader.openChannel(input.toString()))) {
+			reader.readHeader();
+			// the decoded image and the processed one, 4 bytes per pixel each
+			long bytes = 8L * reader.getRowCount() * reader.getColumnCount();
+			int permits = (int) Math.min(maxPermits, Math.max(1, (bytes + 1023) / 1024));
+			return new Job(input, output, reader.getFormat(), permits);
+		}
+	}
+
+	static List<Path> listInputs(String input) throws IOException {
+		Path path = Paths.get(input);
+		Path directory;
+		PathMatcher matcher;
+		if (Files.isDirectory(path)) {
+			directory = path;
+			matcher = FileSystems.getDefault().getPathMatcher("glob:*.ppm");
+		} else {
+			directory = path.getParent() != null ? path.getParent() : Paths.get(".");
+			matcher = FileSystems.getDefault().getPathMatcher("glob:" + path.getFileName());
+		}
+
+		List<Path> inputs = new ArrayList<>();
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+			for (Path entry : entries) {
+				if (Files.isRegularFile(entry) && matcher.matches(entry.getFileName())) inputs.add(entry);
+			}
+		}
+		Collections.sort(inputs);
+		return inputs;
+	}
+
+	private static final class Job {
+		final Path input;
+		final File output;
+		final PpmImage.Format format;
+		final int memoryPermits;
+		// the decoded image until it has been processed, handed from thread to thread through the queue/executor
+		volatile PpmImage image;
+
+		Job(Path input, File output, PpmImage.Format format, int memoryPermits) {
+			this.input = input;
+			this.output = output;
+			this.format = format;
+			this.memoryPermits = memoryPermits;
+		}
+	}
+
+	public static final class Report {
+		public final int fileCount;
+		private final AtomicLong succeeded = new AtomicLong();
+		private final AtomicLong bytesRead = new AtomicLong();
+		private final AtomicLong pixelCount = new AtomicLong();
+		private final AtomicLong batchCount = new AtomicLong();
+		private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+		private volatile long elapsedNanos;
+
+		Report(int fileCount) {
+			this.fileCount = fileCount;
+		}
+
+		void fail(Path input, Throwable x) {
+			failures.add(input + ": " + x);
+		}
+
+		public long getSucceededCount() { return succeeded.get(); }
+		public long getBytesRead() { return bytesRead.get(); }
+		public long getPixelCount() { return pixelCount.get(); }
+		// how many executePipeline runs the files were spread over
+		public long getBatchCount() { return batchCount.get(); }
+		public double getElapsedSeconds() { return elapsedNanos / 1e9; }
+
+		public List<String> getFailures() {
+			synchronized (failures) {
+				return new ArrayList<>(failures);
+			}
+		}
+
+		public double getFilesPerSecond() {
+			return elapsedNanos > 0 ? getSucceededCount() / getElapsedSeconds() : 0.0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d of %d files in %.3fs: %.1f files/s, %.1f Mpixels/s, %.1f MB/s read, %d batches, " +
+				"%d failed", getSucceededCount(), fileCount, getElapsedSeconds(), getFilesPerSecond(),
+				getPixelCount() / 1e6 / Math.max(1e-9, getElapsedSeconds()),
+				getBytesRead() / 1e6 / Math.max(1e-9, getElapsedSeconds()), getBatchCount(), failures.size());
+		}
+	}
+}
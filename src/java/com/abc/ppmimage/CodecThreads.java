@@ -0,0 +1,33 @@
+package com.abc.ppmimage;
+
+import java.util.concurrent.*;
+
+/**
+ * The pool of daemon threads, one per processor, that {@link ParallelP3Decoder} and {@link ParallelPpmEncoder} use
+ * unless given an executor of their own; created the first time either needs it. Only the calling threads wait on
+ * the tasks, so decoding and encoding can share it.
+ */
+final class CodecThreads {
+    private static volatile ExecutorService sharedExecutor;
+
+    private CodecThreads() {
+    }
+
+    static ExecutorService getSharedExecutor() {
+        ExecutorService executor = sharedExecutor;
+        if (executor == null) {
+            synchronized (CodecThreads.class) {
+                executor = sharedExecutor;
+                if (executor == null) {
+                    executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+                        Thread thread = new Thread(runnable, "PpmCodec");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    sharedExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+}
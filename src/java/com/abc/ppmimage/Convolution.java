@@ -0,0 +1,207 @@
+package com.abc.ppmimage;
+
+// the 3x3 neighbourhood stages over packed pixels (see PpmImage.Pixel#asIntBits()), each color channel on its own,
+// with the pixels past the edges of the image taken to be copies of the edge pixels:
+// - BLUR: gaussian [1 2 1] x [1 2 1] / 16, rounded
+// - SHARPEN: 5 times the pixel minus its 4 direct neighbours, clamped to [0..255]
+// - EDGE_DETECT: sobel, |gx| + |gy| clamped to [0..255]
+// apply() is the fast version, blur and sobel as a vertical pass followed by a horizontal one, a block of columns
+// at a time down the whole band so the input rows of the block stay in the cache; applyReference() is the plain
+// 3x3 kernel pixel by pixel, both give exactly the same pixels
+final class Convolution {
+	// columns per block, the sums of a block (6 arrays of ints) fit in the L1 cache
+	private static final int BLOCK_COLUMNS = 1024;
+
+	private static final int[][] BLUR_KERNEL = { { 1, 2, 1 }, { 2, 4, 2 }, { 1, 2, 1 } };
+	private static final int[][] SHARPEN_KERNEL = { { 0, -1, 0 }, { -1, 5, -1 }, { 0, -1, 0 } };
+	private static final int[][] SOBEL_X_KERNEL = { { -1, 0, 1 }, { -2, 0, 2 }, { -1, 0, 1 } };
+	private static final int[][] SOBEL_Y_KERNEL = { { -1, -2, -1 }, { 0, 0, 0 }, { 1, 2, 1 } };
+
+	private Convolution() {
+	}
+
+	// new rows for window[first] to window[first + count - 1]; rows past either end of the window are taken to be
+	// copies of the end row, so the window must hold every neighbour that is inside the image
+	static PpmImage.Row[] apply(PipelineStage stage, PpmImage.Row[] window, int first, int count) {
+		if (stage.getHaloRows() != 1) throw new IllegalArgumentException("not a 3x3 stage: " + stage);
+		int columnCount = window[0].getColumnCount();
+		int[] out = new int[count * columnCount];
+		Sums sums = new Sums(Math.min(BLOCK_COLUMNS, columnCount) + 2);
+		for (int slowIndex = 0; slowIndex < PpmImage.getSlowFactor(); slowIndex++) {
+			for (int blockStart = 0; blockStart < columnCount; blockStart += BLOCK_COLUMNS) {
+				int blockEnd = Math.min(columnCount, blockStart + BLOCK_COLUMNS);
+				for (int i = 0; i < count; i++) {
+					int rowIndex = first + i;
+					PpmImage.Row above = window[Math.max(0, rowIndex - 1)];
+					PpmImage.Row row = window[rowIndex];
+					PpmImage.Row below = window[Math.min(window.length - 1, rowIndex + 1)];
+					switch (stage) {
+						case BLUR:
+							verticalPass(above, row, below, blockStart, blockEnd, false, sums);
+							blurHorizontally(blockStart, blockEnd, sums, out, i * columnCount);
+							break;
+						case SHARPEN:
+							sharpen(above, row, below, blockStart, blockEnd, out, i * columnCount);
+							break;
+						case EDGE_DETECT:
+							verticalPass(above, row, below, blockStart, blockEnd, true, sums);
+							sobelHorizontally(blockStart, blockEnd, sums, out, i * columnCount);
+							break;
+						default:
+							throw new IllegalArgumentException("unknown stage: " + stage);
+					}
+				}
+			}
+		}
+
+		PpmImage.Row[] rows = new PpmImage.Row[count];
+		for (int i = 0; i < count; i++) {
+			rows[i] = new PpmImage.Row(out, i * columnCount, columnCount);
+		}
+		return rows;
+	}
+
+	// per channel, the vertical [1 2 1] (smooth) and, if asked for, [-1 0 1] (difference) of the block's columns and
+	// the column on either side of it; sums index 0 is column blockStart - 1
+	private static void verticalPass(PpmImage.Row above, PpmImage.Row row, PpmImage.Row below, int blockStart,
+			int blockEnd, boolean differences, Sums sums) {
+
+		int[] a = above.intBitsArray();
+		int[] b = row.intBitsArray();
+		int[] c = below.intBitsArray();
+		int ao = above.intBitsOffset();
+		int bo = row.intBitsOffset();
+		int co = below.intBitsOffset();
+		int lastColumn = row.getColumnCount() - 1;
+		for (int x = blockStart - 1, j = 0; x <= blockEnd; x++, j++) {
+			int column = Math.max(0, Math.min(x, lastColumn));
+			int pa = a[ao + column];
+			int pb = b[bo + column];
+			int pc = c[co + column];
+			sums.smoothRed[j] = (pa >> 16 & 0xFF) + 2 * (pb >> 16 & 0xFF) + (pc >> 16 & 0xFF);
+			sums.smoothGreen[j] = (pa >> 8 & 0xFF) + 2 * (pb >> 8 & 0xFF) + (pc >> 8 & 0xFF);
+			sums.smoothBlue[j] = (pa & 0xFF) + 2 * (pb & 0xFF) + (pc & 0xFF);
+			if (!differences) continue;
+			sums.differenceRed[j] = (pc >> 16 & 0xFF) - (pa >> 16 & 0xFF);
+			sums.differenceGreen[j] = (pc >> 8 & 0xFF) - (pa >> 8 & 0xFF);
+			sums.differenceBlue[j] = (pc & 0xFF) - (pa & 0xFF);
+		}
+	}
+
+	private static void blurHorizontally(int blockStart, int blockEnd, Sums sums, int[] out, int outOffset) {
+		for (int x = blockStart, j = 1; x < blockEnd; x++, j++) {
+			int red = sums.smoothRed[j - 1] + 2 * sums.smoothRed[j] + sums.smoothRed[j + 1] + 8 >> 4;
+			int green = sums.smoothGreen[j - 1] + 2 * sums.smoothGreen[j] + sums.smoothGreen[j + 1] + 8 >> 4;
+			int blue = sums.smoothBlue[j - 1] + 2 * sums.smoothBlue[j] + sums.smoothBlue[j + 1] + 8 >> 4;
+			out[outOffset + x] = red << 16 | green << 8 | blue;
+		}
+	}
+
+	// gx is the horizontal difference of the vertical smooth, gy the horizontal smooth of the vertical difference
+	private static void sobelHorizontally(int blockStart, int blockEnd, Sums sums, int[] out, int outOffset) {
+		for (int x = blockStart, j = 1; x < blockEnd; x++, j++) {
+			int red = Math.abs(sums.smoothRed[j + 1] - sums.smoothRed[j - 1]) +
+				Math.abs(sums.differenceRed[j - 1] + 2 * sums.differenceRed[j] + sums.differenceRed[j + 1]);
+			int green = Math.abs(sums.smoothGreen[j + 1] - sums.smoothGreen[j - 1]) +
+				Math.abs(sums.differenceGreen[j - 1] + 2 * sums.differenceGreen[j] + sums.differenceGreen[j + 1]);
+			int blue = Math.abs(sums.smoothBlue[j + 1] - sums.smoothBlue[j - 1]) +
+				Math.abs(sums.differenceBlue[j - 1] + 2 * sums.differenceBlue[j] + sums.differenceBlue[j + 1]);
+			out[outOffset + x] = Math.min(red, 255) << 16 | Math.min(green, 255) << 8 | Math.min(blue, 255);
+		}
+	}
+
+	// not separable, but only 5 of the 9 weights are used
+	private static void sharpen(PpmImage.Row above, PpmImage.Row row, PpmImage.Row below, int blockStart,
+			int blockEnd, int[] out, int outOffset) {
+
+		int[] a = above.intBitsArray();
+		int[] b = row.intBitsArray();
+		int[] c = below.intBitsArray();
+		int ao = above.intBitsOffset();
+		int bo = row.intBitsOffset();
+		int co = below.intBitsOffset();
+		int lastColumn = row.getColumnCount() - 1;
+		for (int x = blockStart; x < blockEnd; x++) {
+			int center = b[bo + x];
+			int up = a[ao + x];
+			int down = c[co + x];
+			int left = b[bo + Math.max(0, x - 1)];
+			int right = b[bo + Math.min(lastColumn, x + 1)];
+			int red = 5 * (center >> 16 & 0xFF) - (up >> 16 & 0xFF) - (down >> 16 & 0xFF) - (left >> 16 & 0xFF) -
+				(right >> 16 & 0xFF);
+			int green = 5 * (center >> 8 & 0xFF) - (up >> 8 & 0xFF) - (down >> 8 & 0xFF) - (left >> 8 & 0xFF) -
+				(right >> 8 & 0xFF);
+			int blue = 5 * (center & 0xFF) - (up & 0xFF) - (down & 0xFF) - (left & 0xFF) - (right & 0xFF);
+			out[outOffset + x] = PpmImage.Pixel.toIntBits(red, green, blue);
+		}
+	}
+
+	// the serial reference: every pixel straight from its 3x3 neighbourhood, no blocks, no separable passes
+	static PpmImage applyReference(PpmImage image, PipelineStage stage) {
+		int rowCount = image.getRowCount();
+		int columnCount = image.getColumnCount();
+		int[] out = new int[rowCount * columnCount];
+		for (int y = 0; y < rowCount; y++) {
+			for (int x = 0; x < columnCount; x++) {
+				int[] value;
+				switch (stage) {
+					case BLUR:
+						value = convolvePixel(image, y, x, BLUR_KERNEL);
+						for (int k = 0; k < 3; k++) {
+							value[k] = (value[k] + 8) / 16;
+						}
+						break;
+					case SHARPEN:
+						value = convolvePixel(image, y, x, SHARPEN_KERNEL);
+						break;
+					case EDGE_DETECT:
+						value = convolvePixel(image, y, x, SOBEL_X_KERNEL);
+						int[] gy = convolvePixel(image, y, x, SOBEL_Y_KERNEL);
+						for (int k = 0; k < 3; k++) {
+							value[k] = Math.abs(value[k]) + Math.abs(gy[k]);
+						}
+						break;
+					default:
+						throw new IllegalArgumentException("not a 3x3 stage: " + stage);
+				}
+				out[y * columnCount + x] = PpmImage.Pixel.toIntBits(value[0], value[1], value[2]);
+			}
+		}
+		return PpmImage.wrapIntBits(rowCount, columnCount, out);
+	}
+
+	// red, green and blue weighted by the kernel, unclamped
+	private static int[] convolvePixel(PpmImage image, int y, int x, int[][] kernel) {
+		int[] sum = new int[3];
+		for (int dy = -1; dy <= 1; dy++) {
+			for (int dx = -1; dx <= 1; dx++) {
+				int weight = kernel[dy + 1][dx + 1];
+				int bits = image.getIntBitsAt(Math.max(0, Math.min(y + dy, image.getRowCount() - 1)),
+					Math.max(0, Math.min(x + dx, image.getColumnCount() - 1)));
+				sum[0] += weight * (bits >> 16 & 0xFF);
+				sum[1] += weight * (bits >> 8 & 0xFF);
+				sum[2] += weight * (bits & 0xFF);
+			}
+		}
+		return sum;
+	}
+
+	// the vertical passes of one block, reused from row to row
+	private static final class Sums {
+		final int[] smoothRed;
+		final int[] smoothGreen;
+		final int[] smoothBlue;
+		final int[] differenceRed;
+		final int[] differenceGreen;
+		final int[] differenceBlue;
+
+		Sums(int length) {
+			smoothRed = new int[length];
+			smoothGreen = new int[length];
+			smoothBlue = new int[length];
+			differenceRed = new int[length];
+			differenceGreen = new int[length];
+			differenceBlue = new int[length];
+		}
+	}
+}
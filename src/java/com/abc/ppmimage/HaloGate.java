@@ -0,0 +1,105 @@
+package com.abc.ppmimage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// holds back the bands going into a segment that starts with a stage that isn't row-local until the rows around
+// them have arrived too, then hands them out with those rows attached (PipelineWork.haloAbove/haloBelow); bands
+// arrive in any order, so a band may have to wait for a neighbour that is still in an earlier segment, and the
+// band that completes a neighbourhood releases whoever was waiting for it
+//
+// only the top and bottom haloRows rows of each band are kept, that is all another band can need; an image's rows
+// are dropped once every one of its bands has gone through
+class HaloGate {
+	private final PipelineStage stage;
+	private final int haloRows;
+	// by image index, guarded by this
+	private final Map<Integer, ImageRows> images = new HashMap<>();
+
+	public HaloGate(PipelineStage stage) {
+		if (stage.isRowLocal()) throw new IllegalArgumentException(stage + " is row-local, it needs no gate");
+		this.stage = stage;
+		haloRows = stage.getHaloRows();
+	}
+
+	// the gate the workers of a segment have to share, null if the segment doesn't need one
+	static HaloGate forSegment(PipelineStage[] segment) {
+		return segment.length > 0 && !segment[0].isRowLocal() ? new HaloGate(segment[0]) : null;
+	}
+
+	// the bands that can be processed now, the one passed in among them if its neighbours are all there; the caller
+	// has to process every one of them
+	public synchronized List<PipelineWork> arrive(PipelineWork work) {
+		if (work.imageRowCount < 0) {
+			throw new IllegalArgumentException(stage + " needs the row count of image " + work.imageIndex);
+		}
+		ImageRows image = images.get(work.imageIndex);
+		if (image == null) {
+			image = new ImageRows(work.imageRowCount);
+			images.put(work.imageIndex, image);
+		}
+		int count = work.getRowCount();
+		for (int i = 0; i < count; i++) {
+			if (i < haloRows || i >= count - haloRows) image.rows[work.firstRowIndex + i] = work.rows[i];
+		}
+		image.arrivedRowCount += count;
+		image.maxBandRowCount = Math.max(image.maxBandRowCount, count);
+		image.waiting.put(work.firstRowIndex, work);
+
+		// only bands whose neighbourhood overlaps the rows that just arrived can have become ready
+		int from = work.firstRowIndex - haloRows - image.maxBandRowCount + 1;
+		int to = work.firstRowIndex + count + haloRows;
+		List<PipelineWork> ready = new ArrayList<>();
+		for (Iterator<PipelineWork> it = image.waiting.subMap(from, to).values().iterator(); it.hasNext(); ) {
+			PipelineWork candidate = it.next();
+			if (attachHalo(image, candidate)) {
+				it.remove();
+				ready.add(candidate);
+			}
+		}
+		if (image.arrivedRowCount == image.rows.length && image.waiting.isEmpty()) images.remove(work.imageIndex);
+		return ready;
+	}
+
+	// bands in the gate, waiting for a neighbour
+	public synchronized int getWaitingCount() {
+		int count = 0;
+		for (ImageRows image : images.values()) {
+			count += image.waiting.size();
+		}
+		return count;
+	}
+
+	private boolean attachHalo(ImageRows image, PipelineWork work) {
+		int end = work.firstRowIndex + work.getRowCount();
+		PpmImage.Row[] above = new PpmImage.Row[Math.min(haloRows, work.firstRowIndex)];
+		PpmImage.Row[] below = new PpmImage.Row[Math.min(haloRows, image.rows.length - end)];
+		for (int i = 0; i < above.length; i++) {
+			above[i] = image.rows[work.firstRowIndex - above.length + i];
+			if (above[i] == null) return false;
+		}
+		for (int i = 0; i < below.length; i++) {
+			below[i] = image.rows[end + i];
+			if (below[i] == null) return false;
+		}
+		work.haloAbove = above;
+		work.haloBelow = below;
+		return true;
+	}
+
+	// the boundary rows of one image that arrived so far, and its bands that are waiting, by first row
+	private static final class ImageRows {
+		final PpmImage.Row[] rows;
+		final TreeMap<Integer, PipelineWork> waiting = new TreeMap<>();
+		int arrivedRowCount;
+		int maxBandRowCount;
+
+		ImageRows(int rowCount) {
+			rows = new PpmImage.Row[rowCount];
+		}
+	}
+}
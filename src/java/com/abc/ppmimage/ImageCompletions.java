@@ -0,0 +1,85 @@
+package com.abc.ppmimage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.abc.pp.fifo.deluxe_bounded.PPDeluxeBoundedFifo.AddStatus;
+
+// the direct placement alternative to Sorter + Assemblers: whoever finishes a band copies its rows straight into
+// the image's preallocated slots, and the thread that places the last row of an image builds it and completes the
+// image's future; bands own disjoint slots, so only the countdown is shared
+class ImageCompletions implements WorkSink<PipelineWork> {
+	private final PpmImage.Row[][] slots;
+	// for recycled bands the pixels are copied instead, straight into the image's array
+	private final int[][] pixels;
+	private final int[] columnCounts;
+	private final AtomicInteger[] remainingRows;
+	private final List<CompletableFuture<PpmImage>> futures;
+	private final PipelineMetrics metrics;
+
+	public ImageCompletions(PpmImage[] images) {
+		this(images, null);
+	}
+
+	public ImageCompletions(PpmImage[] images, PipelineMetrics metrics) {
+		this(images, metrics, false);
+	}
+
+	public ImageCompletions(PpmImage[] images, PipelineMetrics metrics, boolean recycledBands) {
+		this.metrics = metrics;
+		slots = new PpmImage.Row[images.length][];
+		pixels = recycledBands ? new int[images.length][] : null;
+		columnCounts = new int[images.length];
+		remainingRows = new AtomicInteger[images.length];
+		List<CompletableFuture<PpmImage>> list = new ArrayList<>();
+		for (int i = 0; i < images.length; i++) {
+			slots[i] = new PpmImage.Row[images[i].getRowCount()];
+			remainingRows[i] = new AtomicInteger(slots[i].length);
+			columnCounts[i] = images[i].getColumnCount();
+			if (pixels != null) pixels[i] = new int[slots[i].length * columnCounts[i]];
+			list.add(new CompletableFuture<>());
+		}
+		futures = Collections.unmodifiableList(list);
+	}
+
+	// one future per image, in image order
+	public List<CompletableFuture<PpmImage>> getFutures() {
+		return futures;
+	}
+
+	@Override
+	public AddStatus add(PipelineWork work) {
+		if (metrics != null) metrics.recordRowLatency(work);
+		int imageIndex = work.imageIndex;
+		int rowCount = work.getRowCount();
+		if (work.isRecycled()) {
+			work.copyPixelsTo(pixels[imageIndex]);
+			work.recycle();
+		} else {
+			System.arraycopy(work.rows, 0, slots[imageIndex], work.firstRowIndex, rowCount);
+		}
+		// the rows written above happen-before the decrement, so the last decrement sees every row of the image
+		if (remainingRows[imageIndex].addAndGet(-rowCount) == 0) {
+			try {
+				futures.get(imageIndex).complete(pixels != null ?
+					PpmImage.wrapIntBits(slots[imageIndex].length, columnCounts[imageIndex], pixels[imageIndex]) :
+					new PpmImage(slots[imageIndex]));
+			} catch (RuntimeException x) {
+				futures.get(imageIndex).completeExceptionally(x);
+			}
+			slots[imageIndex] = null;
+			if (pixels != null) pixels[imageIndex] = null;
+		}
+		return AddStatus.SUCCESS;
+	}
+
+	// for when the pipeline stopped without delivering every row
+	public void failIncomplete(Throwable cause) {
+		for (CompletableFuture<PpmImage> future : futures) {
+			future.completeExceptionally(cause);
+		}
+	}
+}
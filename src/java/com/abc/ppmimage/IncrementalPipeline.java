@@ -0,0 +1,108 @@
+package com.abc.ppmimage;
+
+import com.abc.thread.ThreadTools;
+
+// processes the frames of one stream, only sending the rows that changed since the previous frame through the
+// pipeline: each input row's hash is compared with the same row's hash in the previous frame, the changed rows
+// are packed into one smaller image for executePipeline, and the processed rows are spliced into a copy of the
+// previous result; the first frame, a frame of a different size, or a pipeline with a stage that isn't row-local
+// (an output row depends on other rows) is processed in full
+//
+// only the row hashes of the previous frame are kept, not its pixels; a changed row whose hash happens to be the
+// same (2^-64 per row) would keep its previous output
+public class IncrementalPipeline {
+	private final PipelineStage[] pipeline;
+	private final PipelineConfig config;
+	private final boolean rowLocal;
+
+	private long[] previousRowHashes;
+	private PpmImage previousResult;
+
+	private int lastProcessedRowCount;
+	private int lastSkippedRowCount;
+	private long totalProcessedRowCount;
+	private long totalSkippedRowCount;
+	private long frameCount;
+
+	public IncrementalPipeline(PipelineStage[] pipeline, PipelineConfig config) {
+		this.pipeline = pipeline.clone();
+		this.config = config;
+		boolean allRowLocal = true;
+		for (PipelineStage stage : pipeline) {
+			allRowLocal &= stage.isRowLocal();
+		}
+		rowLocal = allRowLocal;
+	}
+
+	// frames are processed one at a time, in the order they are passed in
+	public synchronized PpmImage process(PpmImage frame) throws InterruptedException {
+		int rowCount = frame.getRowCount();
+		int columnCount = frame.getColumnCount();
+		int[] pixels = frame.intBitsArray();
+		long[] rowHashes = new long[rowCount];
+		for (int i = 0; i < rowCount; i++) {
+			rowHashes[i] = PixelHash.of(pixels, i * columnCount, columnCount);
+		}
+
+		boolean comparable = rowLocal && previousResult != null && previousRowHashes.length == rowCount &&
+			previousResult.getColumnCount() == columnCount;
+		int[] changedRows = new int[rowCount];
+		int changedCount = 0;
+		for (int i = 0; i < rowCount; i++) {
+			if (!comparable || rowHashes[i] != previousRowHashes[i]) changedRows[changedCount++] = i;
+		}
+
+		PpmImage result;
+		if (changedCount == rowCount) {
+			result = PpmImageDemo.executePipeline(new PpmImage[] { frame }, pipeline, config)[0];
+		} else if (changedCount == 0) {
+			result = previousResult;
+		} else {
+			result = processChangedRows(frame, changedRows, changedCount);
+		}
+
+		previousRowHashes = rowHashes;
+		previousResult = result;
+		frameCount++;
+		lastProcessedRowCount = changedCount;
+		lastSkippedRowCount = rowCount - changedCount;
+		totalProcessedRowCount += lastProcessedRowCount;
+		totalSkippedRowCount += lastSkippedRowCount;
+		return result;
+	}
+
+	// the changed rows, in order, are an image of their own; row-local stages give the same rows either way
+	private PpmImage processChangedRows(PpmImage frame, int[] changedRows, int changedCount)
+			throws InterruptedException {
+
+		int columnCount = frame.getColumnCount();
+		int[] pixels = frame.intBitsArray();
+		int[] changedPixels = new int[changedCount * columnCount];
+		for (int i = 0; i < changedCount; i++) {
+			System.arraycopy(pixels, changedRows[i] * columnCount, changedPixels, i * columnCount, columnCount);
+		}
+		PpmImage changed = PpmImage.wrapIntBits(changedCount, columnCount, changedPixels);
+		int[] processed = PpmImageDemo.executePipeline(new PpmImage[] { changed }, pipeline, config)[0].intBitsArray();
+
+		int[] resultPixels = previousResult.getIntBits();
+		for (int i = 0; i < changedCount; i++) {
+			System.arraycopy(processed, i * columnCount, resultPixels, changedRows[i] * columnCount, columnCount);
+		}
+		return PpmImage.wrapIntBits(frame.getRowCount(), columnCount, resultPixels);
+	}
+
+	public synchronized int getLastProcessedRowCount() { return lastProcessedRowCount; }
+	public synchronized int getLastSkippedRowCount() { return lastSkippedRowCount; }
+	public synchronized long getTotalProcessedRowCount() { return totalProcessedRowCount; }
+	public synchronized long getTotalSkippedRowCount() { return totalSkippedRowCount; }
+	public synchronized long getFrameCount() { return frameCount; }
+
+	// what the last frame cost compared with processing it in full
+	public synchronized void logReport() {
+		int rowCount = lastProcessedRowCount + lastSkippedRowCount;
+		ThreadTools.outln("frame %d: processed %d of %d rows, skipped %d (%.1f%%); overall skipped %d of %d rows",
+			frameCount, lastProcessedRowCount, rowCount, lastSkippedRowCount,
+			rowCount > 0 ? 100.0 * lastSkippedRowCount / rowCount : 0.0, totalSkippedRowCount,
+			totalProcessedRowCount + totalSkippedRowCount);
+	}
+}
@@ -0,0 +1,104 @@
+package com.abc.ppmimage;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import com.abc.pp.fifo.deluxe_bounded.PPDeluxeBoundedFifo.AddStatus;
+
+// bounded lock-free fifo for any number of adding and removing threads (Dmitry Vyukov's array queue): every slot
+// has a sequence number telling whether it is ready to be filled or to be emptied at a given position, and threads
+// claim positions with a CAS on tail (adders) or head (removers); the capacity is rounded up to a power of two
+//
+// indicateNoMoreAddsAllowed sets CLOSED_BIT in tail, after which no CAS by an adder can succeed; a remover only
+// reports EMPTY_AND_NO_MORE_ADDS_ALLOWED once head has caught up with the last position claimed before that
+class LockFreeMpmcPipelineFifo<T> extends PaddedRingIndexes implements PipelineFifo<T> {
+	private static final long CLOSED_BIT = 1L << 62;
+	private static final VarHandle SEQUENCE = MethodHandles.arrayElementVarHandle(long[].class);
+
+	private final Object[] items;
+	private final long[] sequences;
+	private final int mask;
+
+	public LockFreeMpmcPipelineFifo(int capacity) {
+		int size = roundUpToPowerOfTwo(capacity);
+		items = new Object[size];
+		sequences = new long[size];
+		for (int i = 0; i < size; i++) {
+			sequences[i] = i;
+		}
+		mask = size - 1;
+	}
+
+	@Override
+	public int getCapacity() {
+		return items.length;
+	}
+
+	@Override
+	public int getCount() {
+		long h = head;
+		long t = tail & ~CLOSED_BIT;
+		return (int) Math.max(0, Math.min(items.length, t - h));
+	}
+
+	@Override
+	public AddStatus add(T item) throws InterruptedException {
+		for (int attempt = 0; ; ) {
+			long t = tail;
+			if ((t & CLOSED_BIT) != 0) return AddStatus.NO_MORE_ADDS_ALLOWED;
+			int index = (int) t & mask;
+			long difference = (long) SEQUENCE.getAcquire(sequences, index) - t;
+			if (difference == 0) {
+				if (TAIL.compareAndSet(this, t, t + 1)) {
+					items[index] = item;
+					SEQUENCE.setRelease(sequences, index, t + 1); // publishes the item
+					return AddStatus.SUCCESS;
+				}
+			} else if (difference < 0) {
+				backOff(attempt++); // full
+			}
+			// otherwise another adder claimed t first, retry at the new tail
+		}
+	}
+
+	@Override
+	public RemoveSingleResult<T> remove() throws InterruptedException {
+		T item = removeOrNull();
+		if (item == null) return RemoveSingleResult.createEmptyAndNoMoreAddsAllowed();
+		return RemoveSingleResult.createSuccess(item);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T removeOrNull() throws InterruptedException {
+		for (int attempt = 0; ; ) {
+			long h = head;
+			int index = (int) h & mask;
+			long difference = (long) SEQUENCE.getAcquire(sequences, index) - (h + 1);
+			if (difference == 0) {
+				if (HEAD.compareAndSet(this, h, h + 1)) {
+					T item = (T) items[index];
+					items[index] = null;
+					SEQUENCE.setRelease(sequences, index, h + items.length); // frees the slot for the next lap
+					return item;
+				}
+			} else if (difference < 0) {
+				long t = tail;
+				if ((t & ~CLOSED_BIT) == h && (t & CLOSED_BIT) != 0) {
+					return null;
+				}
+				// empty, or an adder claimed h but hasn't published the item yet
+				backOff(attempt++);
+			}
+			// otherwise another remover took h first, retry at the new head
+		}
+	}
+
+	@Override
+	public void indicateNoMoreAddsAllowed() {
+		long t;
+		do {
+			t = tail;
+		} while ((t & CLOSED_BIT) == 0 && !TAIL.compareAndSet(this, t, t | CLOSED_BIT));
+	}
+}
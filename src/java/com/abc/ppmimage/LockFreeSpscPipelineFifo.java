@@ -0,0 +1,85 @@
+package com.abc.ppmimage;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import com.abc.pp.fifo.deluxe_bounded.PPDeluxeBoundedFifo.AddStatus;
+
+// bounded lock-free fifo for exactly one adding and one removing thread, such as the Sorter to Assembler links:
+// only the adder writes tail and only the remover writes head, so no CAS is needed, and each side caches its view
+// of the other's index to avoid touching the other cache line on every call; the capacity is rounded up to a
+// power of two
+//
+// indicateNoMoreAddsAllowed must be called by the adding thread, or after it has made its last add
+class LockFreeSpscPipelineFifo<T> extends PaddedRingIndexes implements PipelineFifo<T> {
+	private static final VarHandle ITEM = MethodHandles.arrayElementVarHandle(Object[].class);
+
+	private final Object[] items;
+	private final int mask;
+	private volatile boolean noMoreAdds;
+	private long cachedHead; // only used by the adder
+	private long cachedTail; // only used by the remover
+
+	public LockFreeSpscPipelineFifo(int capacity) {
+		items = new Object[roundUpToPowerOfTwo(capacity)];
+		mask = items.length - 1;
+	}
+
+	@Override
+	public int getCapacity() {
+		return items.length;
+	}
+
+	@Override
+	public int getCount() {
+		long h = head;
+		return (int) Math.max(0, Math.min(items.length, tail - h));
+	}
+
+	@Override
+	public AddStatus add(T item) throws InterruptedException {
+		if (noMoreAdds) return AddStatus.NO_MORE_ADDS_ALLOWED;
+		long t = (long) TAIL.getOpaque(this);
+		for (int attempt = 0; t - cachedHead >= items.length; ) {
+			cachedHead = (long) HEAD.getAcquire(this);
+			if (t - cachedHead >= items.length) backOff(attempt++);
+		}
+		ITEM.setOpaque(items, (int) t & mask, item);
+		TAIL.setRelease(this, t + 1); // publishes the item
+		return AddStatus.SUCCESS;
+	}
+
+	@Override
+	public RemoveSingleResult<T> remove() throws InterruptedException {
+		T item = removeOrNull();
+		if (item == null) return RemoveSingleResult.createEmptyAndNoMoreAddsAllowed();
+		return RemoveSingleResult.createSuccess(item);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T removeOrNull() throws InterruptedException {
+		long h = (long) HEAD.getOpaque(this);
+		for (int attempt = 0; h >= cachedTail; ) {
+			cachedTail = (long) TAIL.getAcquire(this);
+			if (h < cachedTail) break;
+			if (noMoreAdds) {
+				// the last add happened before the close, so one more look at tail is conclusive
+				cachedTail = (long) TAIL.getAcquire(this);
+				if (h >= cachedTail) return null;
+				break;
+			}
+			backOff(attempt++);
+		}
+		int index = (int) h & mask;
+		T item = (T) ITEM.getOpaque(items, index);
+		ITEM.setOpaque(items, index, null);
+		HEAD.setRelease(this, h + 1); // frees the slot
+		return item;
+	}
+
+	@Override
+	public void indicateNoMoreAddsAllowed() {
+		noMoreAdds = true;
+	}
+}
@@ -0,0 +1,59 @@
+package com.abc.ppmimage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.abc.pp.fifo.deluxe_bounded.PPDeluxeBoundedFifo;
+import com.abc.pp.fifo.deluxe_bounded.PPDeluxeBoundedFifo.AddStatus;
+import com.abc.pp.fifo.deluxe_bounded.impl.CircularArrayPPDeluxeBoundedFifo;
+
+// the original monitor based fifo behind the PipelineFifo interface
+class MonitorPipelineFifo<T> implements PipelineFifo<T> {
+	private final PPDeluxeBoundedFifo<T> fifo;
+	private final int capacity;
+	// items added minus items removed, it may be off by the adds and removes in progress, a remove may even take
+	// an item before its add is counted
+	private final AtomicInteger count;
+
+	public MonitorPipelineFifo(int capacity, Class<T> itemType) {
+		fifo = new CircularArrayPPDeluxeBoundedFifo<>(capacity, itemType);
+		this.capacity = capacity;
+		count = new AtomicInteger();
+	}
+
+	@Override
+	public int getCapacity() {
+		return capacity;
+	}
+
+	@Override
+	public int getCount() {
+		return Math.max(0, Math.min(capacity, count.get()));
+	}
+
+	@Override
+	public AddStatus add(T item) throws InterruptedException {
+		// counted once it is in, a producer blocked on a full fifo isn't an item
+		AddStatus status = fifo.add(item);
+		if (status == AddStatus.SUCCESS) count.incrementAndGet();
+		return status;
+	}
+
+	@Override
+	public RemoveSingleResult<T> remove() throws InterruptedException {
+		PPDeluxeBoundedFifo.RemoveSingleResult<T> result = fifo.remove();
+		switch (result.getStatus()) {
+			case SUCCESS:
+				count.decrementAndGet();
+				return RemoveSingleResult.createSuccess(result.getItem());
+			case EMPTY_AND_NO_MORE_ADDS_ALLOWED:
+				return RemoveSingleResult.createEmptyAndNoMoreAddsAllowed();
+			default:
+				throw new IllegalStateException("unexpected status: " + result.getStatus());
+		}
+	}
+
+	@Override
+	public void indicateNoMoreAddsAllowed() throws InterruptedException {
+		fifo.indicateNoMoreAddsAllowed();
+	}
+}
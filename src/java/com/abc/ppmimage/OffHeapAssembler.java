@@ -0,0 +1,45 @@
+package com.abc.ppmimage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.abc.pp.fifo.deluxe_bounded.PPDeluxeBoundedFifo.AddStatus;
+
+// the final sink when the images are off the heap: whoever finishes a band copies it straight into its output
+// image, in whatever order the bands come, and a recycled band goes back to its pool right after; bands own
+// disjoint rows of the output, so only the countdown is shared
+class OffHeapAssembler implements WorkSink<PipelineWork> {
+	private final OffHeapImage[] outputs;
+	private final AtomicLong remainingRows = new AtomicLong();
+	private final PipelineMetrics metrics;
+
+	public OffHeapAssembler(OffHeapImage[] outputs, PipelineMetrics metrics) {
+		this.outputs = outputs;
+		this.metrics = metrics;
+		for (OffHeapImage output : outputs) {
+			remainingRows.addAndGet(output.getRowCount());
+		}
+	}
+
+	@Override
+	public AddStatus add(PipelineWork work) {
+		if (metrics != null) metrics.recordRowLatency(work);
+		OffHeapImage output = outputs[work.imageIndex];
+		int rowCount = work.getRowCount();
+		if (work.isRecycled()) {
+			output.writeRows(work.firstRowIndex, rowCount, work.pixels, 0);
+			work.recycle();
+		} else {
+			for (int i = 0; i < rowCount; i++) {
+				PpmImage.Row row = work.rows[i];
+				output.writeRows(work.firstRowIndex + i, 1, row.intBitsArray(), row.intBitsOffset());
+			}
+		}
+		remainingRows.addAndGet(-rowCount);
+		return AddStatus.SUCCESS;
+	}
+
+	// rows of all outputs that haven't arrived, 0 once the run delivered everything
+	public long getRemainingRowCount() {
+		return remainingRows.get();
+	}
+}
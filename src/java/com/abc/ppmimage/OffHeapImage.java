@@ -0,0 +1,230 @@
+package com.abc.ppmimage;
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Packed pixels (see {@link PpmImage.Pixel#asIntBits()}) outside the Java heap, for images that don't fit on it.
+ * The rows are kept in pages of up to 64MB. A page is a direct buffer as long as the process-wide budget allows
+ * (see {@link #setBudget}), any page past the budget, or that the JVM's direct memory can't take after all, is a
+ * memory-mapped region of a temp file instead, which the OS pages in and out as needed. Rows are copied in and
+ * out a band at a time; different threads may read and write different rows at the same time. Unlike
+ * {@link PpmImage} instances are mutable, and have to be closed to give back their part of the budget and delete
+ * their temp file.
+ */
+public final class OffHeapImage implements Closeable {
+    /**
+     * System property with the initial budget in bytes, read once when the class is initialized. Without it the
+     * budget is 256MB or half of the JVM's direct memory limit (-XX:MaxDirectMemorySize, which defaults to the
+     * maximum heap size), whichever is smaller.
+     */
+    static final String BUDGET_PROPERTY = "com.abc.ppmimage.offHeapBudget";
+
+    private static final long PAGE_BYTES = 64L * 1024 * 1024;
+    // rows copied per step when reading or writing a file
+    private static final int TRANSFER_PIXELS = 1024 * 1024;
+
+    private static volatile long budget = Long.getLong(BUDGET_PROPERTY, getDefaultBudget());
+    private static final AtomicLong reservedBytes = new AtomicLong();
+
+    private final int rowCount;
+    private final int columnCount;
+    private final int rowsPerPage;
+    private final IntBuffer[] pages;
+    // bytes of the budget held by the direct pages
+    private long directBytes;
+    private FileChannel spillChannel;
+    private volatile boolean closed;
+
+    private OffHeapImage(int rowCount, int columnCount) throws IOException {
+        if (rowCount < 1 || columnCount < 1) {
+            throw new IllegalArgumentException("unsupported image size: " + columnCount + "x" + rowCount);
+        }
+        this.rowCount = rowCount;
+        this.columnCount = columnCount;
+        rowsPerPage = (int) Math.max(1, Math.min(rowCount, PAGE_BYTES / (4L * columnCount)));
+        pages = new IntBuffer[(rowCount + rowsPerPage - 1) / rowsPerPage];
+        try {
+            for (int i = 0; i < pages.length; i++) {
+                long pageBytes = 4L * Math.min(rowsPerPage, rowCount - i * rowsPerPage) * columnCount;
+                IntBuffer page = tryReserve(pageBytes) ? tryAllocateDirect(pageBytes) : null;
+                pages[i] = page != null ? page : mapSpilled(i, pageBytes);
+            }
+        } catch (IOException | RuntimeException | Error x) {
+            close();
+            throw x;
+        }
+    }
+
+    /** An image of the given size with every pixel black, off the heap as far as the budget allows. */
+    public static OffHeapImage allocate(int rowCount, int columnCount) throws IOException {
+        return new OffHeapImage(rowCount, columnCount);
+    }
+
+    public static OffHeapImage copyOf(PpmImage image) throws IOException {
+        OffHeapImage copy = new OffHeapImage(image.getRowCount(), image.getColumnCount());
+        copy.writeRows(0, image.getRowCount(), image.intBitsArray(), 0);
+        return copy;
+    }
+
+    /** Decodes the file a few rows at a time, the whole image is never on the heap. */
+    public static OffHeapImage read(String filename) throws IOException {
+        try (PpmReader reader = new PpmReader(PpmReader.openChannel(filename))) {
+            reader.readHeader();
+            OffHeapImage image = new OffHeapImage(reader.getRowCount(), reader.getColumnCount());
+            try {
+                int[] scratch = new int[image.getTransferRows() * image.columnCount];
+                for (int first = 0; first < image.rowCount; first += image.getTransferRows()) {
+                    int count = Math.min(image.getTransferRows(), image.rowCount - first);
+                    reader.readPixels(scratch, 0, count * image.columnCount);
+                    image.writeRows(first, count, scratch, 0);
+                }
+                return image;
+            } catch (IOException | RuntimeException x) {
+                image.close();
+                throw x;
+            }
+        }
+    }
+
+    /** Encodes the image a few rows at a time. */
+    public void write(String filename, PpmImage.Format format) throws IOException {
+        try (PpmWriter writer = new PpmWriter(PpmWriter.openChannel(filename), format)) {
+            writer.writeHeader(columnCount, rowCount);
+            int[] scratch = new int[getTransferRows() * columnCount];
+            for (int first = 0; first < rowCount; first += getTransferRows()) {
+                int count = Math.min(getTransferRows(), rowCount - first);
+                readRows(first, count, scratch, 0);
+                writer.writePixels(scratch, 0, count * columnCount);
+            }
+        }
+    }
+
+    /** A copy on the heap, only for images that fit there. */
+    public PpmImage toPpmImage() {
+        int[] pixels = new int[rowCount * columnCount];
+        readRows(0, rowCount, pixels, 0);
+        return PpmImage.wrapIntBits(rowCount, columnCount, pixels);
+    }
+
+    public int getRowCount() { return rowCount; }
+    public int getColumnCount() { return columnCount; }
+
+    /** True if some of the pages didn't fit in the budget and live in a temp file. */
+    public synchronized boolean isSpilled() { return spillChannel != null; }
+
+    /** Copies rows firstRow to firstRow + count - 1 into dest, starting at destOffset. */
+    public void readRows(int firstRow, int count, int[] dest, int destOffset) {
+        confirmRows(firstRow, count);
+        int row = firstRow;
+        int end = firstRow + count;
+        while (row < end) {
+            int inPage = Math.min(end, (row / rowsPerPage + 1) * rowsPerPage) - row;
+            pages[row / rowsPerPage].get(row % rowsPerPage * columnCount, dest, destOffset, inPage * columnCount);
+            destOffset += inPage * columnCount;
+            row += inPage;
+        }
+    }
+
+    /** Copies count rows from src, starting at srcOffset, over rows firstRow to firstRow + count - 1. */
+    public void writeRows(int firstRow, int count, int[] src, int srcOffset) {
+        confirmRows(firstRow, count);
+        int row = firstRow;
+        int end = firstRow + count;
+        while (row < end) {
+            int inPage = Math.min(end, (row / rowsPerPage + 1) * rowsPerPage) - row;
+            pages[row / rowsPerPage].put(row % rowsPerPage * columnCount, src, srcOffset, inPage * columnCount);
+            srcOffset += inPage * columnCount;
+            row += inPage;
+        }
+    }
+
+    /**
+     * Gives back the budget and deletes the temp file; the direct memory itself is freed by the garbage collector
+     * once the image is unreachable.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        reservedBytes.addAndGet(-directBytes);
+        directBytes = 0;
+        if (spillChannel != null) spillChannel.close();
+    }
+
+    /** Bytes of direct memory all open images may take together; later pages spill to temp files. */
+    public static void setBudget(long bytes) {
+        if (bytes < 0) throw new IllegalArgumentException("budget must not be negative");
+        budget = bytes;
+    }
+
+    public static long getBudget() { return budget; }
+
+    /** Bytes of the budget taken by the open images. */
+    public static long getReservedBytes() { return reservedBytes.get(); }
+
+    private int getTransferRows() {
+        return Math.max(1, Math.min(rowCount, TRANSFER_PIXELS / columnCount));
+    }
+
+    private void confirmRows(int firstRow, int count) {
+        if (firstRow < 0 || count < 0 || firstRow + count > rowCount) {
+            throw new IndexOutOfBoundsException("rows " + firstRow + " to " + (firstRow + count - 1) +
+                " of an image with " + rowCount + " rows");
+        }
+        if (closed) throw new IllegalStateException("image is closed");
+    }
+
+    private boolean tryReserve(long bytes) {
+        while (true) {
+            long reserved = reservedBytes.get();
+            if (reserved + bytes > budget) return false;
+            if (reservedBytes.compareAndSet(reserved, reserved + bytes)) {
+                directBytes += bytes;
+                return true;
+            }
+        }
+    }
+
+    // null if the JVM's direct memory is used up, by other images over a budget set too high or by anything else
+    // in the process; the reservation is given back and the page spills instead
+    private IntBuffer tryAllocateDirect(long bytes) {
+        try {
+            return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder()).asIntBuffer();
+        } catch (OutOfMemoryError x) {
+            reservedBytes.addAndGet(-bytes);
+            directBytes -= bytes;
+            return null;
+        }
+    }
+
+    // leaves half of the direct memory to the rest of the process, NIO keeps its temporary buffers there too
+    private static long getDefaultBudget() {
+        long limit = Runtime.getRuntime().maxMemory();
+        try {
+            String option = ManagementFactory.getPlatformMXBean(com.sun.management.HotSpotDiagnosticMXBean.class)
+                .getVMOption("MaxDirectMemorySize").getValue();
+            // 0 means the default, which is the maximum heap size
+            if (Long.parseLong(option) > 0) limit = Long.parseLong(option);
+        } catch (RuntimeException x) {
+            // not HotSpot, assume the default
+        }
+        return Math.min(256L * 1024 * 1024, limit / 2);
+    }
+
+    // every page has its own region of the file, the file grows as pages are mapped
+    private synchronized IntBuffer mapSpilled(int pageIndex, long bytes) throws IOException {
+        if (spillChannel == null) {
+            Path file = Files.createTempFile("ppmimage-", ".pixels");
+            spillChannel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        }
+        long position = 4L * pageIndex * rowsPerPage * columnCount;
+        return spillChannel.map(FileChannel.MapMode.READ_WRITE, position, bytes)
+            .order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+}
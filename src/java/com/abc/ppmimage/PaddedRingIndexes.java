@@ -0,0 +1,58 @@
+package com.abc.ppmimage;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.LockSupport;
+
+// head and tail of a ring buffer, each on its own cache line so that the removing threads (writing head) and the
+// adding threads (writing tail) don't false share; the JVM lays out superclass fields first, so the padding
+// classes in between keep the two counters at least 64 bytes apart from each other and from neighbouring objects
+abstract class PaddedRingIndexes extends PaddedRingIndexesTail {
+	static final VarHandle HEAD;
+	static final VarHandle TAIL;
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			HEAD = lookup.findVarHandle(PaddedRingIndexesHead.class, "head", long.class);
+			TAIL = lookup.findVarHandle(PaddedRingIndexesTail.class, "tail", long.class);
+		} catch (ReflectiveOperationException x) {
+			throw new ExceptionInInitializerError(x);
+		}
+	}
+
+	long p20, p21, p22, p23, p24, p25, p26, p27;
+
+	// how a blocked add or remove waits: spin briefly, then yield, then park for a little while, so an idle
+	// pipeline doesn't burn its cores; attempt counts the failed tries so far
+	static void backOff(int attempt) throws InterruptedException {
+		if (Thread.interrupted()) throw new InterruptedException();
+		if (attempt < 100) {
+			Thread.onSpinWait();
+		} else if (attempt < 200) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(50_000L);
+		}
+	}
+
+	static int roundUpToPowerOfTwo(int capacity) {
+		if (capacity < 1 || capacity > 1 << 30) throw new IllegalArgumentException("capacity must be in [1..2^30]");
+		return capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+	}
+}
+
+abstract class PaddedRingIndexesPad0 {
+	long p00, p01, p02, p03, p04, p05, p06, p07;
+}
+
+abstract class PaddedRingIndexesHead extends PaddedRingIndexesPad0 {
+	volatile long head;
+}
+
+abstract class PaddedRingIndexesPad1 extends PaddedRingIndexesHead {
+	long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+abstract class PaddedRingIndexesTail extends PaddedRingIndexesPad1 {
+	volatile long tail;
+}
@@ -0,0 +1,247 @@
+package com.abc.ppmimage;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Decodes the body of a large {@link PpmImage.Format#P3} file on several threads, in two passes over memory-mapped
+ * chunks whose boundaries are moved onto whitespace, so no number is split between chunks:
+ * <ol>
+ * <li>every chunk counts its numbers; a prefix sum over the counts gives each chunk the index of its first value
+ * <li>every chunk parses its numbers straight into the image's pixels
+ * </ol>
+ * A pixel whose three values are split between chunks is merged with atomic ORs, all other pixels are plain
+ * stores. Values are taken exactly like {@link PpmReader} takes them. A body with <code>#</code> comments can't be
+ * counted this way (a comment may hold anything), {@link #decode} leaves those to the sequential reader.
+ */
+final class ParallelP3Decoder {
+    // below this the sequential reader is done before the threads would have started
+    static final long MIN_PARALLEL_BODY_BYTES = 8L * 1024 * 1024;
+
+    private static final long MIN_CHUNK_BYTES = 1024 * 1024;
+    private static final long MAX_CHUNK_BYTES = 64L * 1024 * 1024;
+    private static final int SCRATCH_BYTES = 64 * 1024;
+
+    // same as PpmReader, values beyond this are clamped anyway
+    private static final int SATURATED_VALUE = 1_000_000;
+
+    private static final VarHandle PIXELS = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private ParallelP3Decoder() {
+    }
+
+    /** Uses a shared pool of daemon threads, one per processor. */
+    static PpmImage decode(FileChannel channel, long bodyStart, int columnCount, int rowCount) throws IOException {
+        return decode(channel, bodyStart, columnCount, rowCount, CodecThreads.getSharedExecutor(),
+            Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Decodes the pixels starting at bodyStart (right after the header); returns null, and leaves the channel's
+     * position alone, if the body has comments.
+     */
+    static PpmImage decode(FileChannel channel, long bodyStart, int columnCount, int rowCount,
+            ExecutorService executor, int parallelism) throws IOException {
+
+        // about four chunks per thread, so a chunk slower than the others doesn't hold everything up
+        long chunkBytes = (channel.size() - bodyStart) / (4L * parallelism);
+        chunkBytes = Math.max(MIN_CHUNK_BYTES, Math.min(MAX_CHUNK_BYTES, chunkBytes));
+        return decodeInChunks(channel, bodyStart, columnCount, rowCount, executor, chunkBytes);
+    }
+
+    // chunks of chunkBytes (or a little more, up to the next whitespace); tiny chunks give every edge case a try
+    static PpmImage decodeInChunks(FileChannel channel, long bodyStart, int columnCount, int rowCount,
+            ExecutorService executor, long chunkBytes) throws IOException {
+
+        if (chunkBytes < 1) throw new IllegalArgumentException("chunkBytes must be at least 1");
+        long bodyEnd = channel.size();
+        List<Chunk> chunks = new ArrayList<>();
+        long start = bodyStart;
+        while (start < bodyEnd) {
+            long end = alignToWhitespace(channel, Math.min(bodyEnd, start + chunkBytes), bodyEnd);
+            chunks.add(new Chunk(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start)));
+            start = end;
+        }
+
+        try {
+            // pass 1: numbers per chunk
+            List<Future<?>> futures = new ArrayList<>();
+            for (Chunk chunk : chunks) {
+                futures.add(executor.submit(() -> { chunk.count(); return null; }));
+            }
+            awaitAll(futures);
+            long valueCount = 0;
+            for (Chunk chunk : chunks) {
+                if (chunk.hasComment) return null;
+                chunk.firstValueIndex = valueCount;
+                valueCount += chunk.tokenCount;
+            }
+            long requiredValues = 3L * columnCount * rowCount;
+            if (valueCount < requiredValues) throw new EOFException("unexpected end of input");
+
+            // pass 2: values into pixels, anything after the last pixel is ignored like the sequential reader does
+            int[] pixels = new int[columnCount * rowCount];
+            futures.clear();
+            for (Chunk chunk : chunks) {
+                if (chunk.firstValueIndex >= requiredValues) break;
+                futures.add(executor.submit(() -> { chunk.parse(pixels, requiredValues); return null; }));
+            }
+            awaitAll(futures);
+            return PpmImage.wrapIntBits(rowCount, columnCount, pixels);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while decoding");
+        }
+    }
+
+    // moves position forward onto the first whitespace byte at or after it (or the end)
+    private static long alignToWhitespace(FileChannel channel, long position, long end) throws IOException {
+        ByteBuffer probe = ByteBuffer.allocate(256);
+        while (position < end) {
+            probe.clear();
+            int read = channel.read(probe, position);
+            if (read <= 0) return end;
+            for (int i = 0; i < read; i++) {
+                if (isWhitespace(probe.get(i))) return position + i;
+            }
+            position += read;
+        }
+        return end;
+    }
+
+    // reports the failure of the earliest chunk, which is the one the sequential reader would have run into
+    private static void awaitAll(List<Future<?>> futures) throws IOException, InterruptedException {
+        IOException firstFailure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException x) {
+                if (firstFailure != null) continue;
+                Throwable cause = x.getCause();
+                if (cause instanceof IOException) {
+                    firstFailure = (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                } else {
+                    firstFailure = new IOException(cause);
+                }
+            }
+        }
+        if (firstFailure != null) throw firstFailure;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b >= 0 && b <= ' ';
+    }
+
+    private static final class Chunk {
+        private final MappedByteBuffer bytes;
+        long tokenCount;
+        boolean hasComment;
+        long firstValueIndex;
+
+        // parsing state, carried from one scratch load to the next
+        private int[] pixels;
+        private long requiredValues;
+        private long valueIndex;
+        private int pixelIndex;
+        private int component;
+        // the pixel being put together had its first values in an earlier chunk
+        private boolean shared;
+        private int accumulated;
+        private boolean inToken;
+        private boolean negative;
+        private boolean signOnly;
+        private int value;
+
+        Chunk(MappedByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        void count() {
+            ByteBuffer source = bytes.duplicate();
+            byte[] scratch = new byte[SCRATCH_BYTES];
+            long count = 0;
+            boolean inToken = false;
+            while (source.hasRemaining()) {
+                int n = Math.min(scratch.length, source.remaining());
+                source.get(scratch, 0, n);
+                for (int i = 0; i < n; i++) {
+                    byte b = scratch[i];
+                    if (isWhitespace(b)) {
+                        inToken = false;
+                    } else {
+                        if (!inToken) count++;
+                        inToken = true;
+                        if (b == '#') hasComment = true;
+                    }
+                }
+            }
+            tokenCount = count;
+        }
+
+        // values with an index of requiredValues or more are past the last pixel
+        void parse(int[] pixels, long requiredValues) throws IOException {
+            this.pixels = pixels;
+            this.requiredValues = requiredValues;
+            valueIndex = firstValueIndex;
+            pixelIndex = (int) (valueIndex / 3);
+            component = (int) (valueIndex % 3);
+            shared = component != 0;
+
+            ByteBuffer source = bytes.duplicate();
+            byte[] scratch = new byte[SCRATCH_BYTES];
+            while (source.hasRemaining() && valueIndex < requiredValues) {
+                int n = Math.min(scratch.length, source.remaining());
+                source.get(scratch, 0, n);
+                parse(scratch, n);
+            }
+            // the next chunk starts with whitespace (or there is none), so a number at the very end is complete
+            if (inToken && valueIndex < requiredValues) parse(new byte[] { ' ' }, 1);
+            // the rest of this pixel is in the chunks after this one
+            if (component != 0) PIXELS.getAndBitwiseOr(pixels, pixelIndex, accumulated);
+        }
+
+        private void parse(byte[] scratch, int n) throws IOException {
+            for (int i = 0; i < n && valueIndex < requiredValues; i++) {
+                byte b = scratch[i];
+                if (!isWhitespace(b)) {
+                    if (!inToken) {
+                        inToken = true;
+                        value = 0;
+                        negative = b == '-';
+                        signOnly = b == '-' || b == '+';
+                        if (signOnly) continue;
+                    }
+                    if (b < '0' || b > '9') {
+                        throw new IOException("unexpected character '" + (char) (b & 0xFF) + "' in a number");
+                    }
+                    if (value < SATURATED_VALUE) value = value * 10 + (b - '0');
+                    signOnly = false;
+                } else if (inToken) {
+                    inToken = false;
+                    if (signOnly) throw new IOException("expected a number");
+                    accumulated |= Math.max(0, Math.min(negative ? -value : value, 255)) << (16 - 8 * component);
+                    valueIndex++;
+                    if (++component == 3) {
+                        if (shared) {
+                            PIXELS.getAndBitwiseOr(pixels, pixelIndex, accumulated);
+                        } else {
+                            pixels[pixelIndex] = accumulated;
+                        }
+                        pixelIndex++;
+                        component = 0;
+                        accumulated = 0;
+                        shared = false;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.abc.ppmimage;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Encodes an image on several threads, one band of rows at a time, with the digit tables of {@link PpmWriter};
+ * the output is byte-for-byte what {@link PpmWriter} (and for P3 the original printf writer) produces.
+ * {@link PpmImage.Format#P3} bands vary in length, so they are written in order by the calling thread, as many
+ * finished bands per gathering write as are ready. {@link PpmImage.Format#P6} bands have fixed offsets, so each
+ * encoding thread writes its band straight to its place in the file.
+ */
+public final class ParallelPpmEncoder {
+    // pixels per band, a P3 band is at most 16 bytes per pixel
+    private static final int BAND_PIXELS = 32 * 1024;
+
+    // most finished P3 buffers handed to a single gathering write
+    private static final int MAX_GATHER = 16;
+
+    private ParallelPpmEncoder() {
+    }
+
+    /** Uses a shared pool of daemon threads, one per processor. */
+    public static void write(PpmImage image, String filename, PpmImage.Format format)
+            throws FileNotFoundException, IOException {
+
+        write(image, filename, format, CodecThreads.getSharedExecutor(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /** At most parallelism bands are encoded (and held in memory) at a time. */
+    public static void write(PpmImage image, String filename, PpmImage.Format format, ExecutorService executor,
+            int parallelism) throws FileNotFoundException, IOException {
+
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism must be at least 1");
+        try (FileChannel channel = PpmWriter.openChannel(filename)) {
+            byte[] header = PpmWriter.createHeader(format, image.getColumnCount(), image.getRowCount());
+            if (format == PpmImage.Format.P6) {
+                writeBinary(image, channel, header, executor, parallelism);
+            } else {
+                writeAscii(image, channel, header, executor, parallelism);
+            }
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while writing " + filename);
+        }
+    }
+
+    private static void writeAscii(PpmImage image, FileChannel channel, byte[] header, ExecutorService executor,
+            int parallelism) throws IOException, InterruptedException {
+
+        int[] pixels = image.intBitsArray();
+        int bandPixels = getBandPixels(image);
+        Deque<Future<ByteBuffer>> inFlight = new ArrayDeque<>();
+        List<ByteBuffer> group = new ArrayList<>();
+        // the header goes out with the first band, an image has at least one pixel
+        group.add(ByteBuffer.wrap(header));
+        int nextPixel = 0;
+        while (nextPixel < pixels.length || !inFlight.isEmpty()) {
+            // keep parallelism bands encoding ahead of the writes
+            while (nextPixel < pixels.length && inFlight.size() < parallelism) {
+                int offset = nextPixel;
+                int count = Math.min(bandPixels, pixels.length - offset);
+                inFlight.add(executor.submit(() -> encodeAscii(pixels, offset, count)));
+                nextPixel += count;
+            }
+            // the next band in order, and whatever directly follows it that is already done
+            group.add(await(inFlight.poll()));
+            while (group.size() < MAX_GATHER && !inFlight.isEmpty() && inFlight.peek().isDone()) {
+                group.add(await(inFlight.poll()));
+            }
+            writeFully(channel, group.toArray(new ByteBuffer[0]));
+            group.clear();
+        }
+    }
+
+    private static void writeBinary(PpmImage image, FileChannel channel, byte[] header, ExecutorService executor,
+            int parallelism) throws IOException, InterruptedException {
+
+        writeFully(channel, new ByteBuffer[] { ByteBuffer.wrap(header) });
+        int[] pixels = image.intBitsArray();
+        int bandPixels = getBandPixels(image);
+        Deque<Future<ByteBuffer>> inFlight = new ArrayDeque<>();
+        for (int nextPixel = 0; nextPixel < pixels.length || !inFlight.isEmpty(); ) {
+            while (nextPixel < pixels.length && inFlight.size() < parallelism) {
+                int offset = nextPixel;
+                int count = Math.min(bandPixels, pixels.length - offset);
+                long position = header.length + 3L * offset;
+                inFlight.add(executor.submit(() -> {
+                    ByteBuffer band = encodeBinary(pixels, offset, count);
+                    while (band.hasRemaining()) {
+                        channel.write(band, position + band.position());
+                    }
+                    return band;
+                }));
+                nextPixel += count;
+            }
+            await(inFlight.poll());
+        }
+    }
+
+    // whole rows per band, so a band never splits a row
+    private static int getBandPixels(PpmImage image) {
+        int columnCount = image.getColumnCount();
+        return Math.max(1, BAND_PIXELS / columnCount) * columnCount;
+    }
+
+    static ByteBuffer encodeAscii(int[] pixels, int offset, int count) {
+        ByteBuffer band = ByteBuffer.allocate(count * 16);
+        for (int i = offset, end = offset + count; i < end; i++) {
+            PpmWriter.putAsciiPixel(band, pixels[i]);
+        }
+        band.flip();
+        return band;
+    }
+
+    static ByteBuffer encodeBinary(int[] pixels, int offset, int count) {
+        byte[] bytes = new byte[3 * count];
+        for (int i = 0, j = 0; i < count; i++, j += 3) {
+            int bits = pixels[offset + i];
+            bytes[j] = (byte) (bits >> 16);
+            bytes[j + 1] = (byte) (bits >> 8);
+            bytes[j + 2] = (byte) bits;
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer[] buffers) throws IOException {
+        ByteBuffer last = buffers[buffers.length - 1];
+        while (last.hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    private static ByteBuffer await(Future<ByteBuffer> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException x) {
+            Throwable cause = x.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+}
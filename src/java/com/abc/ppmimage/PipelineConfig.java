@@ -0,0 +1,216 @@
+package com.abc.ppmimage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// tuning knobs for executePipeline and friends, setters return this so calls can be chained
+public class PipelineConfig {
+	// which machinery moves the bands through the stages
+	public enum Engine {
+		// a fifo in front of every segment and a fixed set of Worker threads per segment
+		DEDICATED_THREADS,
+		// one work-stealing pool, every band carries its next segment and any idle thread advances it
+		WORK_STEALING
+	}
+
+	// target band size used when rowsPerBand is automatic: 16K packed pixels stay comfortably inside L2
+	private static final int TARGET_PIXELS_PER_BAND = 16 * 1024;
+	private static final int MAX_AUTO_ROWS_PER_BAND = 64;
+
+	// how finished rows become images with the DEDICATED_THREADS engine
+	public enum CompletionMode {
+		// the Sorter thread hands rows to one Assembler thread per image
+		SORTED_ASSEMBLY,
+		// the last segment's workers place rows straight into the image's slots
+		DIRECT_PLACEMENT
+	}
+
+	private int workersPerStage = 4;
+	private int fifoSize = 50;
+	private boolean fuseStages = true;
+	private int rowsPerBand = 0; // 0 means pick from the column count
+	private Engine engine = Engine.DEDICATED_THREADS;
+	private int parallelism = 0; // 0 means one thread per core
+	private PipelineFifo.Kind stageFifoKind = PipelineFifo.Kind.MONITOR;
+	private final Map<Integer, PipelineFifo.Kind> stageFifoKindOverrides = new HashMap<>();
+	private PipelineFifo.Kind assemblerFifoKind = PipelineFifo.Kind.MONITOR;
+	private CompletionMode completionMode = CompletionMode.SORTED_ASSEMBLY;
+	private boolean autoscaling = false;
+	private int maxWorkerThreads = 0; // 0 means the initial worker count
+	private int autoscaleIntervalMillis = 50;
+	private PipelineMetrics metrics = null;
+	private BandPool bandPool = null; // null means every band gets new rows
+
+	public int getWorkersPerStage() {
+		return workersPerStage;
+	}
+
+	public PipelineConfig setWorkersPerStage(int workersPerStage) {
+		if (workersPerStage < 1) throw new IllegalArgumentException("workersPerStage must be at least 1");
+		this.workersPerStage = workersPerStage;
+		return this;
+	}
+
+	public int getFifoSize() {
+		return fifoSize;
+	}
+
+	public PipelineConfig setFifoSize(int fifoSize) {
+		if (fifoSize < 1) throw new IllegalArgumentException("fifoSize must be at least 1");
+		this.fifoSize = fifoSize;
+		return this;
+	}
+
+	public boolean isFuseStages() {
+		return fuseStages;
+	}
+
+	// consecutive row-local stages run as one pass in a single worker instead of hopping through fifos
+	public PipelineConfig setFuseStages(boolean fuseStages) {
+		this.fuseStages = fuseStages;
+		return this;
+	}
+
+	public int getRowsPerBand() {
+		return rowsPerBand;
+	}
+
+	// how many contiguous rows travel through the fifos together, 0 (the default) picks it from the image width
+	public PipelineConfig setRowsPerBand(int rowsPerBand) {
+		if (rowsPerBand < 0) throw new IllegalArgumentException("rowsPerBand must not be negative");
+		this.rowsPerBand = rowsPerBand;
+		return this;
+	}
+
+	// the band size to use for an image with columnCount columns
+	public int getRowsPerBand(int columnCount) {
+		if (rowsPerBand > 0) return rowsPerBand;
+		return Math.max(1, Math.min(MAX_AUTO_ROWS_PER_BAND, TARGET_PIXELS_PER_BAND / columnCount));
+	}
+
+	public Engine getEngine() {
+		return engine;
+	}
+
+	public PipelineConfig setEngine(Engine engine) {
+		if (engine == null) throw new IllegalArgumentException("engine must not be null");
+		this.engine = engine;
+		return this;
+	}
+
+	public int getParallelism() {
+		return parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+	}
+
+	// thread count of the WORK_STEALING engine, 0 (the default) uses one per core
+	public PipelineConfig setParallelism(int parallelism) {
+		if (parallelism < 0) throw new IllegalArgumentException("parallelism must not be negative");
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	// the fifo in front of segment linkIndex, or after the last segment when linkIndex is the segment count
+	public PipelineFifo.Kind getStageFifoKind(int linkIndex) {
+		PipelineFifo.Kind kind = stageFifoKindOverrides.get(linkIndex);
+		return kind != null ? kind : stageFifoKind;
+	}
+
+	// every fifo around the stages, these have many adding and removing threads so SPSC can't be used
+	public PipelineConfig setStageFifoKind(PipelineFifo.Kind kind) {
+		if (kind == null) throw new IllegalArgumentException("kind must not be null");
+		stageFifoKind = kind;
+		stageFifoKindOverrides.clear();
+		return this;
+	}
+
+	public PipelineConfig setStageFifoKind(int linkIndex, PipelineFifo.Kind kind) {
+		if (kind == null) throw new IllegalArgumentException("kind must not be null");
+		if (linkIndex < 0) throw new IllegalArgumentException("linkIndex must not be negative");
+		stageFifoKindOverrides.put(linkIndex, kind);
+		return this;
+	}
+
+	public PipelineFifo.Kind getAssemblerFifoKind() {
+		return assemblerFifoKind;
+	}
+
+	// the per-image fifos from the Sorter to the assemblers, one thread on each side so SPSC fits
+	public PipelineConfig setAssemblerFifoKind(PipelineFifo.Kind kind) {
+		if (kind == null) throw new IllegalArgumentException("kind must not be null");
+		assemblerFifoKind = kind;
+		return this;
+	}
+
+	public CompletionMode getCompletionMode() {
+		return completionMode;
+	}
+
+	public PipelineConfig setCompletionMode(CompletionMode completionMode) {
+		if (completionMode == null) throw new IllegalArgumentException("completionMode must not be null");
+		this.completionMode = completionMode;
+		return this;
+	}
+
+	public boolean isAutoscaling() {
+		return autoscaling;
+	}
+
+	// with autoscaling workersPerStage is only the starting point, workers move to where the fifos back up
+	public PipelineConfig setAutoscaling(boolean autoscaling) {
+		this.autoscaling = autoscaling;
+		return this;
+	}
+
+	public int getMaxWorkerThreads() {
+		return maxWorkerThreads;
+	}
+
+	// the autoscaler's budget of active workers over all stages, 0 (the default) keeps the initial total
+	public PipelineConfig setMaxWorkerThreads(int maxWorkerThreads) {
+		if (maxWorkerThreads < 0) throw new IllegalArgumentException("maxWorkerThreads must not be negative");
+		this.maxWorkerThreads = maxWorkerThreads;
+		return this;
+	}
+
+	public int getAutoscaleIntervalMillis() {
+		return autoscaleIntervalMillis;
+	}
+
+	public PipelineConfig setAutoscaleIntervalMillis(int autoscaleIntervalMillis) {
+		if (autoscaleIntervalMillis < 1) throw new IllegalArgumentException("autoscaleIntervalMillis must be at least 1");
+		this.autoscaleIntervalMillis = autoscaleIntervalMillis;
+		return this;
+	}
+
+	public PipelineMetrics getMetrics() {
+		return metrics;
+	}
+
+	// the run records into metrics and stops it at the end, null (the default) records nothing; use a new
+	// PipelineMetrics per run
+	public PipelineConfig setMetrics(PipelineMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	public boolean isRecycleBuffers() {
+		return bandPool != null;
+	}
+
+	// bands travel in pooled buffers that go back to the pool once their pixels reach the image, so a warm pipeline
+	// allocates next to nothing per band; the pool belongs to the config, runs sharing the config share it. Only
+	// for row-local stages on the DEDICATED_THREADS engine, executePipeline and executePipelineAsync check that;
+	// executeStreamingPipeline ignores it
+	public PipelineConfig setRecycleBuffers(boolean recycleBuffers) {
+		if (!recycleBuffers) {
+			bandPool = null;
+		} else if (bandPool == null) {
+			bandPool = new BandPool();
+		}
+		return this;
+	}
+
+	BandPool getBandPool() {
+		return bandPool;
+	}
+}
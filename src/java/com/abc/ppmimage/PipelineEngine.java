@@ -0,0 +1,346 @@
+package com.abc.ppmimage;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.abc.pp.fifo.deluxe_bounded.PPDeluxeBoundedFifo.AddStatus;
+
+// a resident pipeline: the worker threads and their fifo are created once and then serve any number of jobs, each
+// an image with a stage chain of its own, so a job pays for its bands and nothing else; submit() may be called
+// from many threads at once and the bands of all jobs in flight are interleaved in the one fifo
+//
+// a worker takes a band, runs it through the job's segments one after the other and places the finished rows in
+// the job's image; a band going into a segment that starts with a stage that isn't row-local goes through the
+// job's HaloGate for that segment, and the worker that completes a neighbourhood carries on with every band that
+// became ready; the thread that places a job's last row completes its future
+//
+// the fifo is bounded, so submit() blocks while it is full, which slows the clients down to what the workers can
+// do; geometric stages need whole images and are refused, use PpmImageDemo.executePipeline for those
+//
+// process() streams a job instead: the calling thread decodes the bands as the input comes in and writes the
+// finished rows out in order as soon as the rows before them are done
+public class PipelineEngine {
+	// what a streaming job's queue gets when the job failed
+	private static final PipelineWork FAILED = new PipelineWork(new PpmImage.Row[0], 0, -1, 0);
+
+	private final PipelineConfig config;
+	private final PipelineFifo<PipelineWork> input;
+	private final Thread[] workers;
+	// by job id, which the job's bands carry as their imageIndex
+	private final Map<Integer, Job> jobs = new ConcurrentHashMap<>();
+	private final AtomicInteger nextJobId = new AtomicInteger();
+	private final AtomicInteger completedCount = new AtomicInteger();
+	// guarded by this
+	private boolean shutdown;
+	private int inFlightCount;
+
+	// config.getParallelism() workers on a fifo of config.getStageFifoKind(0) with config.getFifoSize() slots;
+	// with config.isRecycleBuffers() the jobs whose stages are all row-local travel in recycled band buffers
+	public PipelineEngine(PipelineConfig config) {
+		PipelineFifo.Kind kind = config.getStageFifoKind(0);
+		if (kind == PipelineFifo.Kind.LOCK_FREE_SPSC) {
+			throw new IllegalArgumentException("the engine's fifo has more than one thread on a side, " + kind +
+				" can't be used there");
+		}
+		this.config = config;
+		input = PipelineFifo.create(kind, config.getFifoSize(), PipelineWork.class);
+		workers = new Thread[config.getParallelism()];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(this::runWork, getClass().getSimpleName() + " worker " + i);
+			workers[i].start();
+		}
+	}
+
+	// the future completes with the image run through the stages, or exceptionally if a stage failed; throws
+	// RejectedExecutionException once shutdown() was called
+	public CompletableFuture<PpmImage> submit(PpmImage image, PipelineStage[] pipeline) throws InterruptedException {
+		int rowCount = image.getRowCount();
+		int columnCount = image.getColumnCount();
+		Job job = new Job(nextJobId.getAndIncrement(), rowCount, columnCount,
+			StageNetwork.planSegments(pipeline, config.isFuseStages()), useBandPool(pipeline), false);
+		register(job);
+		int rowsPerBand = config.getRowsPerBand(columnCount);
+		BandPool pool = job.recycled ? config.getBandPool() : null;
+		try {
+			for (int first = 0; first < rowCount; first += rowsPerBand) {
+				int count = Math.min(rowsPerBand, rowCount - first);
+				PipelineWork work;
+				if (pool != null) {
+					work = pool.acquire(first, job.id, rowCount, count, columnCount);
+					System.arraycopy(image.intBitsArray(), first * columnCount, work.pixels, 0, count * columnCount);
+				} else {
+					PpmImage.Row[] band = new PpmImage.Row[count];
+					for (int i = 0; i < count; i++) {
+						band[i] = image.getRowAt(first + i);
+					}
+					work = new PipelineWork(band, first, job.id, rowCount);
+				}
+				addToInput(work);
+			}
+		} catch (InterruptedException x) {
+			// the bands already handed out are still processed, but the job can't complete any more
+			fail(job, x);
+			throw x;
+		}
+		return job.future;
+	}
+
+	// runs the image coming from reader (its header read already) through the stages and writes the result to
+	// writer, header included, both on the calling thread; at most maxBandsInFlight bands of the job are between
+	// the two (a few more if the job has several halo segments, a band in a gate needs the one after it), so a
+	// client that is slow to send or to receive holds up its own job and never the workers; the writer is flushed
+	// but not closed
+	public void process(PpmReader reader, PpmWriter writer, PipelineStage[] pipeline, int maxBandsInFlight)
+			throws IOException, InterruptedException {
+
+		int rowCount = reader.getRowCount();
+		int columnCount = reader.getColumnCount();
+		PipelineStage[][] segments = StageNetwork.planSegments(pipeline, config.isFuseStages());
+		Job job = new Job(nextJobId.getAndIncrement(), rowCount, columnCount, segments, useBandPool(pipeline), true);
+		register(job);
+		int bandLimit = Math.max(maxBandsInFlight, segments.length + 1);
+		int rowsPerBand = config.getRowsPerBand(columnCount);
+		BandPool pool = job.recycled ? config.getBandPool() : null;
+		// bands that are done but not next in line yet, by first row
+		Map<Integer, PipelineWork> pending = new HashMap<>();
+		int nextReadRow = 0;
+		int nextWriteRow = 0;
+		int bandsInFlight = 0;
+		try {
+			writer.writeHeader(columnCount, rowCount);
+			while (nextWriteRow < rowCount) {
+				PipelineWork done = job.finished.poll();
+				if (done == null) {
+					if (nextReadRow < rowCount && bandsInFlight < bandLimit) {
+						int count = Math.min(rowsPerBand, rowCount - nextReadRow);
+						addToInput(readBand(reader, job, pool, nextReadRow, count));
+						nextReadRow += count;
+						bandsInFlight++;
+						continue;
+					}
+					done = job.finished.take();
+				}
+				if (done == FAILED) throw new IOException("processing failed", job.failure);
+				pending.put(done.firstRowIndex, done);
+				for (PipelineWork next; (next = pending.remove(nextWriteRow)) != null; ) {
+					nextWriteRow += next.getRowCount();
+					writeBand(writer, next);
+					bandsInFlight--;
+				}
+			}
+			writer.flush();
+		} catch (IOException | InterruptedException | RuntimeException x) {
+			fail(job, x);
+			throw x;
+		}
+	}
+
+	private void register(Job job) {
+		synchronized (this) {
+			if (shutdown) throw new RejectedExecutionException("the engine has been shut down");
+			inFlightCount++;
+		}
+		jobs.put(job.id, job);
+	}
+
+	private void addToInput(PipelineWork work) throws InterruptedException {
+		if (input.add(work) == AddStatus.NO_MORE_ADDS_ALLOWED) {
+			throw new IllegalStateException("illegal state");
+		}
+	}
+
+	// the whole band decoded into one array, the rows are views of it, or into an envelope from the pool
+	private static PipelineWork readBand(PpmReader reader, Job job, BandPool pool, int firstRowIndex, int count)
+			throws IOException {
+
+		int columnCount = reader.getColumnCount();
+		if (pool != null) {
+			PipelineWork work = pool.acquire(firstRowIndex, job.id, reader.getRowCount(), count, columnCount);
+			reader.readPixels(work.pixels, 0, count * columnCount);
+			return work;
+		}
+		int[] intBits = new int[count * columnCount];
+		reader.readPixels(intBits, 0, intBits.length);
+		PpmImage.Row[] band = new PpmImage.Row[count];
+		for (int i = 0; i < count; i++) {
+			band[i] = new PpmImage.Row(intBits, i * columnCount, columnCount);
+		}
+		return new PipelineWork(band, firstRowIndex, job.id, reader.getRowCount());
+	}
+
+	private static void writeBand(PpmWriter writer, PipelineWork work) throws IOException {
+		if (work.isRecycled()) {
+			writer.writePixels(work.pixels, 0, work.getRowCount() * work.columnCount);
+			work.recycle();
+			return;
+		}
+		for (PpmImage.Row row : work.rows) {
+			writer.writeRow(row);
+		}
+	}
+
+	// stops taking jobs, waits for every job in flight to complete, then stops the workers
+	public void shutdown() throws InterruptedException {
+		synchronized (this) {
+			shutdown = true;
+			while (inFlightCount > 0) {
+				wait();
+			}
+		}
+		input.indicateNoMoreAddsAllowed();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+	}
+
+	public synchronized boolean isShutdown() {
+		return shutdown;
+	}
+
+	// jobs submitted that haven't completed yet
+	public synchronized int getInFlightCount() {
+		return inFlightCount;
+	}
+
+	public int getCompletedCount() {
+		return completedCount.get();
+	}
+
+	private boolean useBandPool(PipelineStage[] pipeline) {
+		if (!config.isRecycleBuffers()) return false;
+		for (PipelineStage stage : pipeline) {
+			if (!stage.isRowLocal()) return false;
+		}
+		return true;
+	}
+
+	private void runWork() {
+		ThreadLog.starting();
+		try {
+			while (true) {
+				PipelineWork work = input.removeOrNull();
+				if (work == null) return;
+				Job job = jobs.get(work.imageIndex);
+				// the bands of a failed job are dropped
+				if (job == null) continue;
+				try {
+					advance(job, work, false);
+				} catch (RuntimeException x) {
+					fail(job, x);
+				}
+			}
+		} catch (InterruptedException x) {
+			// ignore
+		} finally {
+			ThreadLog.finished();
+		}
+	}
+
+	// the band through the rest of the job's segments, then into the job's image
+	private void advance(Job job, PipelineWork work, boolean admitted) {
+		while (work.nextSegmentIndex < job.segments.length) {
+			HaloGate gate = job.gates[work.nextSegmentIndex];
+			if (gate != null && !admitted) {
+				// the band may have to wait for its neighbours, or complete the neighbourhood of others
+				for (PipelineWork ready : gate.arrive(work)) {
+					advance(job, ready, true);
+				}
+				return;
+			}
+			work.process(job.segments[work.nextSegmentIndex++]);
+			admitted = false;
+		}
+		if (job.place(work)) {
+			jobs.remove(job.id);
+			finished();
+		}
+	}
+
+	private void fail(Job job, Throwable x) {
+		if (job.fail(x)) {
+			jobs.remove(job.id);
+			finished();
+		}
+	}
+
+	private synchronized void finished() {
+		completedCount.incrementAndGet();
+		inFlightCount--;
+		notifyAll();
+	}
+
+	// one submitted image: its segments and gates, and the rows placed so far; a streaming job doesn't keep rows,
+	// its finished bands go to the queue the calling thread writes them out from
+	private static final class Job {
+		final int id;
+		final PipelineStage[][] segments;
+		final HaloGate[] gates;
+		final boolean recycled;
+		final CompletableFuture<PpmImage> future = new CompletableFuture<>();
+		final BlockingQueue<PipelineWork> finished;
+		volatile Throwable failure;
+		private final int rowCount;
+		private final int columnCount;
+		// the rows of bands that carry rows, or the pixels of recycled bands
+		private final PpmImage.Row[] slots;
+		private final int[] pixels;
+		private final AtomicInteger remainingRows;
+		private final AtomicBoolean done = new AtomicBoolean();
+
+		Job(int id, int rowCount, int columnCount, PipelineStage[][] segments, boolean recycled, boolean streaming) {
+			this.id = id;
+			this.segments = segments;
+			gates = new HaloGate[segments.length];
+			for (int i = 0; i < segments.length; i++) {
+				gates[i] = HaloGate.forSegment(segments[i]);
+			}
+			this.recycled = recycled;
+			this.rowCount = rowCount;
+			this.columnCount = columnCount;
+			finished = streaming ? new LinkedBlockingQueue<>() : null;
+			slots = !streaming && !recycled ? new PpmImage.Row[rowCount] : null;
+			pixels = !streaming && recycled ? new int[rowCount * columnCount] : null;
+			remainingRows = new AtomicInteger(rowCount);
+		}
+
+		// true if this was the job's last band and the job is now done
+		boolean place(PipelineWork work) {
+			int count = work.getRowCount();
+			if (finished != null) {
+				// the band's rows are written out, and the band recycled, by the streaming caller
+				finished.add(work);
+			} else if (work.isRecycled()) {
+				work.copyPixelsTo(pixels);
+				work.recycle();
+			} else {
+				System.arraycopy(work.rows, 0, slots, work.firstRowIndex, count);
+			}
+			// the rows written above happen-before the decrement, so the last decrement sees every row
+			if (remainingRows.addAndGet(-count) != 0 || !done.compareAndSet(false, true)) return false;
+			try {
+				future.complete(finished != null ? null : pixels != null ?
+					PpmImage.wrapIntBits(rowCount, columnCount, pixels) : new PpmImage(slots));
+			} catch (RuntimeException x) {
+				future.completeExceptionally(x);
+			}
+			return true;
+		}
+
+		// true if the job wasn't done yet
+		boolean fail(Throwable x) {
+			if (!done.compareAndSet(false, true)) return false;
+			failure = x;
+			future.completeExceptionally(x);
+			if (finished != null) finished.add(FAILED);
+			return true;
+		}
+	}
+}
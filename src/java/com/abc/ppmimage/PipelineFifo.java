@@ -0,0 +1,85 @@
+package com.abc.ppmimage;
+
+import com.abc.pp.fifo.deluxe_bounded.PPDeluxeBoundedFifo.AddStatus;
+
+// the part of PPDeluxeBoundedFifo that the pipeline uses, so that every link can pick its implementation;
+// add blocks while full and returns NO_MORE_ADDS_ALLOWED once indicateNoMoreAddsAllowed was called, remove blocks
+// while empty and returns EMPTY_AND_NO_MORE_ADDS_ALLOWED once adds are over and everything was removed
+public interface PipelineFifo<T> extends WorkSink<T> {
+	enum RemoveStatus {
+		SUCCESS, EMPTY_AND_NO_MORE_ADDS_ALLOWED
+	}
+
+	final class RemoveSingleResult<T> {
+		@SuppressWarnings("rawtypes")
+		private static final RemoveSingleResult EMPTY_AND_NO_MORE_ADDS_ALLOWED =
+			new RemoveSingleResult<>(RemoveStatus.EMPTY_AND_NO_MORE_ADDS_ALLOWED, null);
+
+		private final RemoveStatus status;
+		private final T item;
+
+		private RemoveSingleResult(RemoveStatus status, T item) {
+			this.status = status;
+			this.item = item;
+		}
+
+		public static <T> RemoveSingleResult<T> createSuccess(T item) {
+			return new RemoveSingleResult<>(RemoveStatus.SUCCESS, item);
+		}
+
+		@SuppressWarnings("unchecked")
+		public static <T> RemoveSingleResult<T> createEmptyAndNoMoreAddsAllowed() {
+			return EMPTY_AND_NO_MORE_ADDS_ALLOWED;
+		}
+
+		public RemoveStatus getStatus() {
+			return status;
+		}
+
+		public T getItem() {
+			return item;
+		}
+	}
+
+	// the implementations a link can use
+	enum Kind {
+		// CircularArrayPPDeluxeBoundedFifo, built on a monitor
+		MONITOR,
+		// lock-free ring buffer, any number of adding and removing threads
+		LOCK_FREE_MPMC,
+		// lock-free ring buffer for exactly one adding and one removing thread
+		LOCK_FREE_SPSC
+	}
+
+	static <T> PipelineFifo<T> create(Kind kind, int capacity, Class<T> itemType) {
+		switch (kind) {
+			case MONITOR:
+				return new MonitorPipelineFifo<>(capacity, itemType);
+			case LOCK_FREE_MPMC:
+				return new LockFreeMpmcPipelineFifo<>(capacity);
+			case LOCK_FREE_SPSC:
+				return new LockFreeSpscPipelineFifo<>(capacity);
+			default:
+				throw new IllegalArgumentException("unknown kind: " + kind);
+		}
+	}
+
+	int getCapacity();
+
+	// a snapshot, may already be stale when it is returned
+	int getCount();
+
+	@Override
+	AddStatus add(T item) throws InterruptedException;
+
+	RemoveSingleResult<T> remove() throws InterruptedException;
+
+	// remove without a result object: the item, or null once adds are over and everything was removed (items are
+	// never null); the lock-free fifos allocate nothing on this path
+	default T removeOrNull() throws InterruptedException {
+		RemoveSingleResult<T> result = remove();
+		return result.getStatus() == RemoveStatus.SUCCESS ? result.getItem() : null;
+	}
+
+	void indicateNoMoreAddsAllowed() throws InterruptedException;
+}
@@ -0,0 +1,153 @@
+package com.abc.ppmimage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+// a front end for a PipelineEngine on the loopback interface: POST /process?stages=FLIP_HORIZONTALLY,GRAYSCALE
+// with a PPM image as the body answers with the image run through the stages, in the format given by
+// &format=P3|P6 or else the request's; the rows are decoded as the body comes in and the processed rows go back
+// as soon as the rows before them are done (see PipelineEngine.process), so neither side needs the whole image
+//
+// at most maxConcurrentJobs requests are processed at once, each on a thread of its own, with at most
+// maxBandsInFlight of its bands in the engine; further requests wait their turn with their bodies unread, so the
+// clients sending them are held up by TCP flow control, and a client that reads its response slowly only holds up
+// its own job
+//
+// errors found before the response starts get a 4xx/5xx status with a message, a job that fails later can only
+// end the response early, which the client sees as fewer pixels than its header promises; geometric stages need
+// whole images and are refused
+public class PipelineHttpServer {
+	public static final String PATH = "/process";
+
+	private final PipelineEngine engine;
+	private final int maxBandsInFlight;
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	// port 0 takes any free port, see getPort()
+	public PipelineHttpServer(PipelineEngine engine, int port, int maxConcurrentJobs, int maxBandsInFlight)
+			throws IOException {
+
+		if (maxConcurrentJobs < 1 || maxBandsInFlight < 1) {
+			throw new IllegalArgumentException("maxConcurrentJobs and maxBandsInFlight must be at least 1");
+		}
+		this.engine = engine;
+		this.maxBandsInFlight = maxBandsInFlight;
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		executor = Executors.newFixedThreadPool(maxConcurrentJobs);
+		server.setExecutor(executor);
+		server.createContext(PATH, this::handle);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	// stops accepting, gives the requests being processed up to delaySeconds to finish and then closes every
+	// connection; the engine is left running
+	public void stop(int delaySeconds) {
+		server.stop(delaySeconds);
+		executor.shutdown();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				sendError(exchange, 405, "only POST is supported");
+				return;
+			}
+			Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+			PipelineStage[] pipeline;
+			PpmImage.Format format = null;
+			try {
+				pipeline = parseStages(query.getOrDefault("stages", ""));
+				if (query.containsKey("format")) format = PpmImage.Format.valueOf(query.get("format"));
+			} catch (IllegalArgumentException x) {
+				sendError(exchange, 400, x.getMessage());
+				return;
+			}
+			PpmReader reader = new PpmReader(Channels.newChannel(exchange.getRequestBody()));
+			try {
+				reader.readHeader();
+			} catch (IOException x) {
+				sendError(exchange, 400, x.getMessage());
+				return;
+			}
+			if (engine.isShutdown()) {
+				sendError(exchange, 503, "the engine has been shut down");
+				return;
+			}
+
+			exchange.getResponseHeaders().set("Content-Type", "image/x-portable-pixmap");
+			// 0: chunked, the rows go out as they are done
+			exchange.sendResponseHeaders(200, 0);
+			PpmWriter writer = new PpmWriter(Channels.newChannel(exchange.getResponseBody()),
+				format != null ? format : reader.getFormat());
+			try {
+				engine.process(reader, writer, pipeline, maxBandsInFlight);
+			} catch (InterruptedException x) {
+				Thread.currentThread().interrupt();
+			} catch (IOException | RejectedExecutionException x) {
+				// too late for a status, the response just ends
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	// comma-separated PipelineStage names, in the order they are applied
+	static PipelineStage[] parseStages(String stages) {
+		if (stages.isEmpty()) return new PipelineStage[0];
+		String[] names = stages.split(",");
+		PipelineStage[] pipeline = new PipelineStage[names.length];
+		for (int i = 0; i < names.length; i++) {
+			try {
+				pipeline[i] = PipelineStage.valueOf(names[i].trim());
+			} catch (IllegalArgumentException x) {
+				throw new IllegalArgumentException("unknown stage: " + names[i]);
+			}
+			if (pipeline[i].isGeometric()) {
+				throw new IllegalArgumentException(pipeline[i] + " needs the whole image, it can't be streamed");
+			}
+		}
+		return pipeline;
+	}
+
+	private static Map<String, String> parseQuery(String rawQuery) {
+		Map<String, String> query = new HashMap<>();
+		if (rawQuery == null) return query;
+		for (String parameter : rawQuery.split("&")) {
+			int equals = parameter.indexOf('=');
+			if (equals < 0) continue;
+			query.put(URLDecoder.decode(parameter.substring(0, equals), StandardCharsets.UTF_8),
+				URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8));
+		}
+		return query;
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+		byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+}
@@ -0,0 +1,386 @@
+package com.abc.ppmimage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.abc.thread.ThreadTools;
+
+// instrumentation for one pipeline run, set it on the PipelineConfig to have the run record into it:
+// - per stage: work items and rows handled, time busy with them and time blocked on the fifos around them
+// - end-to-end latency of every row, from the producer creating its band to the band reaching its image
+// - the depth of every fifo, sampled by a thread of its own
+// recording only adds to striped counters (LongAdder), so the hot path neither allocates nor contends on a lock;
+// the sampler keeps the most recent samples of each fifo in a preallocated ring
+public class PipelineMetrics {
+	private static final int MAX_SAMPLES_PER_FIFO = 1024;
+
+	// the counters of one stage, shared by all of the threads running that stage
+	public static final class StageRecorder {
+		private final String name;
+		private final LongAdder itemCount = new LongAdder();
+		private final LongAdder rowCount = new LongAdder();
+		private final LongAdder busyNanos = new LongAdder();
+		private final LongAdder blockedNanos = new LongAdder();
+
+		StageRecorder(String name) {
+			this.name = name;
+		}
+
+		// one work item, blockedNanos is the time spent waiting to take it in and to hand it on
+		public void record(int rows, long busyNanos, long blockedNanos) {
+			itemCount.increment();
+			rowCount.add(rows);
+			this.busyNanos.add(busyNanos);
+			this.blockedNanos.add(blockedNanos);
+		}
+	}
+
+	// bucket i counts the latencies in [2^i, 2^(i+1)) nanoseconds
+	private static final class LatencyHistogram {
+		private final LongAdder[] buckets = new LongAdder[64];
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+		LatencyHistogram() {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		void record(long nanos, int times) {
+			nanos = Math.max(1, nanos);
+			buckets[63 - Long.numberOfLeadingZeros(nanos)].add(times);
+			count.add(times);
+			totalNanos.add(nanos * times);
+			maxNanos.accumulate(nanos);
+		}
+	}
+
+	// the most recent depths of one fifo, only the sampler thread writes them
+	private static final class DepthSeries {
+		private final String name;
+		private final PipelineFifo<?> fifo;
+		private final long[] offsetNanos = new long[MAX_SAMPLES_PER_FIFO];
+		private final int[] depths = new int[MAX_SAMPLES_PER_FIFO];
+		private long sampleCount;
+		private int maxDepth;
+		private long totalDepth;
+
+		DepthSeries(String name, PipelineFifo<?> fifo) {
+			this.name = name;
+			this.fifo = fifo;
+		}
+
+		synchronized void sample(long offset) {
+			int depth = fifo.getCount();
+			int slot = (int) (sampleCount++ % MAX_SAMPLES_PER_FIFO);
+			offsetNanos[slot] = offset;
+			depths[slot] = depth;
+			maxDepth = Math.max(maxDepth, depth);
+			totalDepth += depth;
+		}
+
+		synchronized FifoDepths snapshot() {
+			int retained = (int) Math.min(sampleCount, MAX_SAMPLES_PER_FIFO);
+			long[] times = new long[retained];
+			int[] values = new int[retained];
+			for (int i = 0; i < retained; i++) {
+				int slot = (int) ((sampleCount - retained + i) % MAX_SAMPLES_PER_FIFO);
+				times[i] = offsetNanos[slot] / 1_000_000;
+				values[i] = depths[slot];
+			}
+			double meanDepth = sampleCount > 0 ? (double) totalDepth / sampleCount : 0.0;
+			return new FifoDepths(name, fifo.getCapacity(), sampleCount, maxDepth, meanDepth, times, values);
+		}
+	}
+
+	private final long startNanos;
+	private final int sampleIntervalMillis;
+	private final Map<String, StageRecorder> stages;
+	private final List<StageRecorder> stageOrder;
+	private final LatencyHistogram rowLatency;
+	private final List<DepthSeries> fifoDepths;
+	private Thread sampler;
+	private volatile boolean sampling;
+	private volatile long stopNanos;
+
+	public PipelineMetrics() {
+		this(10);
+	}
+
+	public PipelineMetrics(int sampleIntervalMillis) {
+		if (sampleIntervalMillis < 1) throw new IllegalArgumentException("sampleIntervalMillis must be at least 1");
+		this.sampleIntervalMillis = sampleIntervalMillis;
+		startNanos = System.nanoTime();
+		stages = new ConcurrentHashMap<>();
+		stageOrder = Collections.synchronizedList(new ArrayList<>());
+		rowLatency = new LatencyHistogram();
+		fifoDepths = Collections.synchronizedList(new ArrayList<>());
+	}
+
+	// the recorder every thread of the named stage shares, look it up once and keep it
+	public StageRecorder stage(String name) {
+		return stages.computeIfAbsent(name, n -> {
+			StageRecorder recorder = new StageRecorder(n);
+			stageOrder.add(recorder);
+			return recorder;
+		});
+	}
+
+	// called once per band as it reaches its image, every row of the band had the same trip
+	public void recordRowLatency(PipelineWork work) {
+		rowLatency.record(System.nanoTime() - work.createdNanos, work.getRowCount());
+	}
+
+	// fifos registered after sampling started are picked up by the next sample
+	public void addFifo(String name, PipelineFifo<?> fifo) {
+		fifoDepths.add(new DepthSeries(name, fifo));
+	}
+
+	public synchronized void startSampling() {
+		if (sampler != null) throw new IllegalStateException("sampling has already been started");
+		sampling = true;
+		sampler = new Thread(this::runSampling, getClass().getSimpleName() + " sampler");
+		sampler.setDaemon(true);
+		sampler.start();
+	}
+
+	private void runSampling() {
+		try {
+			while (sampling) {
+				long offset = System.nanoTime() - startNanos;
+				synchronized (fifoDepths) {
+					for (DepthSeries series : fifoDepths) {
+						series.sample(offset);
+					}
+				}
+				Thread.sleep(sampleIntervalMillis);
+			}
+		} catch (InterruptedException x) {
+			// ignore
+		}
+	}
+
+	// ends the run: stops the sampler and fixes the elapsed time the rates are based on
+	public void stop() throws InterruptedException {
+		Thread samplerToJoin = stopWithoutWaiting();
+		if (samplerToJoin != null) samplerToJoin.join();
+	}
+
+	// for threads that must not block, the sampler may still take one more sample
+	synchronized Thread stopWithoutWaiting() {
+		if (stopNanos == 0) stopNanos = System.nanoTime();
+		sampling = false;
+		if (sampler != null) sampler.interrupt();
+		return sampler;
+	}
+
+	// can be taken while the run is still going, the counters are then only approximately consistent
+	public Snapshot snapshot() {
+		long endNanos = stopNanos != 0 ? stopNanos : System.nanoTime();
+		double elapsedSeconds = Math.max(1, endNanos - startNanos) / 1e9;
+
+		List<StageStats> stageStats = new ArrayList<>();
+		synchronized (stageOrder) {
+			for (StageRecorder recorder : stageOrder) {
+				long rows = recorder.rowCount.sum();
+				stageStats.add(new StageStats(recorder.name, recorder.itemCount.sum(), rows,
+					recorder.busyNanos.sum() / 1_000_000, recorder.blockedNanos.sum() / 1_000_000,
+					rows / elapsedSeconds));
+			}
+		}
+
+		long[] bucketCounts = new long[rowLatency.buckets.length];
+		for (int i = 0; i < bucketCounts.length; i++) {
+			bucketCounts[i] = rowLatency.buckets[i].sum();
+		}
+		LatencyStats latency = new LatencyStats(rowLatency.count.sum(), rowLatency.totalNanos.sum(),
+			rowLatency.maxNanos.get(), bucketCounts);
+
+		List<FifoDepths> depths = new ArrayList<>();
+		synchronized (fifoDepths) {
+			for (DepthSeries series : fifoDepths) {
+				depths.add(series.snapshot());
+			}
+		}
+		return new Snapshot((long) (elapsedSeconds * 1000), stageStats, latency, depths);
+	}
+
+	public static final class StageStats {
+		public final String name;
+		public final long itemCount;
+		public final long rowCount;
+		public final long busyMillis;
+		public final long blockedMillis;
+		public final double rowsPerSecond;
+
+		StageStats(String name, long itemCount, long rowCount, long busyMillis, long blockedMillis,
+				double rowsPerSecond) {
+
+			this.name = name;
+			this.itemCount = itemCount;
+			this.rowCount = rowCount;
+			this.busyMillis = busyMillis;
+			this.blockedMillis = blockedMillis;
+			this.rowsPerSecond = rowsPerSecond;
+		}
+	}
+
+	public static final class LatencyStats {
+		public final long count;
+		public final long totalNanos;
+		public final long maxNanos;
+		private final long[] bucketCounts;
+
+		LatencyStats(long count, long totalNanos, long maxNanos, long[] bucketCounts) {
+			this.count = count;
+			this.totalNanos = totalNanos;
+			this.maxNanos = maxNanos;
+			this.bucketCounts = bucketCounts;
+		}
+
+		public double getMeanNanos() {
+			return count > 0 ? (double) totalNanos / count : 0.0;
+		}
+
+		// the upper bound of the bucket the percentile falls into, so at most 2x above the real value
+		public long getPercentileNanos(double percentile) {
+			if (count == 0) return 0;
+			long rank = (long) Math.ceil(percentile / 100.0 * count);
+			long seen = 0;
+			for (int i = 0; i < bucketCounts.length; i++) {
+				seen += bucketCounts[i];
+				if (seen >= rank) return Math.min(maxNanos, (1L << (i + 1)) - 1);
+			}
+			return maxNanos;
+		}
+
+		// rows per bucket, bucket i counts the latencies in [2^i, 2^(i+1)) nanoseconds
+		public long[] getBucketCounts() {
+			return bucketCounts.clone();
+		}
+	}
+
+	public static final class FifoDepths {
+		public final String name;
+		public final int capacity;
+		public final long sampleCount;
+		public final int maxDepth;
+		public final double meanDepth;
+		private final long[] offsetMillis;
+		private final int[] depths;
+
+		FifoDepths(String name, int capacity, long sampleCount, int maxDepth, double meanDepth, long[] offsetMillis,
+				int[] depths) {
+
+			this.name = name;
+			this.capacity = capacity;
+			this.sampleCount = sampleCount;
+			this.maxDepth = maxDepth;
+			this.meanDepth = meanDepth;
+			this.offsetMillis = offsetMillis;
+			this.depths = depths;
+		}
+
+		// the most recent samples, when each was taken in milliseconds since the run started
+		public long[] getOffsetMillis() {
+			return offsetMillis.clone();
+		}
+
+		public int[] getDepths() {
+			return depths.clone();
+		}
+	}
+
+	public static final class Snapshot {
+		public final long elapsedMillis;
+		public final List<StageStats> stages;
+		public final LatencyStats rowLatency;
+		public final List<FifoDepths> fifoDepths;
+
+		Snapshot(long elapsedMillis, List<StageStats> stages, LatencyStats rowLatency, List<FifoDepths> fifoDepths) {
+			this.elapsedMillis = elapsedMillis;
+			this.stages = Collections.unmodifiableList(stages);
+			this.rowLatency = rowLatency;
+			this.fifoDepths = Collections.unmodifiableList(fifoDepths);
+		}
+
+		public String toJson() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("{\"elapsedMillis\":").append(elapsedMillis).append(",\"stages\":[");
+			for (int i = 0; i < stages.size(); i++) {
+				StageStats stage = stages.get(i);
+				if (i > 0) sb.append(',');
+				sb.append("{\"name\":");
+				appendString(sb, stage.name);
+				sb.append(",\"items\":").append(stage.itemCount)
+					.append(",\"rows\":").append(stage.rowCount)
+					.append(",\"busyMillis\":").append(stage.busyMillis)
+					.append(",\"blockedMillis\":").append(stage.blockedMillis)
+					.append(",\"rowsPerSecond\":").append(String.format(Locale.ROOT, "%.1f", stage.rowsPerSecond))
+					.append('}');
+			}
+
+			sb.append("],\"rowLatency\":{\"count\":").append(rowLatency.count)
+				.append(",\"meanMicros\":").append(String.format(Locale.ROOT, "%.1f", rowLatency.getMeanNanos() / 1000))
+				.append(",\"p50Micros\":").append(rowLatency.getPercentileNanos(50) / 1000)
+				.append(",\"p90Micros\":").append(rowLatency.getPercentileNanos(90) / 1000)
+				.append(",\"p99Micros\":").append(rowLatency.getPercentileNanos(99) / 1000)
+				.append(",\"maxMicros\":").append(rowLatency.maxNanos / 1000)
+				.append(",\"buckets\":[");
+			boolean first = true;
+			for (int i = 0; i < rowLatency.bucketCounts.length; i++) {
+				if (rowLatency.bucketCounts[i] == 0) continue;
+				if (!first) sb.append(',');
+				first = false;
+				sb.append("{\"fromNanos\":").append(1L << i).append(",\"rows\":").append(rowLatency.bucketCounts[i])
+					.append('}');
+			}
+
+			sb.append("]},\"fifoDepths\":[");
+			for (int i = 0; i < fifoDepths.size(); i++) {
+				FifoDepths fifo = fifoDepths.get(i);
+				if (i > 0) sb.append(',');
+				sb.append("{\"name\":");
+				appendString(sb, fifo.name);
+				sb.append(",\"capacity\":").append(fifo.capacity)
+					.append(",\"samples\":").append(fifo.sampleCount)
+					.append(",\"maxDepth\":").append(fifo.maxDepth)
+					.append(",\"meanDepth\":").append(String.format(Locale.ROOT, "%.2f", fifo.meanDepth))
+					.append(",\"recent\":[");
+				for (int j = 0; j < fifo.depths.length; j++) {
+					if (j > 0) sb.append(',');
+					sb.append('[').append(fifo.offsetMillis[j]).append(',').append(fifo.depths[j]).append(']');
+				}
+				sb.append("]}");
+			}
+			return sb.append("]}").toString();
+		}
+
+		private static void appendString(StringBuilder sb, String value) {
+			sb.append('"');
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '"' || c == '\\') sb.append('\\');
+				if (c < ' ') {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+			sb.append('"');
+		}
+	}
+
+	// prints the snapshot through ThreadTools, one line so it can be grepped out of the log
+	public void log() {
+		ThreadTools.outln("metrics: " + snapshot().toJson());
+	}
+}
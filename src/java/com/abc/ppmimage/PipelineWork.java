@@ -1,39 +1,191 @@
 package com.abc.ppmimage;
 
 enum PipelineStage {
-	FLIP_HORIZONTALLY, GRAYSCALE
+	FLIP_HORIZONTALLY(0), GRAYSCALE(0),
+	// 3x3 neighbourhoods, see Convolution
+	BLUR(1), SHARPEN(1), EDGE_DETECT(1),
+	// whole-image geometry, see TileTransform; ROTATE_90 is clockwise, TRANSPOSE mirrors along the main diagonal
+	FLIP_VERTICALLY(-1), TRANSPOSE(-1), ROTATE_90(-1), ROTATE_180(-1), ROTATE_270(-1);
+
+	private final int haloRows;
+
+	PipelineStage(int haloRows) {
+		this.haloRows = haloRows;
+	}
+
+	// true if an output row only depends on the same input row, consecutive row-local stages can be fused
+	public boolean isRowLocal() {
+		return haloRows == 0;
+	}
+
+	// how many rows above and below a row an output row depends on, -1 for a geometric stage
+	public int getHaloRows() {
+		return haloRows;
+	}
+
+	// true if an output row may depend on any input row, the stage can't run on bands and is a barrier instead
+	public boolean isGeometric() {
+		return haloRows < 0;
+	}
+
+	// true if the output has the input's column count as its row count and the other way round
+	public boolean swapsDimensions() {
+		return this == TRANSPOSE || this == ROTATE_90 || this == ROTATE_270;
+	}
 }
 
+// a band of contiguous rows of one image, rows[i] is row firstRowIndex + i
+//
+// a recycled band (see BandPool) has no rows, its pixels are the first getRowCount() rows of pixels, and a stage
+// writes its result into scratch before the two buffers are swapped; the pool sets the fields again every time it
+// hands the envelope out
 public class PipelineWork {
-	public PpmImage.Row row;
-	public final int rowIndex;
-	public final int imageIndex;
+	// null for a recycled band
+	public final PpmImage.Row[] rows;
+	public int firstRowIndex;
+	public int imageIndex;
+	// rows in the whole image, -1 if unknown; stages that aren't row-local need it
+	public int imageRowCount;
+	// when the producer created the band, for the end-to-end latency in PipelineMetrics
+	public long createdNanos;
+	// index of the next segment to apply, only used by engines that don't keep a fifo per segment
+	public int nextSegmentIndex;
+	// the neighbouring rows the next stage that isn't row-local needs, as they were before that stage; set by a
+	// HaloGate, fewer rows at the top and the bottom of the image
+	PpmImage.Row[] haloAbove;
+	PpmImage.Row[] haloBelow;
+
+	// only for a recycled band, the pool it goes back to
+	private final BandPool pool;
+	int[] pixels;
+	private int[] scratch;
+	private int bandRowCount;
+	int columnCount;
 
 	public PipelineWork(PpmImage.Row row, int rowIndex, int imageIndex) {
-		this.row = row;
-		this.rowIndex = rowIndex;
+		this(new PpmImage.Row[] { row }, rowIndex, imageIndex);
+	}
+
+	public PipelineWork(PpmImage.Row[] rows, int firstRowIndex, int imageIndex) {
+		this(rows, firstRowIndex, imageIndex, -1);
+	}
+
+	public PipelineWork(PpmImage.Row[] rows, int firstRowIndex, int imageIndex, int imageRowCount) {
+		this.rows = rows;
+		this.firstRowIndex = firstRowIndex;
 		this.imageIndex = imageIndex;
+		this.imageRowCount = imageRowCount;
+		createdNanos = System.nanoTime();
+		pool = null;
+	}
+
+	// an empty recycled envelope with room for capacity pixels, see BandPool
+	PipelineWork(BandPool pool, int capacity) {
+		rows = null;
+		this.pool = pool;
+		pixels = new int[capacity];
+		scratch = new int[capacity];
+	}
+
+	void reset(int firstRowIndex, int imageIndex, int imageRowCount, int rowCount, int columnCount) {
+		this.firstRowIndex = firstRowIndex;
+		this.imageIndex = imageIndex;
+		this.imageRowCount = imageRowCount;
+		bandRowCount = rowCount;
+		this.columnCount = columnCount;
+		nextSegmentIndex = 0;
+		createdNanos = System.nanoTime();
+	}
+
+	public int getRowCount() {
+		return rows != null ? rows.length : bandRowCount;
+	}
+
+	public boolean isRecycled() {
+		return pool != null;
+	}
+
+	int getCapacity() {
+		return pixels.length;
+	}
+
+	// the band's pixels into the image's pixels, at the band's rows
+	void copyPixelsTo(int[] imagePixels) {
+		System.arraycopy(pixels, 0, imagePixels, firstRowIndex * columnCount, bandRowCount * columnCount);
+	}
+
+	// back to the pool, nobody may touch the envelope afterwards
+	void recycle() {
+		pool.release(this);
+	}
+
+	// applies a fused chain of stages in one pass, while the row is still hot in the cache
+	public void process(PipelineStage[] stages) {
+		for (PipelineStage stage : stages) {
+			process(stage);
+		}
 	}
 
 	public void process(PipelineStage stage) {
-		switch (stage) {
-			case FLIP_HORIZONTALLY:
-				row = row.asRowFlippedHorizontally();
-				break;
-			case GRAYSCALE:
-				toGrayscale();
-				break;
-			default:
-				throw new IllegalArgumentException("unknown stage: " + stage);
+		if (pool != null) {
+			processPixels(stage);
+			return;
+		}
+		if (!stage.isRowLocal()) {
+			processNeighbourhood(stage);
+			return;
+		}
+		for (int i = 0; i < rows.length; i++) {
+			switch (stage) {
+				case FLIP_HORIZONTALLY:
+					rows[i] = rows[i].asRowFlippedHorizontally();
+					break;
+				case GRAYSCALE:
+					rows[i] = rows[i].asRowGrayscaled();
+					break;
+				default:
+					throw new IllegalArgumentException("unknown stage: " + stage);
+			}
+		}
+	}
+
+	// the same kernels as the Row methods, from one buffer into the other without creating a Row
+	private void processPixels(PipelineStage stage) {
+		int pixelCount = bandRowCount * columnCount;
+		for (int slowIndex = 0; slowIndex < PpmImage.getSlowFactor(); slowIndex++) {
+			switch (stage) {
+				case FLIP_HORIZONTALLY:
+					for (int offset = 0; offset < pixelCount; offset += columnCount) {
+						RowKernels.flip(pixels, offset, scratch, offset, columnCount);
+					}
+					break;
+				case GRAYSCALE:
+					RowKernels.grayscale(pixels, 0, scratch, 0, pixelCount);
+					break;
+				default:
+					throw new IllegalArgumentException(stage + " can't run on a recycled band, it isn't row-local");
+			}
 		}
+		int[] swap = pixels;
+		pixels = scratch;
+		scratch = swap;
 	}
 
-	private void toGrayscale() {
-		PpmImage.Pixel[] newPixels = new PpmImage.Pixel[row.getColumnCount()];
-		for (int i = 0; i < newPixels.length; i++) {
-			PpmImage.Pixel pixel = row.getPixelAt(i);
-			newPixels[i] = pixel.asGrayscale();
+	// every output row is computed before any row is replaced, the rows of the band are each other's neighbours
+	private void processNeighbourhood(PipelineStage stage) {
+		boolean wholeImage = firstRowIndex == 0 && rows.length == imageRowCount;
+		if (!wholeImage && (haloAbove == null || haloBelow == null)) {
+			throw new IllegalStateException(stage + " needs the rows around band " + firstRowIndex + " of image " +
+				imageIndex + ", it has to come through a HaloGate");
 		}
-		row = new PpmImage.Row(newPixels);
+		PpmImage.Row[] above = wholeImage ? new PpmImage.Row[0] : haloAbove;
+		PpmImage.Row[] below = wholeImage ? new PpmImage.Row[0] : haloBelow;
+		PpmImage.Row[] window = new PpmImage.Row[above.length + rows.length + below.length];
+		System.arraycopy(above, 0, window, 0, above.length);
+		System.arraycopy(rows, 0, window, above.length, rows.length);
+		System.arraycopy(below, 0, window, above.length + rows.length, below.length);
+		System.arraycopy(Convolution.apply(stage, window, above.length, rows.length), 0, rows, 0, rows.length);
+		haloAbove = null;
+		haloBelow = null;
 	}
 }
@@ -0,0 +1,28 @@
+package com.abc.ppmimage;
+
+// a fast 64-bit hash of packed pixels, for telling images and rows apart (not for security)
+final class PixelHash {
+	private PixelHash() {
+	}
+
+	static long of(int[] pixels) {
+		return of(pixels, 0, pixels.length);
+	}
+
+	// two pixels per multiply, finished with the murmur3 avalanche so every input bit reaches every output bit
+	static long of(int[] pixels, int offset, int length) {
+		long h = 0x9E3779B97F4A7C15L ^ length;
+		int i = offset;
+		int end = offset + length;
+		for (; i + 1 < end; i += 2) {
+			h = (h ^ ((long) pixels[i] << 32 | pixels[i + 1] & 0xFFFFFFFFL)) * 0xC2B2AE3D27D4EB4FL;
+			h = Long.rotateLeft(h, 31);
+		}
+		if (i < end) h = (h ^ pixels[i]) * 0xC2B2AE3D27D4EB4FL;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		return h ^ h >>> 33;
+	}
+}
@@ -5,60 +5,134 @@ import java.io.*;
 import java.util.*;
 
 /**
+ * Pixels are stored packed, one <code>int</code> per pixel (see {@link Pixel#asIntBits()}), in a single row-major
+ * array for the whole image. {@link Row} and {@link Pixel} instances handed out are views/copies of that storage.
  * Instances are immutable.
  */
 public final class PpmImage {
-    private static final int SLOW_FACTOR = 2_500;
+    /** System property that overrides the slow factor, read once when the class is initialized. */
+    static final String SLOW_FACTOR_PROPERTY = "com.abc.ppmimage.slowFactor";
+    private static final int SLOW_FACTOR = Integer.getInteger(SLOW_FACTOR_PROPERTY, 2_500);
+
+    // below this a single thread is done before the others would have started
+    private static final int PARALLEL_WRITE_MIN_PIXELS = 256 * 1024;
 
     public static final String FORMAT = "P3";
     public static final int MAX_COLOR_VALUE = 255;
 
-    private final Row[] privateRows;
+    /** The PPM variants that can be read and written, identified by their magic number. */
+    public enum Format {
+        /** ASCII decimal color values, the default. */
+        P3,
+        /** Raw binary, one byte per color value. */
+        P6;
+
+        public String getMagicNumberString() { return name(); }
+
+        /** Returns the Format for the magic number (case insensitive), or null if it isn't supported. */
+        public static Format fromMagicNumberString(String magicNumber) {
+            for (Format format : values()) {
+                if (format.name().equalsIgnoreCase(magicNumber)) return format;
+            }
+            return null;
+        }
+    }
+
+    static int getSlowFactor() { return SLOW_FACTOR; }
+
+    private final int[] packedPixels; // row-major, 0x00RRGGBB per pixel
+    private final int rowCount;
     private final int columnCount;
 
     public PpmImage(Row[] rows) throws IllegalArgumentException {
         if (rows == null || rows.length == 0) throw new IllegalArgumentException("rows must have at least one Row");
-        privateRows = rows.clone(); // grab a snapshot
 
-        int colCount = privateRows[0].getColumnCount(); // we know we have at least one row
-        for (int i = 1; i < privateRows.length; i++) {
-            if (colCount != privateRows[i].getColumnCount()) {
+        int colCount = rows[0].getColumnCount(); // we know we have at least one row
+        for (int i = 1; i < rows.length; i++) {
+            if (colCount != rows[i].getColumnCount()) {
                 throw new IllegalArgumentException("every row must have exactly " + colCount +
-                    " pixels; rows[" + i + "] has " + privateRows[i].getColumnCount() + " pixels");
+                    " pixels; rows[" + i + "] has " + rows[i].getColumnCount() + " pixels");
             }
         }
+        rowCount = rows.length;
         columnCount = colCount;
+        packedPixels = new int[rowCount * columnCount]; // grab a snapshot
+        for (int i = 0; i < rows.length; i++) {
+            rows[i].copyIntBitsTo(packedPixels, i * columnCount);
+        }
+    }
+
+    // takes ownership of packedPixels, callers must not modify the array afterwards
+    private PpmImage(int[] packedPixels, int rowCount, int columnCount) {
+        this.packedPixels = packedPixels;
+        this.rowCount = rowCount;
+        this.columnCount = columnCount;
     }
 
-    public int getRowCount() { return privateRows.length; }
+    /**
+     * Creates an image from row-major pixels in the {@link Pixel#asIntBits()} layout. The upper 8 bits of each
+     * value are ignored. The array is copied.
+     */
+    public static PpmImage createFromIntBits(int rowCount, int columnCount, int[] intBits)
+            throws IllegalArgumentException {
+
+        confirmValidDimensions(rowCount, columnCount);
+        if (intBits == null || intBits.length != rowCount * columnCount) {
+            throw new IllegalArgumentException("intBits must have exactly " + rowCount * columnCount + " values");
+        }
+        int[] copy = new int[intBits.length];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = intBits[i] & 0x00FF_FFFF;
+        }
+        return new PpmImage(copy, rowCount, columnCount);
+    }
+
+    /** No copy is made: the caller hands over the array and must not touch it afterwards. */
+    static PpmImage wrapIntBits(int rowCount, int columnCount, int[] intBits) {
+        return new PpmImage(intBits, rowCount, columnCount);
+    }
+
+    public int getRowCount() { return rowCount; }
     public int getColumnCount() { return columnCount; }
 
+    /** Returns a view of the row, no pixel data is copied. */
     public Row getRowAt(int rowIndex) throws IndexOutOfBoundsException {
-        confirmValidRowIndex(rowIndex, privateRows.length);
-        return privateRows[rowIndex];
+        confirmValidRowIndex(rowIndex, rowCount);
+        return new Row(packedPixels, rowIndex * columnCount, columnCount);
     }
 
     public Pixel getPixelAt(int rowIndex, int colIndex) throws IndexOutOfBoundsException {
-        confirmValidRowIndex(rowIndex, privateRows.length);
+        return Pixel.fromIntBits(getIntBitsAt(rowIndex, colIndex));
+    }
+
+    public int getIntBitsAt(int rowIndex, int colIndex) throws IndexOutOfBoundsException {
+        confirmValidRowIndex(rowIndex, rowCount);
         confirmValidColIndex(colIndex, columnCount);
-        return privateRows[rowIndex].getPixelAt(colIndex);
+        return packedPixels[rowIndex * columnCount + colIndex];
     }
 
+    /** Returns a copy of all of the pixels, row-major, in the {@link Pixel#asIntBits()} layout. */
+    public int[] getIntBits() { return packedPixels.clone(); }
+
+    // the backing array itself, callers must not modify it
+    int[] intBitsArray() { return packedPixels; }
+
     public String getMagicNumberString() { return FORMAT; }
     public int getMaxColorComponentValue() { return MAX_COLOR_VALUE; }
 
     public BufferedImage asBufferedImage() {
-        BufferedImage bi = new BufferedImage(columnCount, privateRows.length, BufferedImage.TYPE_INT_RGB);
-        for (int rowIndex = 0; rowIndex < privateRows.length; rowIndex++) {
-            Row row = privateRows[rowIndex];
-            for (int colIndex = 0; colIndex < columnCount; colIndex++) {
-                bi.setRGB(colIndex, rowIndex, row.getPixelAt(colIndex).asIntBits());
-            }
-        }
+        BufferedImage bi = new BufferedImage(columnCount, rowCount, BufferedImage.TYPE_INT_RGB);
+        bi.setRGB(0, 0, columnCount, rowCount, packedPixels, 0, columnCount);
         return bi;
     }
 
+    /** Reads a P3 or P6 image, the format is picked from the magic number in the file. */
     public static PpmImage createFromFilename(String filename) throws FileNotFoundException, IOException {
+        return PpmReader.read(filename);
+    }
+
+    /** The original Scanner based reader, slow; kept as a reference for {@link PpmReader}. */
+    static PpmImage createFromFilenameWithScanner(String filename) throws FileNotFoundException, IOException {
         try (Scanner s = new Scanner(new File(filename))) {
             String format = s.nextLine();
             if (!FORMAT.equalsIgnoreCase(format)) throw new IOException("only \"" + FORMAT + "\" format is supported");
@@ -68,29 +142,39 @@ public final class PpmImage {
             if (maxColorValue != MAX_COLOR_VALUE) throw new IOException("only [0.." + MAX_COLOR_VALUE +
                 "] color values supported");
 
-            Row[] rows = new Row[height];
-            for (int rowIndex = 0; rowIndex < height; rowIndex++) {
-                Pixel[] pixels = new Pixel[width];
-                for (int colIndex = 0; colIndex < width; colIndex++) {
-                    pixels[colIndex] = new Pixel(s.nextInt(), s.nextInt(), s.nextInt());
-                }
-                rows[rowIndex] = new Row(pixels);
+            confirmValidDimensions(height, width);
+            int[] pixels = new int[width * height];
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = Pixel.toIntBits(s.nextInt(), s.nextInt(), s.nextInt());
             }
-            return new PpmImage(rows);
+            return new PpmImage(pixels, height, width);
         }
     }
 
+    /** Writes the image in the default {@link Format#P3} format. */
     public void writeToFilename(String filename) throws FileNotFoundException, IOException {
+        writeToFilename(filename, Format.P3);
+    }
+
+    /** Large images are encoded on several threads if there are several processors, see {@link ParallelPpmEncoder}. */
+    public void writeToFilename(String filename, Format format) throws FileNotFoundException, IOException {
+        if (packedPixels.length >= PARALLEL_WRITE_MIN_PIXELS && Runtime.getRuntime().availableProcessors() > 1) {
+            ParallelPpmEncoder.write(this, filename, format);
+        } else {
+            PpmWriter.write(this, filename, format);
+        }
+    }
+
+    /** The original printf based P3 writer, slow; kept as a reference for {@link PpmWriter}. */
+    void writeToFilenameWithPrintWriter(String filename) throws FileNotFoundException, IOException {
         try (PrintWriter pw = new PrintWriter(new File(filename))) {
             pw.println(FORMAT);
-            pw.printf("%d %d%n", columnCount, privateRows.length);
+            pw.printf("%d %d%n", columnCount, rowCount);
             pw.printf("%d%n", MAX_COLOR_VALUE);
 
-            for (int rowIndex = 0; rowIndex < privateRows.length; rowIndex++) {
-                for (int colIndex = 0; colIndex < columnCount; colIndex++) {
-                    Pixel pixel = privateRows[rowIndex].getPixelAt(colIndex);
-                    pw.printf("%d %d %d%n", pixel.red, pixel.green, pixel.blue);
-                }
+            for (int i = 0; i < packedPixels.length; i++) {
+                int bits = packedPixels[i];
+                pw.printf("%d %d %d%n", bits >> 16 & 0xFF, bits >> 8 & 0xFF, bits & 0xFF);
             }
         }
     }
@@ -109,42 +193,101 @@ public final class PpmImage {
         }
     }
 
+    private static void confirmValidDimensions(int rowCount, int columnCount) throws IllegalArgumentException {
+        if (rowCount < 1 || columnCount < 1 || (long) rowCount * columnCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("unsupported image size: " + columnCount + "x" + rowCount);
+        }
+    }
+
     /**
+     * A row of packed pixels. Rows obtained from a {@link PpmImage} share the image's storage.
      * Instances are immutable.
      */
     public static final class Row {
-        private final Pixel[] privatePixels;
+        private final int[] intBits;
+        private final int offset;
+        private final int columnCount;
 
         public Row(Pixel[] pixels) throws IllegalArgumentException {
             if (pixels == null || pixels.length == 0) throw new IllegalArgumentException("pixels must have at least " +
                 "one Pixel");
 
-            privatePixels = pixels.clone(); // grab a snapshot
+            intBits = new int[pixels.length]; // grab a snapshot
+            for (int i = 0; i < pixels.length; i++) {
+                intBits[i] = pixels[i].asIntBits();
+            }
+            offset = 0;
+            columnCount = intBits.length;
+        }
+
+        // shares intBits, callers must not modify the range afterwards
+        Row(int[] intBits, int offset, int columnCount) {
+            this.intBits = intBits;
+            this.offset = offset;
+            this.columnCount = columnCount;
         }
 
-        public int getColumnCount() { return privatePixels.length; }
+        /** The upper 8 bits of each value are ignored. The array is copied. */
+        public static Row createFromIntBits(int[] intBits) throws IllegalArgumentException {
+            if (intBits == null || intBits.length == 0) throw new IllegalArgumentException("intBits must have at " +
+                "least one value");
+
+            int[] copy = new int[intBits.length];
+            for (int i = 0; i < copy.length; i++) {
+                copy[i] = intBits[i] & 0x00FF_FFFF;
+            }
+            return new Row(copy, 0, copy.length);
+        }
+
+        public int getColumnCount() { return columnCount; }
 
         public Pixel getPixelAt(int colIndex) throws IndexOutOfBoundsException {
-            PpmImage.confirmValidColIndex(colIndex, privatePixels.length);
-            return privatePixels[colIndex];
+            return Pixel.fromIntBits(getIntBitsAt(colIndex));
         }
 
-        public Pixel[] getPixels() { return privatePixels.clone(); /* return a copy to maintain immutability */ }
+        public int getIntBitsAt(int colIndex) throws IndexOutOfBoundsException {
+            PpmImage.confirmValidColIndex(colIndex, columnCount);
+            return intBits[offset + colIndex];
+        }
+
+        public Pixel[] getPixels() {
+            Pixel[] pixels = new Pixel[columnCount];
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = Pixel.fromIntBits(intBits[offset + i]);
+            }
+            return pixels;
+        }
+
+        public int[] getIntBits() {
+            int[] copy = new int[columnCount]; // return a copy to maintain immutability
+            copyIntBitsTo(copy, 0);
+            return copy;
+        }
+
+        // the backing array and where this row starts in it, callers must not modify it
+        int[] intBitsArray() { return intBits; }
+        int intBitsOffset() { return offset; }
+
+        void copyIntBitsTo(int[] dest, int destPos) {
+            System.arraycopy(intBits, offset, dest, destPos, columnCount);
+        }
 
         /** Returns a new Row flipped horizontally (as seen in a mirror). */
         public Row asRowFlippedHorizontally() {
-            Row row = null;
+            int[] flippedBits = new int[columnCount];
             for (int slowIndex = 0; slowIndex < SLOW_FACTOR; slowIndex++) {
-                Pixel[] flippedPixels = getPixels(); // gives us a copy that we can manipulate
-                for(int i = 0; i < flippedPixels.length / 2; i++)
-                {
-                    Pixel tmp = flippedPixels[i];
-                    flippedPixels[i] = flippedPixels[flippedPixels.length - i - 1];
-                    flippedPixels[flippedPixels.length - i - 1] = tmp;
-                }
-                row = new Row(flippedPixels);
+                RowKernels.flip(intBits, offset, flippedBits, 0, columnCount);
             }
-            return row;
+            return new Row(flippedBits, 0, columnCount);
+        }
+
+        /** Returns a new Row with every pixel converted as by {@link Pixel#asGrayscale()}. */
+        public Row asRowGrayscaled() {
+            int[] grayBits = new int[columnCount];
+            for (int slowIndex = 0; slowIndex < SLOW_FACTOR; slowIndex++) {
+                RowKernels.grayscale(intBits, offset, grayBits, 0, columnCount);
+            }
+            return new Row(grayBits, 0, columnCount);
         }
     }  // type Row
 
@@ -184,24 +327,44 @@ public final class PpmImage {
             this.blue  = Math.max(0, Math.min(blue,  255));
         }
 
+        /** Inverse of {@link #asIntBits()}, the upper 8 bits are ignored. */
+        public static Pixel fromIntBits(int intBits) {
+            return new Pixel(intBits >> 16 & 0xFF, intBits >> 8 & 0xFF, intBits & 0xFF);
+        }
+
+        /** Same as <code>new Pixel(red, green, blue).asIntBits()</code> without creating the Pixel. */
+        public static int toIntBits(int red, int green, int blue) {
+            return Math.max(0, Math.min(red,   255)) << 16 |
+                   Math.max(0, Math.min(green, 255)) << 8 |
+                   Math.max(0, Math.min(blue,  255));
+        }
+
         /** Returns a new Pixel which is a shade of gray */
         public Pixel asGrayscale() {
-            Pixel pixel = null;
+            int grayBits = 0;
             for (int slowIndex = 0; slowIndex < SLOW_FACTOR; slowIndex++) {
-                // https://en.wikipedia.org/wiki/Relative_luminance
-                // The luminosity method, re-calculates the red, green, and blue values according to the following formula:
-                //     grayval = 0.21 * red + 0.72 * green +  0.07 * blue
-                double grayLevelAsDouble = 0.21 * red + 0.72 * green + 0.07 * blue;
-                int grayLevelAsInt = (int) Math.round(grayLevelAsDouble);
-                int grayLevelBoundedInt = Math.max(0, Math.min(grayLevelAsInt, 255));
-                pixel = new Pixel(grayLevelBoundedInt, grayLevelBoundedInt, grayLevelBoundedInt);
+                grayBits = RowKernels.grayscale(asIntBits());
             }
-            return pixel;
+            return fromIntBits(grayBits);
         }
 
         /** return lower 24-bits, red, green, blue: <code>0000 0000 rrrr rrrr gggg gggg bbbb bbbb</code> */
         public int asIntBits() {
             return red << 16 | green << 8 | blue;
         }
+
+        /** The reference formula, in doubles; the kernels in {@link RowKernels} give exactly the same result. */
+        static int grayscaleIntBits(int intBits) {
+            int red = intBits >> 16 & 0xFF;
+            int green = intBits >> 8 & 0xFF;
+            int blue = intBits & 0xFF;
+            // https://en.wikipedia.org/wiki/Relative_luminance
+            // The luminosity method, re-calculates the red, green, and blue values according to the following formula:
+            //     grayval = 0.21 * red + 0.72 * green +  0.07 * blue
+            double grayLevelAsDouble = 0.21 * red + 0.72 * green + 0.07 * blue;
+            int grayLevelAsInt = (int) Math.round(grayLevelAsDouble);
+            int grayLevelBoundedInt = Math.max(0, Math.min(grayLevelAsInt, 255));
+            return grayLevelBoundedInt << 16 | grayLevelBoundedInt << 8 | grayLevelBoundedInt;
+        }
     }  // type Pixel
 }
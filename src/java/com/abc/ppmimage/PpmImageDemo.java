@@ -1,70 +1,78 @@
 package com.abc.ppmimage;
 
 import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import com.abc.thread.*;
 
-import com.abc.pp.fifo.deluxe_bounded.*;
-import com.abc.pp.fifo.deluxe_bounded.impl.*;
-
 public class PpmImageDemo {
 
     public static PpmImage[] executePipeline(PpmImage[] images, PipelineStage[] pipeline, int workersPerStage) throws InterruptedException{
-        PpmImage[] newImages = new PpmImage[images.length];
-        //workersPerStage = 4;
-        //int fifoSize = workersPerStage * 10;
-        int fifoSize = 50;
+        return executePipeline(images, pipeline, new PipelineConfig().setWorkersPerStage(workersPerStage));
+    }
 
-        // create fifos
-        PPDeluxeBoundedFifo<PipelineWork>[] pipelineFifos = new CircularArrayPPDeluxeBoundedFifo[pipeline.length + 1];
-        for (int i = 0; i < pipelineFifos.length; i++) {
-            pipelineFifos[i] = new CircularArrayPPDeluxeBoundedFifo<>(fifoSize, PipelineWork.class);
-        }
+    /**
+     * With fuseStages, consecutive row-local stages run as one pass in a single worker (which gets the workers of
+     * all of the fused stages) instead of handing each row through a fifo between stages.
+     */
+    public static PpmImage[] executePipeline(PpmImage[] images, PipelineStage[] pipeline, int workersPerStage,
+            boolean fuseStages) throws InterruptedException {
 
-        // create 1 producer per image
-        Producer[] producers = new Producer[images.length];
-        for (int i = 0; i < images.length; i++) {
-            producers[i] = new Producer(images[i], i, pipelineFifos[0]);
-        }
+        return executePipeline(images, pipeline,
+            new PipelineConfig().setWorkersPerStage(workersPerStage).setFuseStages(fuseStages));
+    }
 
-        // create workers per stage
-        Worker[][] workers = new Worker[pipeline.length][workersPerStage];
-        for (int i = 0; i < pipeline.length; i++) {
-            for (int j = 0; j < workersPerStage; j++) {
-                workers[i][j] = new Worker(pipelineFifos[i], pipelineFifos[i + 1], pipeline[i]);
-            }
+    public static PpmImage[] executePipeline(PpmImage[] images, PipelineStage[] pipeline, PipelineConfig config)
+            throws InterruptedException {
+
+        int geometricIndex = indexOfGeometricStage(pipeline);
+        if (geometricIndex >= 0) return executeAroundGeometricStage(images, pipeline, geometricIndex, config);
+        if (config.isRecycleBuffers()) BandPool.confirmUsable(pipeline, config);
+        if (config.getEngine() == PipelineConfig.Engine.WORK_STEALING ||
+                config.getCompletionMode() == PipelineConfig.CompletionMode.DIRECT_PLACEMENT) {
+            return awaitAll(executePipelineAsync(images, pipeline, config));
         }
 
+        PpmImage[] newImages = new PpmImage[images.length];
+        PipelineMetrics metrics = config.getMetrics();
+
+        // create fifos and workers per stage
+        StageNetwork network = new StageNetwork(pipeline, config);
+
         // create 1 fifo per image for the unsorted rows
-        PPDeluxeBoundedFifo<PipelineWork>[] processedRows = new CircularArrayPPDeluxeBoundedFifo[images.length];
+        PipelineFifo<PipelineWork>[] processedRows = createAssemblerFifos(images.length, config);
+        if (metrics != null) metrics.startSampling();
+
+        // create 1 producer per image, handing out bands of rows
+        Producer[] producers = new Producer[images.length];
         for (int i = 0; i < images.length; i++) {
-            processedRows[i] = new CircularArrayPPDeluxeBoundedFifo<>(fifoSize, PipelineWork.class);
+            int rowsPerBand = config.getRowsPerBand(images[i].getColumnCount());
+            producers[i] =
+                new Producer(images[i], i, rowsPerBand, network.getInput(), metrics, config.getBandPool());
         }
 
         // create sorter that distributes the mixed rows to the appropriate image assembler
         // only 1 sorter is implemented here, but more could be added
-        Sorter sorter = new Sorter(pipelineFifos[pipelineFifos.length - 1], processedRows);
+        Sorter sorter = new Sorter(network.getOutput(), processedRows, metrics);
 
         // create 1 assembler per image
         Assembler[] assemblers = new Assembler[images.length];
         for (int i = 0; i < images.length; i++) {
-            assemblers[i] = new Assembler(processedRows[i], newImages, i, images[i].getRowCount());
+            assemblers[i] = new Assembler(processedRows[i], newImages, i, images[i].getRowCount(), metrics);
         }
 
         // wait for all producers to finish
         for (int i = 0; i < producers.length; i++) {
             producers[i].waitUntilStopped();
         }
-        pipelineFifos[0].indicateNoMoreAddsAllowed();
 
         // wait for all workers to finish
-        for (int i = 0; i < workers.length; i++) {
-            // wait for stage to finish
-            for (int j = 0; j < workers[i].length; j++) {
-                workers[i][j].waitUntilStopped();
-            }
-            pipelineFifos[i + 1].indicateNoMoreAddsAllowed();
-        }
+        network.finishAndWait();
 
         // wait for sorter to finish
         sorter.waitUntilStopped();
@@ -77,9 +85,270 @@ public class PpmImageDemo {
             assemblers[i].waitUntilStopped();
         }
 
+        if (metrics != null) metrics.stop();
         return newImages;
     }
 
+    /**
+     * Runs off-heap images through the stages into new off-heap images, so neither the inputs nor the outputs take
+     * up heap, only the bands in flight do. Each band is copied out of its image's storage by a Producer and
+     * straight into the output's storage by the worker that finishes it. Only for the DEDICATED_THREADS engine and
+     * stages that work on bands (no geometric ones). The caller closes the outputs.
+     */
+    public static OffHeapImage[] executePipeline(OffHeapImage[] images, PipelineStage[] pipeline,
+            PipelineConfig config) throws IOException, InterruptedException {
+
+        if (config.getEngine() != PipelineConfig.Engine.DEDICATED_THREADS) {
+            throw new IllegalArgumentException("off-heap images need the DEDICATED_THREADS engine");
+        }
+        if (config.isRecycleBuffers()) BandPool.confirmUsable(pipeline, config);
+        OffHeapImage[] outputs = new OffHeapImage[images.length];
+        try {
+            for (int i = 0; i < images.length; i++) {
+                outputs[i] = OffHeapImage.allocate(images[i].getRowCount(), images[i].getColumnCount());
+            }
+            PipelineMetrics metrics = config.getMetrics();
+            OffHeapAssembler assembler = new OffHeapAssembler(outputs, metrics);
+            StageNetwork network = new StageNetwork(pipeline, config, assembler);
+            if (metrics != null) metrics.startSampling();
+
+            Producer[] producers = new Producer[images.length];
+            for (int i = 0; i < images.length; i++) {
+                int rowsPerBand = config.getRowsPerBand(images[i].getColumnCount());
+                producers[i] =
+                    new Producer(images[i], i, rowsPerBand, network.getInput(), metrics, config.getBandPool());
+            }
+            for (int i = 0; i < producers.length; i++) {
+                producers[i].waitUntilStopped();
+            }
+            network.finishAndWait();
+            if (metrics != null) metrics.stop();
+            if (assembler.getRemainingRowCount() != 0) {
+                throw new IllegalStateException("pipeline stopped before every row arrived");
+            }
+            return outputs;
+        } catch (IOException | InterruptedException | RuntimeException x) {
+            for (OffHeapImage output : outputs) {
+                if (output != null) output.close();
+            }
+            throw x;
+        }
+    }
+
+    private static int indexOfGeometricStage(PipelineStage[] pipeline) {
+        for (int i = 0; i < pipeline.length; i++) {
+            if (pipeline[i].isGeometric()) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * A geometric stage needs whole images, so it is a barrier: the stages in front of it run as one pipeline, the
+     * stage itself runs tile by tile on a pool (see TileTransform), and the stages after it run as another one.
+     */
+    private static PpmImage[] executeAroundGeometricStage(PpmImage[] images, PipelineStage[] pipeline, int index,
+            PipelineConfig config) throws InterruptedException {
+
+        if (config.getMetrics() != null) {
+            throw new IllegalArgumentException("metrics cover a single run, " + pipeline[index] +
+                " splits the pipeline into several");
+        }
+        PipelineStage[] before = Arrays.copyOfRange(pipeline, 0, index);
+        PipelineStage[] after = Arrays.copyOfRange(pipeline, index + 1, pipeline.length);
+        PpmImage[] processed = before.length > 0 ? executePipeline(images, before, config) : images;
+        processed = TileTransform.applyAll(processed, pipeline[index], config);
+        return after.length > 0 ? executePipeline(processed, after, config) : processed;
+    }
+
+    /**
+     * Runs each image through the stages once, then resamples every result to each of the outputs, so several
+     * resolutions come out of a single decode and a single pass through the stages. results[i][j] is image i
+     * resampled by outputs[j].
+     */
+    public static PpmImage[][] executePipeline(PpmImage[] images, PipelineStage[] pipeline, PipelineConfig config,
+            Resampler[] outputs) throws InterruptedException {
+
+        PpmImage[] processed = executePipeline(images, pipeline, config);
+        PpmImage[][] results = new PpmImage[processed.length][];
+        for (int i = 0; i < processed.length; i++) {
+            results[i] = Resampler.resizeAll(processed[i], outputs, config);
+            processed[i] = null;
+        }
+        return results;
+    }
+
+    /**
+     * Starts the pipeline and returns right away with one future per image, in image order. There is no Sorter
+     * and no Assemblers: finished rows are placed directly into per-image slots and each image's future completes
+     * as soon as its last row lands, while later images may still be in the pipeline.
+     */
+    public static List<CompletableFuture<PpmImage>> executePipelineAsync(PpmImage[] images, PipelineStage[] pipeline,
+            PipelineConfig config) {
+
+        if (indexOfGeometricStage(pipeline) >= 0) return executeBehindBarrier(images, pipeline, config);
+        if (config.isRecycleBuffers()) BandPool.confirmUsable(pipeline, config);
+        if (config.getEngine() == PipelineConfig.Engine.WORK_STEALING) {
+            return WorkStealingPipeline.start(images, pipeline, config);
+        }
+
+        PipelineMetrics metrics = config.getMetrics();
+        ImageCompletions completions = new ImageCompletions(images, metrics, config.isRecycleBuffers());
+        StageNetwork network = new StageNetwork(pipeline, config, completions);
+        if (metrics != null) metrics.startSampling();
+
+        Producer[] producers = new Producer[images.length];
+        for (int i = 0; i < images.length; i++) {
+            int rowsPerBand = config.getRowsPerBand(images[i].getColumnCount());
+            producers[i] =
+                new Producer(images[i], i, rowsPerBand, network.getInput(), metrics, config.getBandPool());
+        }
+
+        // shuts the network down behind the producers, nobody has to wait for that
+        Thread coordinator = new Thread(() -> {
+            try {
+                for (int i = 0; i < producers.length; i++) {
+                    producers[i].waitUntilStopped();
+                }
+                network.finishAndWait();
+                if (metrics != null) metrics.stop();
+                completions.failIncomplete(new IllegalStateException("pipeline stopped before every row arrived"));
+            } catch (InterruptedException x) {
+                completions.failIncomplete(x);
+            }
+        }, "PipelineCoordinator");
+        coordinator.start();
+        return completions.getFutures();
+    }
+
+    // with a geometric stage no image is done before every image has reached it, so the whole run goes on a
+    // thread of its own and the futures complete together
+    private static List<CompletableFuture<PpmImage>> executeBehindBarrier(PpmImage[] images, PipelineStage[] pipeline,
+            PipelineConfig config) {
+
+        List<CompletableFuture<PpmImage>> futures = new ArrayList<>();
+        for (int i = 0; i < images.length; i++) {
+            futures.add(new CompletableFuture<>());
+        }
+        Thread coordinator = new Thread(() -> {
+            try {
+                PpmImage[] results = executePipeline(images, pipeline, config);
+                for (int i = 0; i < results.length; i++) {
+                    futures.get(i).complete(results[i]);
+                }
+            } catch (InterruptedException | RuntimeException x) {
+                for (CompletableFuture<PpmImage> future : futures) {
+                    future.completeExceptionally(x);
+                }
+            }
+        }, "PipelineCoordinator");
+        coordinator.start();
+        return Collections.unmodifiableList(futures);
+    }
+
+    private static PpmImage[] awaitAll(List<CompletableFuture<PpmImage>> futures) throws InterruptedException {
+        PpmImage[] newImages = new PpmImage[futures.size()];
+        for (int i = 0; i < newImages.length; i++) {
+            try {
+                newImages[i] = futures.get(i).get();
+            } catch (ExecutionException x) {
+                throw new IllegalStateException("image " + i + " failed", x.getCause());
+            }
+        }
+        return newImages;
+    }
+
+    /**
+     * Streams each input file through the pipeline into the matching output file without ever holding a whole
+     * image: rows are decoded as the producers need them and written out as soon as every row before them has
+     * been written. Memory use is bounded by the fifo sizes, not by the image sizes. Each output uses the format
+     * of its input.
+     */
+    public static void executeStreamingPipeline(String[] inputFilenames, String[] outputFilenames,
+            PipelineStage[] pipeline, int workersPerStage) throws IOException, InterruptedException {
+
+        executeStreamingPipeline(inputFilenames, outputFilenames, pipeline,
+            new PipelineConfig().setWorkersPerStage(workersPerStage));
+    }
+
+    public static void executeStreamingPipeline(String[] inputFilenames, String[] outputFilenames,
+            PipelineStage[] pipeline, PipelineConfig config) throws IOException, InterruptedException {
+
+        if (indexOfGeometricStage(pipeline) >= 0) {
+            throw new IllegalArgumentException(pipeline[indexOfGeometricStage(pipeline)] +
+                " needs whole images, they can't be streamed");
+        }
+        if (inputFilenames.length != outputFilenames.length) {
+            throw new IllegalArgumentException("every input file needs exactly one output file");
+        }
+        PpmReader[] readers = new PpmReader[inputFilenames.length];
+        PpmWriter[] writers = new PpmWriter[outputFilenames.length];
+        try {
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = new PpmReader(PpmReader.openChannel(inputFilenames[i]));
+                readers[i].readHeader();
+                writers[i] = new PpmWriter(PpmWriter.openChannel(outputFilenames[i]), readers[i].getFormat());
+                writers[i].writeHeader(readers[i].getColumnCount(), readers[i].getRowCount());
+            }
+
+            PipelineMetrics metrics = config.getMetrics();
+            StageNetwork network = new StageNetwork(pipeline, config);
+            PipelineFifo<PipelineWork>[] processedRows = createAssemblerFifos(readers.length, config);
+            if (metrics != null) metrics.startSampling();
+
+            // 1 producer per file, decoding bands of rows as it goes
+            Producer[] producers = new Producer[readers.length];
+            for (int i = 0; i < readers.length; i++) {
+                int rowsPerBand = config.getRowsPerBand(readers[i].getColumnCount());
+                producers[i] = new Producer(readers[i], i, rowsPerBand, network.getInput(), metrics);
+            }
+
+            Sorter sorter = new Sorter(network.getOutput(), processedRows, metrics);
+
+            // 1 streaming assembler per file, writing rows in order as they become available
+            StreamingAssembler[] assemblers = new StreamingAssembler[writers.length];
+            for (int i = 0; i < writers.length; i++) {
+                assemblers[i] = new StreamingAssembler(processedRows[i], writers[i], i, readers[i].getRowCount(),
+                    metrics);
+            }
+
+            for (int i = 0; i < producers.length; i++) {
+                producers[i].waitUntilStopped();
+            }
+            network.finishAndWait();
+            sorter.waitUntilStopped();
+            for (int i = 0; i < assemblers.length; i++) {
+                processedRows[i].indicateNoMoreAddsAllowed();
+            }
+            for (int i = 0; i < assemblers.length; i++) {
+                assemblers[i].waitUntilStopped();
+            }
+            if (metrics != null) metrics.stop();
+
+            // report the first failure, a failed read shows up as missing rows in the output
+            for (int i = 0; i < producers.length; i++) {
+                if (producers[i].getFailure() != null) throw producers[i].getFailure();
+            }
+            for (int i = 0; i < assemblers.length; i++) {
+                if (assemblers[i].getFailure() != null) throw assemblers[i].getFailure();
+            }
+        } finally {
+            for (int i = 0; i < readers.length; i++) {
+                if (readers[i] != null) readers[i].close();
+                if (writers[i] != null) writers[i].close();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static PipelineFifo<PipelineWork>[] createAssemblerFifos(int count, PipelineConfig config) {
+        PipelineFifo<PipelineWork>[] fifos = new PipelineFifo[count];
+        for (int i = 0; i < count; i++) {
+            fifos[i] = PipelineFifo.create(config.getAssemblerFifoKind(), config.getFifoSize(), PipelineWork.class);
+            if (config.getMetrics() != null) config.getMetrics().addFifo("assembler " + i, fifos[i]);
+        }
+        return fifos;
+    }
+
     public static PpmImage flipHorizontally(PpmImage imageOriginal) {
         PpmImage.Row[] newRows = new PpmImage.Row[imageOriginal.getRowCount()];
         for (int rowIndex = 0; rowIndex < newRows.length; rowIndex++) {
@@ -91,15 +360,44 @@ public class PpmImageDemo {
     public static PpmImage grayscale(PpmImage imageOriginal) {
         PpmImage.Row[] newRows = new PpmImage.Row[imageOriginal.getRowCount()];
         for (int rowIndex = 0; rowIndex < newRows.length; rowIndex++) {
-            PpmImage.Pixel[] newPixelsForRow = new PpmImage.Pixel[imageOriginal.getColumnCount()];
-            for (int colIndex = 0; colIndex < newPixelsForRow.length; colIndex++) {
-                newPixelsForRow[colIndex] = imageOriginal.getPixelAt(rowIndex, colIndex).asGrayscale();
-            }
-            newRows[rowIndex] = new PpmImage.Row(newPixelsForRow);
+            newRows[rowIndex] = imageOriginal.getRowAt(rowIndex).asRowGrayscaled();
         }
         return new PpmImage(newRows);
     }
 
+    // the plain per-pixel version of a 3x3 stage, see Convolution
+    public static PpmImage convolve(PpmImage imageOriginal, PipelineStage stage) {
+        return Convolution.applyReference(imageOriginal, stage);
+    }
+
+    // the stages one after the other on the whole image, on the calling thread
+    public static PpmImage executeSerially(PpmImage image, PipelineStage[] pipeline) {
+        for (PipelineStage stage : pipeline) {
+            switch (stage) {
+                case FLIP_HORIZONTALLY:
+                    image = flipHorizontally(image);
+                    break;
+                case GRAYSCALE:
+                    image = grayscale(image);
+                    break;
+                default:
+                    image = stage.isGeometric() ? TileTransform.applyReference(image, stage) : convolve(image, stage);
+                    break;
+            }
+        }
+        return image;
+    }
+
+    // random pixels, so the P3 text has a realistic mix of 1, 2 and 3 digit values
+    static PpmImage createSyntheticImage(int rowCount, int columnCount) {
+        Random random = new Random(42);
+        int[] pixels = new int[rowCount * columnCount];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt(1 << 24);
+        }
+        return PpmImage.createFromIntBits(rowCount, columnCount, pixels);
+    }
+
     public static void mainSerial(String[] args) {
         NanoTimer timer = NanoTimer.createStarted();
         NanoTimer ioTimer = NanoTimer.createStopped();
@@ -185,6 +483,82 @@ public class PpmImageDemo {
         }
     }
 
+    public static void mainParallelAsync(String[] args) throws InterruptedException {
+        NanoTimer timer = NanoTimer.createStarted();
+        try {
+            ThreadTools.outln("reading penguin...");
+            PpmImage penguinOriginal = PpmImage.createFromFilename("src/images/penguin.ppm");
+            ThreadTools.outln("reading flowers...");
+            PpmImage flowersOriginal = PpmImage.createFromFilename("src/images/flowers.ppm");
+
+            PpmImage[] images = { penguinOriginal, flowersOriginal };
+            String[] outputs = {
+                "src/images/penguin-flipped-horiz-and-grayscaled.ppm",
+                "src/images/flowers-flipped-horiz-and-grayscaled.ppm" };
+            PipelineStage[] pipeline = { PipelineStage.FLIP_HORIZONTALLY, PipelineStage.GRAYSCALE};
+            ThreadTools.outln("processing images in pipeline");
+            List<CompletableFuture<PpmImage>> futures = executePipelineAsync(images, pipeline, new PipelineConfig());
+
+            // each image is written as soon as it is done, while the later ones are still being processed
+            for (int i = 0; i < futures.size(); i++) {
+                PpmImage image = futures.get(i).get();
+                ThreadTools.outln("writing " + outputs[i]);
+                image.writeToFilename(outputs[i]);
+            }
+        } catch (ExecutionException x) {
+            x.printStackTrace();
+        } catch (IOException x) {
+            x.printStackTrace();
+        } finally {
+            timer.stop();
+            ThreadTools.outln("finished processing images, overall took %.5fs", timer.getElapsedSeconds());
+        }
+    }
+
+    // runs the pipeline with metrics, a single fused stage would hide which of the stages is the slow one
+    public static void mainMetrics(String[] args) throws InterruptedException {
+        try {
+            ThreadTools.outln("reading penguin...");
+            PpmImage penguinOriginal = PpmImage.createFromFilename("src/images/penguin.ppm");
+            ThreadTools.outln("reading flowers...");
+            PpmImage flowersOriginal = PpmImage.createFromFilename("src/images/flowers.ppm");
+
+            PpmImage[] images = { penguinOriginal, flowersOriginal };
+            PipelineStage[] pipeline = { PipelineStage.FLIP_HORIZONTALLY, PipelineStage.GRAYSCALE};
+            PipelineMetrics metrics = new PipelineMetrics();
+            executePipeline(images, pipeline, new PipelineConfig().setFuseStages(false).setMetrics(metrics));
+
+            PipelineMetrics.Snapshot snapshot = metrics.snapshot();
+            for (PipelineMetrics.StageStats stage : snapshot.stages) {
+                ThreadTools.outln("%-30s %6d rows, %7.1f rows/s, busy %6dms, blocked %6dms", stage.name,
+                    stage.rowCount, stage.rowsPerSecond, stage.busyMillis, stage.blockedMillis);
+            }
+            ThreadTools.outln("row latency p50 %.3fms, p99 %.3fms", snapshot.rowLatency.getPercentileNanos(50) / 1e6,
+                snapshot.rowLatency.getPercentileNanos(99) / 1e6);
+            ThreadTools.outln(snapshot.toJson());
+        } catch (IOException x) {
+            x.printStackTrace();
+        }
+    }
+
+    public static void mainStreaming(String[] args) throws InterruptedException {
+        NanoTimer timer = NanoTimer.createStarted();
+        try {
+            String[] inputs = { "src/images/penguin.ppm", "src/images/flowers.ppm" };
+            String[] outputs = {
+                "src/images/penguin-flipped-horiz-and-grayscaled.ppm",
+                "src/images/flowers-flipped-horiz-and-grayscaled.ppm" };
+            PipelineStage[] pipeline = { PipelineStage.FLIP_HORIZONTALLY, PipelineStage.GRAYSCALE};
+            ThreadTools.outln("streaming images through pipeline");
+            executeStreamingPipeline(inputs, outputs, pipeline, 4);
+        } catch (IOException x) {
+            x.printStackTrace();
+        } finally {
+            timer.stop();
+            ThreadTools.outln("finished streaming images, overall took %.5fs", timer.getElapsedSeconds());
+        }
+    }
+
     public static void timeSerial() {
         NanoTimer timer = NanoTimer.createStarted();
         NanoTimer ioTimer = NanoTimer.createStopped();
@@ -293,10 +667,1178 @@ public class PpmImageDemo {
         }
     }
 
+    public static void timeFusion() throws InterruptedException {
+        try {
+            ThreadTools.outln("reading penguin...");
+            PpmImage penguinOriginal = PpmImage.createFromFilename("src/images/penguin.ppm");
+            ThreadTools.outln("reading flowers...");
+            PpmImage flowersOriginal = PpmImage.createFromFilename("src/images/flowers.ppm");
+
+            PpmImage[] images = { penguinOriginal, flowersOriginal };
+            PipelineStage[] pipeline = { PipelineStage.FLIP_HORIZONTALLY, PipelineStage.GRAYSCALE};
+            double unfusedTotal = 0.0;
+            double fusedTotal = 0.0;
+            ThreadTools.outln("starting averaging");
+            for (int i = 0; i < 20; i++) {
+                NanoTimer timer = NanoTimer.createStarted();
+                executePipeline(images, pipeline, 4, false);
+                timer.stop();
+                unfusedTotal += timer.getElapsedSeconds();
+
+                timer = NanoTimer.createStarted();
+                executePipeline(images, pipeline, 4, true);
+                timer.stop();
+                fusedTotal += timer.getElapsedSeconds();
+            }
+            ThreadTools.outln("Average unfused processing time: " + unfusedTotal/20);
+            ThreadTools.outln("Average fused processing time: " + fusedTotal/20);
+            ThreadTools.outln("finished averaging");
+        } catch (IOException x) {
+            x.printStackTrace();
+        }
+    }
+
+    public static void timeEngines() throws InterruptedException {
+        try {
+            ThreadTools.outln("reading penguin...");
+            PpmImage penguinOriginal = PpmImage.createFromFilename("src/images/penguin.ppm");
+            ThreadTools.outln("reading flowers...");
+            PpmImage flowersOriginal = PpmImage.createFromFilename("src/images/flowers.ppm");
+
+            PpmImage[] images = { penguinOriginal, flowersOriginal };
+            PipelineStage[] pipeline = { PipelineStage.FLIP_HORIZONTALLY, PipelineStage.GRAYSCALE};
+            PipelineConfig dedicated = new PipelineConfig().setEngine(PipelineConfig.Engine.DEDICATED_THREADS);
+            PipelineConfig workStealing = new PipelineConfig().setEngine(PipelineConfig.Engine.WORK_STEALING);
+            double dedicatedTotal = 0.0;
+            double workStealingTotal = 0.0;
+            boolean identical = true;
+            ThreadTools.outln("starting averaging");
+            for (int i = 0; i < 20; i++) {
+                NanoTimer timer = NanoTimer.createStarted();
+                PpmImage[] dedicatedImages = executePipeline(images, pipeline, dedicated);
+                timer.stop();
+                dedicatedTotal += timer.getElapsedSeconds();
+
+                timer = NanoTimer.createStarted();
+                PpmImage[] workStealingImages = executePipeline(images, pipeline, workStealing);
+                timer.stop();
+                workStealingTotal += timer.getElapsedSeconds();
+
+                for (int j = 0; j < images.length; j++) {
+                    identical &= Arrays.equals(dedicatedImages[j].getIntBits(), workStealingImages[j].getIntBits());
+                }
+            }
+            ThreadTools.outln("Average dedicated threads processing time: " + dedicatedTotal/20);
+            ThreadTools.outln("Average work-stealing processing time: " + workStealingTotal/20);
+            ThreadTools.outln("finished averaging, identical results: " + identical);
+        } catch (IOException x) {
+            x.printStackTrace();
+        }
+    }
+
+    // args: input directory (or glob) and output directory, by default the sample images into src/images/batch
+    public static void mainBatch(String[] args) throws InterruptedException {
+        String input = args.length > 0 ? args[0] : "src/images/*.ppm";
+        File outputDirectory = new File(args.length > 1 ? args[1] : "src/images/batch");
+        PipelineStage[] pipeline = { PipelineStage.FLIP_HORIZONTALLY, PipelineStage.GRAYSCALE};
+        try {
+            BatchProcessor.Report report = new BatchProcessor(pipeline, new PipelineConfig())
+                .setIoThreadCount(4)
+                .setMemoryCeilingBytes(256L * 1024 * 1024)
+                .run(input, outputDirectory);
+            for (String failure : report.getFailures()) {
+                ThreadTools.outln("failed: %s", failure);
+            }
+            ThreadTools.outln("batch finished: %s", report);
+        } catch (IOException x) {
+            x.printStackTrace();
+        }
+    }
+
+    public static void timeAutoscaling() throws InterruptedException {
+        try {
+            ThreadTools.outln("reading penguin...");
+            PpmImage penguinOriginal = PpmImage.createFromFilename("src/images/penguin.ppm");
+            ThreadTools.outln("reading flowers...");
+            PpmImage flowersOriginal = PpmImage.createFromFilename("src/images/flowers.ppm");
+
+            PpmImage[] images = { penguinOriginal, flowersOriginal };
+            PipelineStage[] pipeline = { PipelineStage.FLIP_HORIZONTALLY, PipelineStage.GRAYSCALE};
+            // the same budget of 8 workers, split evenly up front or moved to where the fifos back up
+            PipelineConfig fixed = new PipelineConfig().setFuseStages(false).setWorkersPerStage(4);
+            PipelineConfig autoscaling = new PipelineConfig().setFuseStages(false).setWorkersPerStage(1)
+                .setAutoscaling(true).setMaxWorkerThreads(8);
+            double fixedTotal = 0.0;
+            double autoscalingTotal = 0.0;
+            boolean identical = true;
+            ThreadTools.outln("starting averaging");
+            for (int i = 0; i < 20; i++) {
+                NanoTimer timer = NanoTimer.createStarted();
+                PpmImage[] fixedImages = executePipeline(images, pipeline, fixed);
+                timer.stop();
+                fixedTotal += timer.getElapsedSeconds();
+
+                timer = NanoTimer.createStarted();
+                PpmImage[] autoscalingImages = executePipeline(images, pipeline, autoscaling);
+                timer.stop();
+                autoscalingTotal += timer.getElapsedSeconds();
+
+                for (int j = 0; j < images.length; j++) {
+                    identical &= Arrays.equals(fixedImages[j].getIntBits(), autoscalingImages[j].getIntBits());
+                }
+            }
+            ThreadTools.outln("Average fixed workers processing time: " + fixedTotal/20);
+            ThreadTools.outln("Average autoscaled workers processing time: " + autoscalingTotal/20);
+            ThreadTools.outln("finished averaging, identical results: " + identical);
+        } catch (IOException x) {
+            x.printStackTrace();
+        }
+    }
+
+    public static void timeCache() throws InterruptedException {
+        try {
+            ThreadTools.outln("reading penguin...");
+            PpmImage penguinOriginal = PpmImage.createFromFilename("src/images/penguin.ppm");
+            ThreadTools.outln("reading flowers...");
+            PpmImage flowersOriginal = PpmImage.createFromFilename("src/images/flowers.ppm");
+
+            PpmImage[] images = { penguinOriginal, flowersOriginal };
+            PipelineStage[] pipeline = { PipelineStage.FLIP_HORIZONTALLY, PipelineStage.GRAYSCALE};
+            ProcessedImageCache cache = new ProcessedImageCache(64L * 1024 * 1024);
+            for (int i = 0; i < 3; i++) {
+                NanoTimer timer = NanoTimer.createStarted();
+                cache.processAll(images, pipeline, new PipelineConfig());
+                timer.stop();
+                ThreadTools.outln("run %d took %.5fs, %s", i, timer.getElapsedSeconds(), cache);
+            }
+        } catch (IOException x) {
+            x.printStackTrace();
+        }
+    }
+
+    // the three things the cache promises, on synthetic images: a memory miss served from the disk tier with the
+    // same pixels, least recently used entries evicted at the byte budget, and concurrent requests for one image
+    // collapsed onto a single pipeline run
+    public static void checkCache() throws InterruptedException {
+        PipelineStage[] pipeline = { PipelineStage.FLIP_HORIZONTALLY, PipelineStage.GRAYSCALE };
+        PipelineConfig config = new PipelineConfig();
+        File directory = null;
+        try {
+            directory = java.nio.file.Files.createTempDirectory("ppmimage-cache-").toFile();
+            PpmImage image = createSyntheticImage(61, 83);
+            PpmImage expected = executeSerially(image, pipeline);
+            ProcessedImageCache cache = new ProcessedImageCache(1L << 20, directory);
+            PpmImage computed = cache.process(image, pipeline, config);
+            cache.clearMemory();
+            PpmImage fromDisk = cache.process(image, pipeline, config);
+            // a new cache on the same directory starts with an empty memory tier
+            PpmImage fromDiskAgain = new ProcessedImageCache(1L << 20, directory).process(image, pipeline, config);
+            boolean identical = sameImage(expected, computed) && sameImage(expected, fromDisk) &&
+                sameImage(expected, fromDiskAgain);
+            ThreadTools.outln("disk tier: %s, identical=%b", cache, identical);
+            confirm(identical && cache.getMissCount() == 1 && cache.getDiskHitCount() == 1,
+                "the disk tier didn't serve the memory miss: %s", cache);
+        } catch (IOException x) {
+            x.printStackTrace();
+        } finally {
+            if (directory != null) {
+                File[] entries = directory.listFiles();
+                for (File entry : entries != null ? entries : new File[0]) {
+                    entry.delete();
+                }
+                directory.delete();
+            }
+        }
+
+        // room for two of the three images, a, b and c are the same size
+        PpmImage a = createSyntheticImage(40, 50);
+        PpmImage b = createSyntheticImage(50, 40);
+        PpmImage c = createSyntheticImage(20, 100);
+        ProcessedImageCache lru = new ProcessedImageCache(2 * (4L * 40 * 50 + 64));
+        lru.process(a, pipeline, config);
+        lru.process(b, pipeline, config);
+        lru.process(a, pipeline, config);
+        // a was used last, so c pushes b out
+        lru.process(c, pipeline, config);
+        long missesBefore = lru.getMissCount();
+        boolean identical = sameImage(executeSerially(a, pipeline), lru.process(a, pipeline, config));
+        boolean aKept = lru.getMissCount() == missesBefore;
+        lru.process(b, pipeline, config);
+        boolean bEvicted = lru.getMissCount() == missesBefore + 1;
+        ThreadTools.outln("eviction: %s, kept the recently used one=%b, evicted the other=%b, identical=%b", lru,
+            aKept, bEvicted, identical);
+        confirm(aKept && bEvicted && identical && lru.getMemoryBytes() <= 2 * (4L * 40 * 50 + 64),
+            "least recently used eviction went wrong: %s", lru);
+
+        // the slow factor keeps the first run going while the other threads ask for the same image
+        PpmImage shared = createSyntheticImage(300, 200);
+        PpmImage expected = executeSerially(shared, pipeline);
+        ProcessedImageCache collapsing = new ProcessedImageCache(1L << 24);
+        int threadCount = 8;
+        PpmImage[] results = new PpmImage[threadCount];
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            int index = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                    results[index] = collapsing.process(shared, pipeline, config);
+                } catch (InterruptedException x) {
+                    // the result stays null
+                }
+            }, "requester " + t);
+            threads[t].start();
+        }
+        start.countDown();
+        boolean allIdentical = true;
+        for (int t = 0; t < threadCount; t++) {
+            threads[t].join();
+            allIdentical &= results[t] != null && sameImage(expected, results[t]);
+        }
+        ThreadTools.outln("%d concurrent requests: %s, identical=%b", threadCount, collapsing, allIdentical);
+        confirm(allIdentical && collapsing.getMissCount() == 1 && collapsing.getCollapsedCount() > 0,
+            "concurrent requests weren't collapsed onto one run: %s", collapsing);
+    }
+
+    // every frame has to come out as a full executePipeline of it would, and only the rows that changed may go
+    // through the stages: none for a repeated frame, all of them for the first frame and a resized one; a chain with
+    // a halo stage always runs in full, an output row there depends on the input rows around it
+    public static void checkIncremental() throws InterruptedException {
+        PipelineConfig config = new PipelineConfig().setRowsPerBand(4);
+        PipelineStage[] rowLocal = { PipelineStage.FLIP_HORIZONTALLY, PipelineStage.GRAYSCALE };
+        PipelineStage[] halo = { PipelineStage.GRAYSCALE, PipelineStage.BLUR };
+        PpmImage first = createSyntheticImage(61, 83);
+        // the edges, two neighbours and one row alone, so BLUR would need rows on both sides of a change
+        int[] changedRows = { 0, 29, 30, 45, 60 };
+        PpmImage changed = withChangedRows(first, changedRows);
+        PpmImage resized = createSyntheticImage(40, 83);
+        PpmImage[] frames = { first, first, changed, changed, resized };
+        String[] names = { "first", "unchanged", "changed rows", "unchanged", "resized" };
+        for (PipelineStage[] pipeline : new PipelineStage[][] { rowLocal, halo }) {
+            int[] expectedProcessed = pipeline == rowLocal ? new int[] { 61, 0, changedRows.length, 0, 40 } :
+                new int[] { 61, 61, 61, 61, 40 };
+            IncrementalPipeline incremental = new IncrementalPipeline(pipeline, config);
+            for (int f = 0; f < frames.length; f++) {
+                PpmImage result = incremental.process(frames[f]);
+                boolean identical =
+                    sameImage(executePipeline(new PpmImage[] { frames[f] }, pipeline, config)[0], result);
+                int processed = incremental.getLastProcessedRowCount();
+                int skipped = incremental.getLastSkippedRowCount();
+                ThreadTools.outln("%s, %s frame: processed %d, skipped %d, identical=%b", Worker.describe(pipeline),
+                    names[f], processed, skipped, identical);
+                confirm(identical && processed == expectedProcessed[f] &&
+                    skipped == frames[f].getRowCount() - expectedProcessed[f],
+                    "%s frame through %s: processed %d and skipped %d rows, identical=%b", names[f],
+                    Worker.describe(pipeline), processed, skipped, identical);
+            }
+        }
+    }
+
+    // a mostly still stream: every frame changes a band of rows that moves down the image, processed in full
+    // against incrementally
+    public static void timeIncremental() throws InterruptedException {
+        PpmImage frame = createSyntheticImage(1000, 800);
+        PipelineStage[] pipeline = { PipelineStage.FLIP_HORIZONTALLY, PipelineStage.GRAYSCALE };
+        PipelineConfig config = new PipelineConfig();
+        IncrementalPipeline incremental = new IncrementalPipeline(pipeline, config);
+        incremental.process(frame);
+        NanoTimer full = NanoTimer.createStopped();
+        NanoTimer partial = NanoTimer.createStopped();
+        int frames = 10;
+        int[] band = new int[20];
+        for (int f = 0; f < frames; f++) {
+            for (int i = 0; i < band.length; i++) {
+                band[i] = f * 90 + i;
+            }
+            frame = withChangedRows(frame, band);
+            full.start();
+            executePipeline(new PpmImage[] { frame }, pipeline, config);
+            full.stop();
+            partial.start();
+            incremental.process(frame);
+            partial.stop();
+        }
+        incremental.logReport();
+        ThreadTools.outln("per %dx%d frame: full %.5fs, incremental %.5fs, %.1fx faster", frame.getColumnCount(),
+            frame.getRowCount(), full.getElapsedSeconds() / frames, partial.getElapsedSeconds() / frames,
+            full.getElapsedSeconds() / partial.getElapsedSeconds());
+    }
+
+    // a copy with the colors of the given rows inverted
+    private static PpmImage withChangedRows(PpmImage image, int[] rows) {
+        int[] pixels = image.getIntBits();
+        int columnCount = image.getColumnCount();
+        for (int row : rows) {
+            for (int i = row * columnCount; i < (row + 1) * columnCount; i++) {
+                pixels[i] ^= 0xFFFFFF;
+            }
+        }
+        return PpmImage.wrapIntBits(image.getRowCount(), columnCount, pixels);
+    }
+
+    // the kernels have to match the double formula for every color, vector lengths and tails included
+    public static void checkKernels() {
+        ThreadTools.outln("kernels vectorized: " + RowKernels.isVectorized());
+        for (int rowLength : new int[] { 1, 37, 4096 }) {
+            int mismatch = RowKernels.findMismatch(rowLength);
+            ThreadTools.outln("rows of %d: %s", rowLength,
+                mismatch < 0 ? "all 2^24 colors match" : String.format("color 0x%06x differs", mismatch));
+        }
+        // once compiled the kernels must not allocate, or recycled band buffers save nothing
+        double bytesPerCall = allocatedBytesPerKernelCall(4096);
+        ThreadTools.outln("bytes per grayscale and flip of 4096 pixels, once warm: %.2f", bytesPerCall);
+        confirm(bytesPerCall < 1.0, "the kernels allocate %.2f bytes per call", bytesPerCall);
+    }
+
+    // grayscale in place and a flip of a row of random colors (so there are ties), after enough calls to compile them
+    private static double allocatedBytesPerKernelCall(int rowLength) {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        Random random = new Random(1);
+        int[] row = new int[rowLength];
+        int[] flipped = new int[rowLength];
+        long startBytes = 0;
+        int calls = 20000;
+        for (int call = 0; call < 2 * calls; call++) {
+            if (call == calls) startBytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            if (call % 64 == 0) {
+                for (int i = 0; i < rowLength; i++) {
+                    row[i] = random.nextInt(1 << 24);
+                }
+            }
+            RowKernels.flip(row, 0, flipped, 0, rowLength);
+            RowKernels.grayscale(flipped, 0, flipped, 0, rowLength);
+        }
+        return (double) (threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - startBytes) / calls;
+    }
+
+    private static void timeReaders(String filename, int runs) throws IOException {
+        double scannerTotal = 0.0;
+        double readerTotal = 0.0;
+        PpmImage scannerImage = null;
+        PpmImage readerImage = null;
+        for (int i = 0; i < runs; i++) {
+            NanoTimer timer = NanoTimer.createStarted();
+            scannerImage = PpmImage.createFromFilenameWithScanner(filename);
+            timer.stop();
+            scannerTotal += timer.getElapsedSeconds();
+
+            timer = NanoTimer.createStarted();
+            readerImage = PpmReader.read(filename);
+            timer.stop();
+            readerTotal += timer.getElapsedSeconds();
+        }
+        boolean identical = scannerImage.getRowCount() == readerImage.getRowCount() &&
+            scannerImage.getColumnCount() == readerImage.getColumnCount() &&
+            Arrays.equals(scannerImage.getIntBits(), readerImage.getIntBits());
+        ThreadTools.outln("%s (%dx%d): Scanner %.5fs, PpmReader %.5fs, speedup %.1fx, identical=%b", filename,
+            readerImage.getColumnCount(), readerImage.getRowCount(), scannerTotal / runs, readerTotal / runs,
+            scannerTotal / readerTotal, identical);
+    }
+
+    public static void timeReaders() {
+        try {
+            timeReaders("src/images/penguin.ppm", 20);
+            timeReaders("src/images/flowers.ppm", 20);
+
+            File largeFile = File.createTempFile("synthetic-", ".ppm");
+            largeFile.deleteOnExit();
+            ThreadTools.outln("writing synthetic 3000x2000 image...");
+            createSyntheticImage(2000, 3000).writeToFilename(largeFile.getPath());
+            timeReaders(largeFile.getPath(), 3);
+        } catch (IOException x) {
+            x.printStackTrace();
+        }
+    }
+
+    public static void timeWriters() {
+        try {
+            File file = File.createTempFile("written-", ".ppm");
+            file.deleteOnExit();
+            ThreadTools.outln("creating synthetic 3000x2000 image...");
+            PpmImage image = createSyntheticImage(2000, 3000);
+            for (PpmImage.Format format : PpmImage.Format.values()) {
+                NanoTimer timer;
+                if (format == PpmImage.Format.P3) {
+                    timer = NanoTimer.createStarted();
+                    image.writeToFilenameWithPrintWriter(file.getPath());
+                    timer.stop();
+                    ThreadTools.outln("%s printf: %.5fs", format, timer.getElapsedSeconds());
+                }
+                timer = NanoTimer.createStarted();
+                PpmWriter.write(image, file.getPath(), format);
+                timer.stop();
+                ThreadTools.outln("%s PpmWriter: %.5fs", format, timer.getElapsedSeconds());
+
+                timer = NanoTimer.createStarted();
+                ParallelPpmEncoder.write(image, file.getPath(), format);
+                timer.stop();
+                ThreadTools.outln("%s ParallelPpmEncoder: %.5fs", format, timer.getElapsedSeconds());
+            }
+        } catch (IOException x) {
+            x.printStackTrace();
+        }
+    }
+
+    // the parallel decoder has to give the sequential reader's pixels, or fail with the same message, wherever the
+    // chunk boundaries fall; odd whitespace, signs, huge values and truncated or broken bodies included
+    public static void checkParallelDecoder() {
+        String[] bodies = {
+            createAsciiBody(37, 23, new Random(1)),
+            createAsciiBody(5, 3, new Random(2)) + "  trailing garbage is ignored",
+            createAsciiBody(5, 3, new Random(3)).trim(), // no whitespace after the last number
+            "1 2 3\t4 5 6\n\n7 8 9 10 +11", // 2x2 short of a value
+            "1 2 3 4 5 x 7 8 9 10 11 12",
+            "1 2 3 4 5 - 7 8 9 10 11 12",
+            "1 2 3 4 5 6 # a comment\n7 8 9 10 11 12",
+        };
+        int[][] sizes = { { 23, 37 }, { 3, 5 }, { 3, 5 }, { 2, 2 }, { 2, 2 }, { 2, 2 }, { 2, 2 } };
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            File file = File.createTempFile("decoded-", ".ppm");
+            file.deleteOnExit();
+            for (int i = 0; i < bodies.length; i++) {
+                int rowCount = sizes[i][0];
+                int columnCount = sizes[i][1];
+                try (Writer writer = new FileWriter(file)) {
+                    writer.write("P3\n" + columnCount + " " + rowCount + "\n255\n" + bodies[i]);
+                }
+                String expected = decodeSequentially(file);
+                boolean identical = true;
+                for (long chunkBytes : new long[] { 1, 2, 3, 7, 64, 4096 }) {
+                    String actual;
+                    try (FileChannel channel = PpmReader.openChannel(file.getPath())) {
+                        PpmImage image = ParallelP3Decoder.decodeInChunks(channel, ("P3\n" + columnCount + " " +
+                            rowCount + "\n255").length(), columnCount, rowCount, executor, chunkBytes);
+                        actual = image == null ? decodeSequentially(file) : Arrays.toString(image.getIntBits());
+                    } catch (IOException x) {
+                        actual = x.toString();
+                    }
+                    if (!actual.equals(expected)) {
+                        identical = false;
+                        ThreadTools.outln("body %d, chunks of %d: %s instead of %s", i, chunkBytes, actual, expected);
+                    }
+                }
+                ThreadTools.outln("body %d (%dx%d): identical=%b%s", i, columnCount, rowCount, identical,
+                    expected.startsWith("[") ? "" : ", both failed with " + expected);
+                confirm(identical, "body %d: the chunked decoder differs from the sequential one", i);
+            }
+        } catch (IOException x) {
+            x.printStackTrace();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static String decodeSequentially(File file) {
+        try (PpmReader reader = new PpmReader(PpmReader.openChannel(file.getPath()))) {
+            return Arrays.toString(reader.readImage().getIntBits());
+        } catch (IOException x) {
+            return x.toString();
+        }
+    }
+
+    // numbers from -20 to 280 and a few huge ones, with leading zeros, plus signs and runs of mixed whitespace
+    private static String createAsciiBody(int columnCount, int rowCount, Random random) {
+        String[] separators = { " ", "  ", "\n", "\t", "\r\n", " \t \n " };
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 3 * columnCount * rowCount; i++) {
+            body.append(separators[random.nextInt(separators.length)]);
+            int value = random.nextInt(301) - 20;
+            if (value >= 0 && random.nextInt(10) == 0) body.append(random.nextBoolean() ? "+" : "0");
+            body.append(random.nextInt(50) == 0 ? "12345678901234567890" : String.valueOf(value));
+        }
+        return body.append('\n').toString();
+    }
+
+    public static void timeDecoders() {
+        try {
+            File file = File.createTempFile("synthetic-", ".ppm");
+            file.deleteOnExit();
+            ThreadTools.outln("writing synthetic 3000x2000 image...");
+            createSyntheticImage(2000, 3000).writeToFilename(file.getPath(), PpmImage.Format.P3);
+            for (int i = 0; i < 3; i++) {
+                NanoTimer timer = NanoTimer.createStarted();
+                String sequential = decodeSequentially(file);
+                timer.stop();
+                double sequentialSeconds = timer.getElapsedSeconds();
+
+                timer = NanoTimer.createStarted();
+                PpmImage image = PpmReader.read(file.getPath());
+                timer.stop();
+                ThreadTools.outln("sequential %.5fs, PpmReader.read %.5fs (%d processors), identical=%b",
+                    sequentialSeconds, timer.getElapsedSeconds(), Runtime.getRuntime().availableProcessors(),
+                    sequential.equals(Arrays.toString(image.getIntBits())));
+            }
+        } catch (IOException x) {
+            x.printStackTrace();
+        }
+    }
+
+    // the 3x3 stages have to give the serial reference's pixels whatever the bands, the engine and the fusing, with
+    // images that are a single row or a single column among them
+    public static void checkConvolutions() throws InterruptedException {
+        PpmImage[] images = { createSyntheticImage(61, 83), createSyntheticImage(1, 40), createSyntheticImage(33, 1) };
+        PipelineStage[][] pipelines = {
+            { PipelineStage.BLUR },
+            { PipelineStage.SHARPEN },
+            { PipelineStage.EDGE_DETECT },
+            { PipelineStage.BLUR, PipelineStage.BLUR },
+            { PipelineStage.FLIP_HORIZONTALLY, PipelineStage.BLUR, PipelineStage.GRAYSCALE, PipelineStage.SHARPEN,
+                PipelineStage.EDGE_DETECT },
+        };
+        PipelineConfig[] configs = {
+            new PipelineConfig().setRowsPerBand(1),
+            new PipelineConfig().setRowsPerBand(2).setFuseStages(false),
+            new PipelineConfig().setRowsPerBand(7).setCompletionMode(PipelineConfig.CompletionMode.DIRECT_PLACEMENT),
+            new PipelineConfig().setRowsPerBand(1000),
+            new PipelineConfig().setRowsPerBand(1).setEngine(PipelineConfig.Engine.WORK_STEALING),
+            new PipelineConfig().setRowsPerBand(5).setEngine(PipelineConfig.Engine.WORK_STEALING),
+        };
+        for (PipelineStage[] pipeline : pipelines) {
+            PpmImage[] expected = new PpmImage[images.length];
+            for (int i = 0; i < images.length; i++) {
+                expected[i] = executeSerially(images[i], pipeline);
+            }
+            int mismatches = 0;
+            for (PipelineConfig config : configs) {
+                PpmImage[] actual = executePipeline(images, pipeline, config);
+                for (int i = 0; i < images.length; i++) {
+                    if (!Arrays.equals(expected[i].getIntBits(), actual[i].getIntBits())) {
+                        mismatches++;
+                        ThreadTools.outln("%s: image %d differs with %d rows per band, engine %s",
+                            Worker.describe(pipeline), i, config.getRowsPerBand(), config.getEngine());
+                    }
+                }
+            }
+            ThreadTools.outln("%s: %s", Worker.describe(pipeline),
+                mismatches == 0 ? "identical to the serial reference" : mismatches + " mismatches");
+            confirm(mismatches == 0, "%s: %d mismatches with the serial reference", Worker.describe(pipeline),
+                mismatches);
+        }
+    }
+
+    public static void timeConvolutions() throws InterruptedException {
+        PpmImage[] images = { createSyntheticImage(1200, 1600) };
+        for (PipelineStage stage : new PipelineStage[] { PipelineStage.BLUR, PipelineStage.SHARPEN,
+                PipelineStage.EDGE_DETECT }) {
+            NanoTimer timer = NanoTimer.createStarted();
+            PpmImage reference = convolve(images[0], stage);
+            timer.stop();
+            double referenceSeconds = timer.getElapsedSeconds();
+
+            timer = NanoTimer.createStarted();
+            PpmImage pipelined = executePipeline(images, new PipelineStage[] { stage }, new PipelineConfig())[0];
+            timer.stop();
+            ThreadTools.outln("%s: reference %.5fs, pipeline %.5fs (slow factor %d), identical=%b", stage,
+                referenceSeconds, timer.getElapsedSeconds(), PpmImage.getSlowFactor(),
+                Arrays.equals(reference.getIntBits(), pipelined.getIntBits()));
+        }
+    }
+
+    // same size is the identity for every filter, a flat color stays flat, and the bands on a pool give exactly what
+    // a single band on one thread gives
+    public static void checkResampler() throws InterruptedException {
+        PpmImage image = createSyntheticImage(61, 83);
+        PpmImage flat = PpmImage.wrapIntBits(40, 50, filled(40 * 50, 0x4080C0));
+        for (Resampler.Filter filter : Resampler.Filter.values()) {
+            Resampler same = new Resampler(image.getColumnCount(), image.getRowCount(), filter);
+            Resampler[] outputs = { new Resampler(20, 15, filter), new Resampler(7, 3, filter),
+                new Resampler(200, 130, filter), new Resampler(1, 1, filter), same };
+            boolean identical = true;
+            for (int rowsPerBand : new int[] { 1, 4, 1000 }) {
+                PipelineConfig config = new PipelineConfig().setRowsPerBand(rowsPerBand);
+                PpmImage[] resized = Resampler.resizeAll(image, outputs, config);
+                for (int j = 0; j < outputs.length; j++) {
+                    identical &= Arrays.equals(outputs[j].resize(image).getIntBits(), resized[j].getIntBits());
+                }
+            }
+            boolean stillFlat = true;
+            for (Resampler output : outputs) {
+                int[] resized = output.resize(flat).getIntBits();
+                stillFlat &= Arrays.equals(resized, filled(resized.length, 0x4080C0));
+            }
+            boolean identity = Arrays.equals(same.resize(image).getIntBits(), image.getIntBits());
+            ThreadTools.outln("%s: parallel identical to serial=%b, same size is the identity=%b, flat stays flat=%b",
+                filter, identical, identity, stillFlat);
+            confirm(identical && identity && stillFlat, "%s: the resampler check failed", filter);
+        }
+    }
+
+    private static int[] filled(int length, int intBits) {
+        int[] pixels = new int[length];
+        Arrays.fill(pixels, intBits);
+        return pixels;
+    }
+
+    // thumbnails and previews of the sample images, every size out of one read and one pass through the stages
+    public static void mainThumbnails(String[] args) throws InterruptedException {
+        try {
+            PpmImage[] images = { PpmImage.createFromFilename("src/images/penguin.ppm"),
+                PpmImage.createFromFilename("src/images/flowers.ppm") };
+            String[] names = { "penguin", "flowers" };
+            PipelineStage[] pipeline = { PipelineStage.FLIP_HORIZONTALLY, PipelineStage.GRAYSCALE};
+            PipelineConfig config = new PipelineConfig();
+            for (int i = 0; i < images.length; i++) {
+                Resampler[] outputs = { Resampler.fitting(images[i], 128, 128, Resampler.Filter.BILINEAR),
+                    Resampler.fitting(images[i], 512, 512, Resampler.Filter.LANCZOS3) };
+                NanoTimer timer = NanoTimer.createStarted();
+                PpmImage[] resized = executePipeline(new PpmImage[] { images[i] }, pipeline, config, outputs)[0];
+                timer.stop();
+                ThreadTools.outln("%s: %d sizes in %.5fs", names[i], outputs.length, timer.getElapsedSeconds());
+                for (int j = 0; j < outputs.length; j++) {
+                    resized[j].writeToFilename("src/images/" + names[i] + "-" + outputs[j].getColumnCount() + "x" +
+                        outputs[j].getRowCount() + ".ppm");
+                }
+            }
+        } catch (IOException x) {
+            x.printStackTrace();
+        }
+    }
+
+    // recycled bands have to give the same pixels as new rows whatever the fifos, the completion mode and the band
+    // size, and once the pool is warm further runs must not create envelopes; then the bytes allocated per row by
+    // the band loop itself (take a band, run the stages, copy it out), without the pipeline's threads around it,
+    // which has to stay next to 0 with the vector kernels as well as without
+    public static void checkRecycling() throws InterruptedException {
+        PpmImage[] images = { createSyntheticImage(61, 83), createSyntheticImage(1, 40), createSyntheticImage(33, 1) };
+        PipelineStage[] pipeline = { PipelineStage.FLIP_HORIZONTALLY, PipelineStage.GRAYSCALE };
+        PpmImage[] expected = executePipeline(images, pipeline, new PipelineConfig());
+        // LOCK_FREE_SPSC doesn't fit fifos with several workers on a side
+        PipelineFifo.Kind[] kinds = { PipelineFifo.Kind.MONITOR, PipelineFifo.Kind.LOCK_FREE_MPMC };
+        for (PipelineFifo.Kind kind : kinds) {
+            for (PipelineConfig.CompletionMode mode : PipelineConfig.CompletionMode.values()) {
+                for (int rowsPerBand : new int[] { 1, 5, 0 }) {
+                    PipelineConfig config = new PipelineConfig().setRecycleBuffers(true).setRowsPerBand(rowsPerBand)
+                        .setStageFifoKind(kind).setAssemblerFifoKind(kind).setCompletionMode(mode);
+                    boolean identical = true;
+                    long createdAfterFirstRun = 0;
+                    for (int run = 0; run < 3; run++) {
+                        PpmImage[] recycled = executePipeline(images, pipeline, config);
+                        for (int i = 0; i < images.length; i++) {
+                            identical &= Arrays.equals(expected[i].getIntBits(), recycled[i].getIntBits());
+                        }
+                        if (run == 0) createdAfterFirstRun = config.getBandPool().getCreatedCount();
+                    }
+                    ThreadTools.outln("%s %s rowsPerBand=%d: identical=%b, envelopes %d after one run, %d after three",
+                        kind, mode, rowsPerBand, identical, createdAfterFirstRun,
+                        config.getBandPool().getCreatedCount());
+                    confirm(identical, "%s %s rowsPerBand=%d: recycled bands differ", kind, mode, rowsPerBand);
+                }
+            }
+        }
+        try {
+            executePipeline(images, new PipelineStage[] { PipelineStage.BLUR },
+                new PipelineConfig().setRecycleBuffers(true));
+            ThreadTools.outln("BLUR on recycled bands was not refused");
+        } catch (IllegalArgumentException x) {
+            ThreadTools.outln("BLUR on recycled bands refused: %s", x.getMessage());
+        }
+
+        PpmImage image = createSyntheticImage(512, 1024);
+        double recycledBytesPerRow = allocatedBytesPerRow(image, pipeline, new BandPool());
+        ThreadTools.outln("bytes per row (kernels vectorized: %b), new rows: %.1f, recycled bands: %.1f",
+            RowKernels.isVectorized(), allocatedBytesPerRow(image, pipeline, null), recycledBytesPerRow);
+        // a row is 4 KB here, a few bytes per row allow for stray allocations in the measurement itself
+        confirm(recycledBytesPerRow < 8.0, "recycled bands allocate %.1f bytes per row", recycledBytesPerRow);
+    }
+
+    // the band loop of a whole image on the calling thread, run a few times first so the pool is warm
+    private static double allocatedBytesPerRow(PpmImage image, PipelineStage[] pipeline, BandPool pool) {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        int rowsPerBand = 16;
+        int[] out = new int[image.getRowCount() * image.getColumnCount()];
+        PpmImage.Row[] rows = new PpmImage.Row[image.getRowCount()];
+        long startBytes = 0;
+        int runs = 20;
+        for (int run = 0; run < 2 * runs; run++) {
+            if (run == runs) startBytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int first = 0; first < image.getRowCount(); first += rowsPerBand) {
+                int count = Math.min(rowsPerBand, image.getRowCount() - first);
+                if (pool == null) {
+                    PpmImage.Row[] band = new PpmImage.Row[count];
+                    for (int i = 0; i < count; i++) {
+                        band[i] = image.getRowAt(first + i);
+                    }
+                    PipelineWork work = new PipelineWork(band, first, 0, image.getRowCount());
+                    work.process(pipeline);
+                    System.arraycopy(work.rows, 0, rows, first, count);
+                } else {
+                    PipelineWork work = pool.acquire(first, 0, image.getRowCount(), count, image.getColumnCount());
+                    System.arraycopy(image.intBitsArray(), first * image.getColumnCount(), work.pixels, 0,
+                        count * image.getColumnCount());
+                    work.process(pipeline);
+                    work.copyPixelsTo(out);
+                    work.recycle();
+                }
+            }
+        }
+        long bytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - startBytes;
+        return (double) bytes / ((long) runs * image.getRowCount());
+    }
+
+    // the geometric stages have to give the serial reference's pixels on images that aren't a multiple of the tile
+    // size, alone and between band stages, on both engines and through the async path; then the identities that
+    // hold between them
+    public static void checkGeometry() throws InterruptedException {
+        PpmImage[] images = { createSyntheticImage(61, 83), createSyntheticImage(1, 40), createSyntheticImage(33, 1),
+            createSyntheticImage(130, 64) };
+        PipelineStage[][] pipelines = {
+            { PipelineStage.FLIP_VERTICALLY }, { PipelineStage.TRANSPOSE }, { PipelineStage.ROTATE_90 },
+            { PipelineStage.ROTATE_180 }, { PipelineStage.ROTATE_270 },
+            { PipelineStage.GRAYSCALE, PipelineStage.ROTATE_90, PipelineStage.BLUR, PipelineStage.FLIP_HORIZONTALLY },
+            { PipelineStage.TRANSPOSE, PipelineStage.ROTATE_270, PipelineStage.EDGE_DETECT }
+        };
+        PipelineConfig[] configs = { new PipelineConfig().setRowsPerBand(5),
+            new PipelineConfig().setEngine(PipelineConfig.Engine.WORK_STEALING) };
+        for (PipelineStage[] pipeline : pipelines) {
+            int mismatches = 0;
+            for (PipelineConfig config : configs) {
+                PpmImage[] actual = executePipeline(images, pipeline, config);
+                List<CompletableFuture<PpmImage>> futures = executePipelineAsync(images, pipeline, config);
+                for (int i = 0; i < images.length; i++) {
+                    PpmImage expected = executeSerially(images[i], pipeline);
+                    if (!sameImage(expected, actual[i]) || !sameImage(expected, futures.get(i).join())) mismatches++;
+                    if (pipeline.length == 1 && !sameImage(expected, TileTransform.apply(images[i], pipeline[0]))) {
+                        mismatches++;
+                    }
+                }
+            }
+            ThreadTools.outln("%s: %s", Worker.describe(pipeline),
+                mismatches == 0 ? "identical to the serial reference" : mismatches + " mismatches");
+        }
+
+        PpmImage image = images[0];
+        PipelineStage r90 = PipelineStage.ROTATE_90;
+        ThreadTools.outln("4 x ROTATE_90 is the identity=%b, ROTATE_180 is both flips=%b, " +
+            "ROTATE_90 is TRANSPOSE then FLIP_HORIZONTALLY=%b, TRANSPOSE twice is the identity=%b",
+            sameImage(image, executeSerially(image, new PipelineStage[] { r90, r90, r90, r90 })),
+            sameImage(executeSerially(image, new PipelineStage[] { PipelineStage.ROTATE_180 }),
+                executeSerially(image, new PipelineStage[] { PipelineStage.FLIP_VERTICALLY,
+                    PipelineStage.FLIP_HORIZONTALLY })),
+            sameImage(executeSerially(image, new PipelineStage[] { r90 }),
+                executeSerially(image, new PipelineStage[] { PipelineStage.TRANSPOSE,
+                    PipelineStage.FLIP_HORIZONTALLY })),
+            sameImage(image, executeSerially(image, new PipelineStage[] { PipelineStage.TRANSPOSE,
+                PipelineStage.TRANSPOSE })));
+    }
+
+    // for the checks that have a hard bound rather than a number to look at
+    private static void confirm(boolean condition, String format, Object... args) {
+        if (!condition) throw new IllegalStateException(String.format(format, args));
+    }
+
+    private static boolean sameImage(PpmImage a, PpmImage b) {
+        return a.getRowCount() == b.getRowCount() && a.getColumnCount() == b.getColumnCount() &&
+            Arrays.equals(a.getIntBits(), b.getIntBits());
+    }
+
+    // a 20 megapixel rotation: output row by output row straight down the source columns, against the tiles on one
+    // thread and on a pool; with the slow factor at 1 this is all memory traffic
+    public static void timeRotation() throws InterruptedException {
+        PpmImage image = createSyntheticImage(4000, 5000);
+        int rows = image.getRowCount();
+        int columns = image.getColumnCount();
+        int[] src = image.intBitsArray();
+        PipelineConfig config = new PipelineConfig();
+        for (int run = 0; run < 5; run++) {
+            NanoTimer naive = NanoTimer.createStarted();
+            int[] out = new int[rows * columns];
+            for (int r = 0; r < columns; r++) {
+                for (int c = 0; c < rows; c++) {
+                    out[r * rows + c] = src[(rows - 1 - c) * columns + r];
+                }
+            }
+            naive.stop();
+            NanoTimer tiled = NanoTimer.createStarted();
+            PpmImage serial = TileTransform.apply(image, PipelineStage.ROTATE_90);
+            tiled.stop();
+            NanoTimer pooled = NanoTimer.createStarted();
+            PpmImage parallel = TileTransform.applyAll(new PpmImage[] { image }, PipelineStage.ROTATE_90, config)[0];
+            pooled.stop();
+            ThreadTools.outln("ROTATE_90 %dx%d: column-strided %.5fs, tiles %.5fs, tiles on %d threads %.5fs, " +
+                "identical=%b", columns, rows, naive.getElapsedSeconds(), tiled.getElapsedSeconds(),
+                config.getParallelism(), pooled.getElapsedSeconds(),
+                Arrays.equals(out, serial.getIntBits()) && Arrays.equals(out, parallel.getIntBits()));
+        }
+    }
+
+    // off-heap images through the pipeline have to give what the same images on the heap give, with a budget so
+    // small that most pages spill to temp files, recycled bands and halo stages included; files go through without
+    // a change, and closing gives the whole budget back
+    public static void checkOffHeap() throws InterruptedException {
+        long budget = OffHeapImage.getBudget();
+        OffHeapImage.setBudget(64 * 1024);
+        PpmImage[] images =
+            { createSyntheticImage(61, 83), createSyntheticImage(1, 40), createSyntheticImage(700, 33) };
+        PipelineStage[][] pipelines = { { PipelineStage.FLIP_HORIZONTALLY, PipelineStage.GRAYSCALE },
+            { PipelineStage.GRAYSCALE, PipelineStage.BLUR, PipelineStage.SHARPEN } };
+        OffHeapImage[] offHeap = new OffHeapImage[images.length];
+        try {
+            for (int i = 0; i < images.length; i++) {
+                offHeap[i] = OffHeapImage.copyOf(images[i]);
+            }
+            for (PipelineStage[] pipeline : pipelines) {
+                boolean rowLocal = Arrays.stream(pipeline).allMatch(PipelineStage::isRowLocal);
+                for (int rowsPerBand : new int[] { 1, 7, 0 }) {
+                    PipelineConfig config =
+                        new PipelineConfig().setRowsPerBand(rowsPerBand).setRecycleBuffers(rowLocal);
+                    PpmImage[] expected = executePipeline(images, pipeline, config);
+                    OffHeapImage[] actual = executePipeline(offHeap, pipeline, config);
+                    boolean identical = true;
+                    boolean spilled = false;
+                    for (int i = 0; i < images.length; i++) {
+                        identical &= sameImage(expected[i], actual[i].toPpmImage());
+                        spilled |= actual[i].isSpilled();
+                        actual[i].close();
+                    }
+                    ThreadTools.outln("%s rowsPerBand=%d recycled=%b: identical=%b, spilled=%b",
+                        Worker.describe(pipeline), rowsPerBand, rowLocal, identical, spilled);
+                    confirm(identical, "%s rowsPerBand=%d: off-heap results differ", Worker.describe(pipeline),
+                        rowsPerBand);
+                }
+            }
+
+            File file = File.createTempFile("offheap", ".ppm");
+            file.deleteOnExit();
+            boolean roundTrip = true;
+            for (PpmImage.Format format : PpmImage.Format.values()) {
+                offHeap[2].write(file.getPath(), format);
+                try (OffHeapImage read = OffHeapImage.read(file.getPath())) {
+                    roundTrip &= sameImage(images[2], read.toPpmImage()) &&
+                        sameImage(images[2], PpmReader.read(file.getPath()));
+                }
+            }
+            file.delete();
+            ThreadTools.outln("file round trip identical=%b", roundTrip);
+            confirm(roundTrip, "an off-heap image doesn't survive a file round trip");
+        } catch (IOException x) {
+            x.printStackTrace();
+        } finally {
+            for (OffHeapImage image : offHeap) {
+                if (image != null) closeQuietly(image);
+            }
+            OffHeapImage.setBudget(budget);
+        }
+        long reserved = OffHeapImage.getReservedBytes();
+        ThreadTools.outln("budget taken after closing everything: %d bytes", reserved);
+        confirm(reserved == 0, "%d bytes of the budget are still taken", reserved);
+    }
+
+    // args: input file and output file; the image is never on the heap as a whole, whatever its size
+    public static void mainOffHeap(String[] args) throws InterruptedException {
+        PipelineStage[] pipeline = { PipelineStage.FLIP_HORIZONTALLY, PipelineStage.GRAYSCALE };
+        PipelineConfig config = new PipelineConfig().setRecycleBuffers(true);
+        NanoTimer timer = NanoTimer.createStarted();
+        try (OffHeapImage image = OffHeapImage.read(args[0])) {
+            OffHeapImage result = executePipeline(new OffHeapImage[] { image }, pipeline, config)[0];
+            try {
+                result.write(args[1], PpmImage.Format.P6);
+                timer.stop();
+                ThreadTools.outln("%dx%d, spilled=%b, took %.5fs", image.getColumnCount(), image.getRowCount(),
+                    image.isSpilled() || result.isSpilled(), timer.getElapsedSeconds());
+            } finally {
+                result.close();
+            }
+        } catch (IOException x) {
+            x.printStackTrace();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException x) {
+            x.printStackTrace();
+        }
+    }
+
+    // jobs from several client threads at once, each with a chain of its own, have to give the serial reference's
+    // pixels; shutting down completes every job already submitted and refuses later ones
+    public static void checkEngine() throws InterruptedException {
+        PpmImage[] images = { createSyntheticImage(61, 83), createSyntheticImage(1, 40), createSyntheticImage(33, 1) };
+        PipelineStage[][] pipelines = { {}, { PipelineStage.FLIP_HORIZONTALLY, PipelineStage.GRAYSCALE },
+            { PipelineStage.BLUR }, { PipelineStage.GRAYSCALE, PipelineStage.EDGE_DETECT, PipelineStage.SHARPEN },
+            { PipelineStage.FLIP_HORIZONTALLY } };
+        PipelineConfig[] configs = { new PipelineConfig().setRowsPerBand(5),
+            new PipelineConfig().setRecycleBuffers(true).setStageFifoKind(PipelineFifo.Kind.LOCK_FREE_MPMC) };
+        for (PipelineConfig config : configs) {
+            PipelineEngine engine = new PipelineEngine(config);
+            AtomicInteger mismatches = new AtomicInteger();
+            Thread[] clients = new Thread[6];
+            for (int c = 0; c < clients.length; c++) {
+                int client = c;
+                clients[c] = new Thread(() -> {
+                    try {
+                        for (int job = 0; job < 30; job++) {
+                            PpmImage image = images[(client + job) % images.length];
+                            PipelineStage[] pipeline = pipelines[(client * 7 + job) % pipelines.length];
+                            if (!sameImage(executeSerially(image, pipeline), engine.submit(image, pipeline).join())) {
+                                mismatches.incrementAndGet();
+                            }
+                        }
+                    } catch (InterruptedException x) {
+                        mismatches.incrementAndGet();
+                    }
+                }, "client " + c);
+                clients[c].start();
+            }
+            for (Thread client : clients) {
+                client.join();
+            }
+
+            // handed in without waiting, the shutdown has to drain them
+            List<CompletableFuture<PpmImage>> pending = new ArrayList<>();
+            for (int job = 0; job < 40; job++) {
+                pending.add(engine.submit(images[job % images.length], pipelines[job % pipelines.length]));
+            }
+            engine.shutdown();
+            boolean drained = true;
+            for (int job = 0; job < pending.size(); job++) {
+                drained &= pending.get(job).isDone() && sameImage(pending.get(job).join(),
+                    executeSerially(images[job % images.length], pipelines[job % pipelines.length]));
+            }
+            boolean refused = false;
+            try {
+                engine.submit(images[0], pipelines[1]);
+            } catch (RejectedExecutionException x) {
+                refused = true;
+            }
+            ThreadTools.outln("recycled=%b: %d jobs, %s, drained on shutdown=%b, refused after=%b",
+                config.isRecycleBuffers(), engine.getCompletedCount(),
+                mismatches.get() == 0 ? "identical to the serial reference" : mismatches.get() + " mismatches",
+                drained, refused);
+            confirm(mismatches.get() == 0 && drained && refused, "recycled=%b: the engine check failed",
+                config.isRecycleBuffers());
+        }
+    }
+
+    // small images one after the other: a new pipeline per image against the resident engine, next to the time the
+    // stages themselves take on the calling thread
+    public static void timeEngine() throws InterruptedException {
+        PpmImage image = createSyntheticImage(64, 64);
+        PipelineStage[] pipeline = { PipelineStage.FLIP_HORIZONTALLY, PipelineStage.GRAYSCALE };
+        PipelineConfig config = new PipelineConfig();
+        int jobs = 200;
+        PipelineEngine engine = new PipelineEngine(config);
+        try {
+            for (int run = 0; run < 3; run++) {
+                NanoTimer serial = NanoTimer.createStarted();
+                for (int i = 0; i < jobs; i++) {
+                    executeSerially(image, pipeline);
+                }
+                serial.stop();
+                NanoTimer perCall = NanoTimer.createStarted();
+                for (int i = 0; i < jobs; i++) {
+                    executePipeline(new PpmImage[] { image }, pipeline, config);
+                }
+                perCall.stop();
+                NanoTimer resident = NanoTimer.createStarted();
+                for (int i = 0; i < jobs; i++) {
+                    engine.submit(image, pipeline).join();
+                }
+                resident.stop();
+                ThreadTools.outln("per job: serial %.1fus, executePipeline %.1fus, engine %.1fus",
+                    serial.getElapsedSeconds() * 1e6 / jobs, perCall.getElapsedSeconds() * 1e6 / jobs,
+                    resident.getElapsedSeconds() * 1e6 / jobs);
+            }
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    // streamed over HTTP, in both formats and with rows coming back while the body is still being sent, the
+    // responses have to give the serial reference's pixels; malformed requests get a status and no image
+    public static void checkServer() throws InterruptedException {
+        PpmImage[] images = { createSyntheticImage(61, 83), createSyntheticImage(1, 40), createSyntheticImage(33, 1) };
+        String[] stageLists = { "", "FLIP_HORIZONTALLY,GRAYSCALE", "BLUR", "GRAYSCALE,EDGE_DETECT,SHARPEN" };
+        PipelineConfig[] configs = { new PipelineConfig().setRowsPerBand(5),
+            new PipelineConfig().setRecycleBuffers(true).setRowsPerBand(3) };
+        HttpClient client = HttpClient.newHttpClient();
+        for (PipelineConfig config : configs) {
+            PipelineEngine engine = new PipelineEngine(config);
+            PipelineHttpServer server = null;
+            try {
+                server = new PipelineHttpServer(engine, 0, 4, 2);
+                server.start();
+                String base = "http://localhost:" + server.getPort() + PipelineHttpServer.PATH;
+                int mismatches = 0;
+                int requests = 0;
+                for (PpmImage image : images) {
+                    for (String stages : stageLists) {
+                        for (PpmImage.Format format : PpmImage.Format.values()) {
+                            PipelineStage[] pipeline = PipelineHttpServer.parseStages(stages);
+                            byte[] response = postImage(client, base + "?stages=" + stages + "&format=" + format,
+                                encodeImage(image, format)).body();
+                            requests++;
+                            if (!sameImage(executeSerially(image, pipeline), decodeImage(response))) mismatches++;
+                        }
+                    }
+                }
+                int[] statuses = {
+                    postImage(client, base + "?stages=NOT_A_STAGE", encodeImage(images[0], PpmImage.Format.P6))
+                        .statusCode(),
+                    postImage(client, base + "?stages=ROTATE_90", encodeImage(images[0], PpmImage.Format.P6))
+                        .statusCode(),
+                    postImage(client, base, "P5 1 1 255\n".getBytes()).statusCode(),
+                    client.send(HttpRequest.newBuilder(URI.create(base)).build(),
+                        HttpResponse.BodyHandlers.discarding()).statusCode() };
+                ThreadTools.outln("recycled=%b: %d requests, %s, statuses for bad requests %s",
+                    config.isRecycleBuffers(), requests,
+                    mismatches == 0 ? "identical to the serial reference" : mismatches + " mismatches",
+                    Arrays.toString(statuses));
+                confirm(mismatches == 0 && Arrays.equals(statuses, new int[] { 400, 400, 400, 405 }),
+                    "recycled=%b: the server check failed", config.isRecycleBuffers());
+            } catch (IOException x) {
+                x.printStackTrace();
+            } finally {
+                if (server != null) server.stop(0);
+                engine.shutdown();
+            }
+        }
+    }
+
+    // args: port, 8080 if not given; serves until the process is killed
+    public static void mainServer(String[] args) throws InterruptedException {
+        PipelineEngine engine = new PipelineEngine(new PipelineConfig().setRecycleBuffers(true));
+        try {
+            int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+            PipelineHttpServer server =
+                new PipelineHttpServer(engine, port, Runtime.getRuntime().availableProcessors() * 2, 8);
+            server.start();
+            ThreadTools.outln("listening on http://localhost:%d%s", server.getPort(), PipelineHttpServer.PATH);
+            Thread.sleep(Long.MAX_VALUE);
+        } catch (IOException x) {
+            x.printStackTrace();
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    // the load-test client: every client thread posts the same image back to back, requests per second and the
+    // latency percentiles for each level of concurrency; args: the server's url, a server is started in this
+    // process if not given
+    public static void timeServer(String[] args) throws InterruptedException {
+        PpmImage image = createSyntheticImage(256, 256);
+        String stages = "FLIP_HORIZONTALLY,GRAYSCALE,BLUR";
+        byte[] body = encodeImage(image, PpmImage.Format.P6);
+        PipelineEngine engine = null;
+        PipelineHttpServer server = null;
+        try {
+            String base;
+            if (args.length > 0) {
+                base = args[0];
+            } else {
+                engine = new PipelineEngine(new PipelineConfig());
+                server = new PipelineHttpServer(engine, 0, 8, 8);
+                server.start();
+                base = "http://localhost:" + server.getPort() + PipelineHttpServer.PATH;
+            }
+            String url = base + "?stages=" + stages;
+            HttpClient client = HttpClient.newHttpClient();
+            boolean identical = sameImage(executeSerially(image, PipelineHttpServer.parseStages(stages)),
+                decodeImage(postImage(client, url, body).body()));
+            ThreadTools.outln("%dx%d P6 through %s, response identical to the serial reference=%b",
+                image.getColumnCount(), image.getRowCount(), stages, identical);
+            for (int concurrency : new int[] { 1, 2, 4, 8, 16 }) {
+                int requestsPerClient = 400 / concurrency;
+                long[] latencies = new long[concurrency * requestsPerClient];
+                AtomicInteger failures = new AtomicInteger();
+                Thread[] clients = new Thread[concurrency];
+                NanoTimer timer = NanoTimer.createStarted();
+                for (int c = 0; c < concurrency; c++) {
+                    int first = c * requestsPerClient;
+                    clients[c] = new Thread(() -> {
+                        for (int i = 0; i < requestsPerClient; i++) {
+                            long startNanos = System.nanoTime();
+                            try {
+                                if (postImage(client, url, body).statusCode() != 200) failures.incrementAndGet();
+                            } catch (IOException | InterruptedException x) {
+                                failures.incrementAndGet();
+                            }
+                            latencies[first + i] = System.nanoTime() - startNanos;
+                        }
+                    }, "client " + c);
+                    clients[c].start();
+                }
+                for (Thread thread : clients) {
+                    thread.join();
+                }
+                timer.stop();
+                Arrays.sort(latencies);
+                ThreadTools.outln("concurrency %2d: %7.1f req/s, p50 %6.2fms, p99 %6.2fms, %d failed", concurrency,
+                    latencies.length / timer.getElapsedSeconds(), latencies[latencies.length / 2] / 1e6,
+                    latencies[(int) Math.ceil(latencies.length * 0.99) - 1] / 1e6, failures.get());
+            }
+        } catch (IOException x) {
+            x.printStackTrace();
+        } finally {
+            if (server != null) server.stop(0);
+            if (engine != null) engine.shutdown();
+        }
+    }
+
+    private static HttpResponse<byte[]> postImage(HttpClient client, String url,
+            byte[] body) throws IOException, InterruptedException {
+
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+            .POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+        return client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private static byte[] encodeImage(PpmImage image, PpmImage.Format format) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (PpmWriter writer = new PpmWriter(Channels.newChannel(bytes), format)) {
+            writer.writeHeader(image.getColumnCount(), image.getRowCount());
+            writer.writePixels(image.intBitsArray(), 0, image.getRowCount() * image.getColumnCount());
+        } catch (IOException x) {
+            throw new UncheckedIOException(x);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static PpmImage decodeImage(byte[] bytes) throws IOException {
+        try (PpmReader reader = new PpmReader(Channels.newChannel(new ByteArrayInputStream(bytes)))) {
+            return reader.readImage();
+        }
+    }
+
     public static void main(String[] args) throws InterruptedException {
         mainParallel(args);
         //mainSerial(args);
         //timeSerial();
         //timeParallel();
+        //timeReaders();
+        //timeWriters();
+        //timeDecoders();
+        //checkParallelDecoder();
+        //checkConvolutions();
+        //timeConvolutions();
+        //checkResampler();
+        //mainThumbnails(args);
+        //checkRecycling();
+        //checkGeometry();
+        //timeRotation();
+        //checkOffHeap();
+        //mainOffHeap(args);
+        //checkEngine();
+        //timeEngine();
+        //checkServer();
+        //mainServer(args);
+        //timeServer(args);
+        //mainParallelAsync(args);
+        //mainStreaming(args);
+        //mainMetrics(args);
+        //mainBatch(args);
+        //timeFusion();
+        //timeEngines();
+        //timeAutoscaling();
+        //checkKernels();
+        //timeCache();
+        //checkCache();
+        //checkIncremental();
+        //timeIncremental();
     }
 }
\ No newline at end of file
@@ -0,0 +1,263 @@
+package com.abc.ppmimage;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Reads PPM images directly from a channel. Both {@link PpmImage.Format#P3} and {@link PpmImage.Format#P6} are
+ * supported, the format is taken from the magic number. P3 values are tokenized by hand out of a reusable buffer,
+ * so no objects are created per value (unlike {@link java.util.Scanner}, which goes through a regex for every
+ * token). <code>#</code> comments are skipped wherever whitespace is allowed in the text part.
+ * <p>
+ * Instances are not thread-safe.
+ */
+public final class PpmReader implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // largest region mapped at once, MappedByteBuffer is limited to int sized regions
+    private static final long MAX_MAP_BYTES = 1L << 30;
+
+    // values beyond this are clamped anyway, stop accumulating digits so we can't overflow
+    private static final int SATURATED_VALUE = 1_000_000;
+
+    private final ReadableByteChannel channel;
+    private final byte[] bytes;
+    private final ByteBuffer buffer;
+    private int position;
+    private int limit;
+    private boolean endOfInput;
+
+    private PpmImage.Format format;
+    private int columnCount;
+    private int rowCount;
+    private boolean headerRead;
+
+    public PpmReader(ReadableByteChannel channel) {
+        this.channel = channel;
+        bytes = new byte[BUFFER_SIZE];
+        buffer = ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * P6 files are memory-mapped rather than read through the buffer; large P3 files without comments are decoded
+     * on several threads by {@link ParallelP3Decoder}.
+     */
+    public static PpmImage read(String filename) throws FileNotFoundException, IOException {
+        try (FileChannel channel = openChannel(filename); PpmReader reader = new PpmReader(channel)) {
+            reader.readHeader();
+            if (reader.format == PpmImage.Format.P6) return reader.readMappedImage(channel);
+            long bodyStart = reader.getBodyStart(channel);
+            if (channel.size() - bodyStart >= ParallelP3Decoder.MIN_PARALLEL_BODY_BYTES &&
+                    Runtime.getRuntime().availableProcessors() > 1) {
+                // the decoder only maps and reads at explicit positions, so this reader can still take over
+                PpmImage image = ParallelP3Decoder.decode(channel, bodyStart, reader.columnCount, reader.rowCount);
+                if (image != null) return image;
+            }
+            return reader.readImage();
+        }
+    }
+
+    static FileChannel openChannel(String filename) throws FileNotFoundException, IOException {
+        try {
+            return FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        } catch (NoSuchFileException x) {
+            throw new FileNotFoundException(filename);
+        }
+    }
+
+    /** Reads the header (magic number, width, height and max color value). Must be called first. */
+    public void readHeader() throws IOException {
+        if (headerRead) throw new IllegalStateException("header has already been read");
+
+        String magicNumber = nextWord();
+        format = PpmImage.Format.fromMagicNumberString(magicNumber);
+        if (format == null) {
+            throw new IOException("only " + Arrays.toString(PpmImage.Format.values()) + " formats are supported");
+        }
+        columnCount = nextInt();
+        rowCount = nextInt();
+        int maxColorValue = nextInt();
+        if (maxColorValue != PpmImage.MAX_COLOR_VALUE) throw new IOException("only [0.." +
+            PpmImage.MAX_COLOR_VALUE + "] color values supported");
+        if (columnCount < 1 || rowCount < 1 || (long) columnCount * rowCount > Integer.MAX_VALUE) {
+            throw new IOException("unsupported image size: " + columnCount + "x" + rowCount);
+        }
+        if (format == PpmImage.Format.P6) {
+            // exactly one whitespace character separates the header from the binary data
+            if (!ensureAvailable() || !isWhitespace(bytes[position])) throw new IOException("malformed P6 header");
+            position++;
+        }
+        headerRead = true;
+    }
+
+    public PpmImage.Format getFormat() { confirmHeaderRead(); return format; }
+    public int getColumnCount() { confirmHeaderRead(); return columnCount; }
+    public int getRowCount() { confirmHeaderRead(); return rowCount; }
+
+    /** Reads the next pixelCount pixels into dest in the {@link PpmImage.Pixel#asIntBits()} layout. */
+    public void readPixels(int[] dest, int offset, int pixelCount) throws IOException {
+        confirmHeaderRead();
+        if (format == PpmImage.Format.P6) {
+            readBinaryPixels(dest, offset, pixelCount);
+        } else {
+            readAsciiPixels(dest, offset, pixelCount);
+        }
+    }
+
+    private void readAsciiPixels(int[] dest, int offset, int pixelCount) throws IOException {
+        for (int i = offset, end = offset + pixelCount; i < end; i++) {
+            int red = nextInt();
+            int green = nextInt();
+            int blue = nextInt();
+            dest[i] = PpmImage.Pixel.toIntBits(red, green, blue);
+        }
+    }
+
+    private void readBinaryPixels(int[] dest, int offset, int pixelCount) throws IOException {
+        for (int i = offset, end = offset + pixelCount; i < end; i++) {
+            if (limit - position >= 3) {
+                dest[i] = (bytes[position] & 0xFF) << 16 | (bytes[position + 1] & 0xFF) << 8 |
+                    (bytes[position + 2] & 0xFF);
+                position += 3;
+            } else {
+                dest[i] = nextByte() << 16 | nextByte() << 8 | nextByte();
+            }
+        }
+    }
+
+    /** Reads the header (if not read yet) and all of the pixels. */
+    public PpmImage readImage() throws IOException {
+        if (!headerRead) readHeader();
+        int[] pixels = new int[columnCount * rowCount];
+        readPixels(pixels, 0, pixels.length);
+        return PpmImage.wrapIntBits(rowCount, columnCount, pixels);
+    }
+
+    // the body of a P6 file on disk, mapped a slice at a time instead of copied through the channel
+    private PpmImage readMappedImage(FileChannel channel) throws IOException {
+        long bodyStart = getBodyStart(channel);
+        int bytesPerRow = 3 * columnCount;
+        if (channel.size() - bodyStart < (long) bytesPerRow * rowCount) throw new EOFException("P6 data is truncated");
+
+        int[] pixels = new int[columnCount * rowCount];
+        int rowsPerMap = (int) Math.max(1, MAX_MAP_BYTES / bytesPerRow);
+        for (int rowIndex = 0; rowIndex < rowCount; rowIndex += rowsPerMap) {
+            int mappedRowCount = Math.min(rowsPerMap, rowCount - rowIndex);
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+                bodyStart + (long) rowIndex * bytesPerRow, (long) mappedRowCount * bytesPerRow);
+            decodeBinaryPixels(mapped, pixels, rowIndex * columnCount, mappedRowCount * columnCount);
+        }
+        return PpmImage.wrapIntBits(rowCount, columnCount, pixels);
+    }
+
+    // where in the file the first byte after the header is, some of the body may already be in the buffer
+    private long getBodyStart(FileChannel channel) throws IOException {
+        return channel.position() - (limit - position);
+    }
+
+    private void decodeBinaryPixels(ByteBuffer source, int[] dest, int offset, int pixelCount) {
+        int chunkPixels = bytes.length / 3;
+        for (int i = offset, end = offset + pixelCount; i < end; ) {
+            int n = Math.min(chunkPixels, end - i);
+            source.get(bytes, 0, 3 * n); // bulk copy out of the mapping, then unpack from the array
+            for (int j = 0; j < 3 * n; j += 3, i++) {
+                dest[i] = (bytes[j] & 0xFF) << 16 | (bytes[j + 1] & 0xFF) << 8 | (bytes[j + 2] & 0xFF);
+            }
+        }
+        position = limit = 0; // the buffer was used as scratch space
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void confirmHeaderRead() {
+        if (!headerRead) throw new IllegalStateException("readHeader() must be called first");
+    }
+
+    private int nextByte() throws IOException {
+        if (!ensureAvailable()) throw new EOFException("unexpected end of input");
+        return bytes[position++] & 0xFF;
+    }
+
+    private String nextWord() throws IOException {
+        skipWhitespaceAndComments();
+        StringBuilder sb = new StringBuilder();
+        while (ensureAvailable() && !isWhitespace(bytes[position])) {
+            sb.append((char) (bytes[position++] & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    private int nextInt() throws IOException {
+        skipWhitespaceAndComments();
+        boolean negative = false;
+        byte b = bytes[position];
+        if (b == '-' || b == '+') {
+            negative = b == '-';
+            position++;
+        }
+
+        int value = 0;
+        int digitCount = 0;
+        while (position < limit || fill()) {
+            b = bytes[position];
+            if (b >= '0' && b <= '9') {
+                if (value < SATURATED_VALUE) value = value * 10 + (b - '0');
+                digitCount++;
+                position++;
+            } else if (isWhitespace(b) || b == '#') {
+                break;
+            } else {
+                throw new IOException("unexpected character '" + (char) (b & 0xFF) + "' in a number");
+            }
+        }
+        if (digitCount == 0) throw new IOException("expected a number");
+        return negative ? -value : value;
+    }
+
+    // leaves position on the first byte of the next token, or throws if there is none
+    private void skipWhitespaceAndComments() throws IOException {
+        while (true) {
+            if (!ensureAvailable()) throw new EOFException("unexpected end of input");
+            byte b = bytes[position];
+            if (isWhitespace(b)) {
+                position++;
+            } else if (b == '#') {
+                do {
+                    position++;
+                } while (ensureAvailable() && bytes[position] != '\n' && bytes[position] != '\r');
+            } else {
+                return;
+            }
+        }
+    }
+
+    private boolean ensureAvailable() throws IOException {
+        return position < limit || fill();
+    }
+
+    private boolean fill() throws IOException {
+        if (endOfInput) return false;
+        buffer.clear();
+        int count;
+        do {
+            count = channel.read(buffer);
+        } while (count == 0);
+        if (count < 0) {
+            endOfInput = true;
+            return false;
+        }
+        position = 0;
+        limit = count;
+        return true;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b >= 0 && b <= ' ';
+    }
+}
@@ -0,0 +1,128 @@
+package com.abc.ppmimage;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+
+/**
+ * Writes PPM images to a channel through a reusable buffer, in bulk rather than one formatted call per pixel.
+ * {@link PpmImage.Format#P3} output is byte-for-byte what <code>PrintWriter.printf("%d %d %d%n", ...)</code>
+ * produces; {@link PpmImage.Format#P6} output is the raw bytes.
+ * <p>
+ * Instances are not thread-safe.
+ */
+public final class PpmWriter implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // longest P3 pixel: "255 255 255" plus the line separator
+    private static final int MAX_ASCII_PIXEL_BYTES = 16;
+
+    static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+    // DECIMAL_DIGITS[value] is the ASCII text of value for every color value
+    static final byte[][] DECIMAL_DIGITS = new byte[PpmImage.MAX_COLOR_VALUE + 1][];
+    static {
+        for (int i = 0; i < DECIMAL_DIGITS.length; i++) {
+            DECIMAL_DIGITS[i] = Integer.toString(i).getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final WritableByteChannel channel;
+    private final PpmImage.Format format;
+    private final ByteBuffer buffer;
+
+    public PpmWriter(WritableByteChannel channel, PpmImage.Format format) {
+        this.channel = channel;
+        this.format = format;
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    public static void write(PpmImage image, String filename, PpmImage.Format format)
+            throws FileNotFoundException, IOException {
+
+        try (PpmWriter writer = new PpmWriter(openChannel(filename), format)) {
+            writer.writeHeader(image.getColumnCount(), image.getRowCount());
+            writer.writePixels(image.intBitsArray(), 0, image.getRowCount() * image.getColumnCount());
+        }
+    }
+
+    static FileChannel openChannel(String filename) throws FileNotFoundException, IOException {
+        try {
+            return FileChannel.open(Paths.get(filename), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (NoSuchFileException x) {
+            throw new FileNotFoundException(filename);
+        }
+    }
+
+    public PpmImage.Format getFormat() { return format; }
+
+    public void writeHeader(int columnCount, int rowCount) throws IOException {
+        buffer.put(createHeader(format, columnCount, rowCount));
+    }
+
+    /** Writes pixelCount pixels from src, which are in the {@link PpmImage.Pixel#asIntBits()} layout. */
+    public void writePixels(int[] src, int offset, int pixelCount) throws IOException {
+        if (format == PpmImage.Format.P6) {
+            for (int i = offset, end = offset + pixelCount; i < end; i++) {
+                if (buffer.remaining() < 3) flushBuffer();
+                int bits = src[i];
+                buffer.put((byte) (bits >> 16)).put((byte) (bits >> 8)).put((byte) bits);
+            }
+        } else {
+            for (int i = offset, end = offset + pixelCount; i < end; i++) {
+                if (buffer.remaining() < MAX_ASCII_PIXEL_BYTES) flushBuffer();
+                putAsciiPixel(buffer, src[i]);
+            }
+        }
+    }
+
+    public void writeRow(PpmImage.Row row) throws IOException {
+        writePixels(row.intBitsArray(), row.intBitsOffset(), row.getColumnCount());
+    }
+
+    /** Pushes anything buffered out to the channel. */
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            channel.close();
+        }
+    }
+
+    static byte[] createHeader(PpmImage.Format format, int columnCount, int rowCount) {
+        String header;
+        if (format == PpmImage.Format.P6) {
+            // binary data follows a single whitespace character, so no platform line separators here
+            header = format.getMagicNumberString() + "\n" + columnCount + " " + rowCount + "\n" +
+                PpmImage.MAX_COLOR_VALUE + "\n";
+        } else {
+            String nl = System.lineSeparator();
+            header = format.getMagicNumberString() + nl + columnCount + " " + rowCount + nl +
+                PpmImage.MAX_COLOR_VALUE + nl;
+        }
+        return header.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // "red green blue" and the line separator, caller makes sure there is room
+    static void putAsciiPixel(ByteBuffer dest, int bits) {
+        dest.put(DECIMAL_DIGITS[bits >> 16 & 0xFF]).put((byte) ' ')
+            .put(DECIMAL_DIGITS[bits >> 8 & 0xFF]).put((byte) ' ')
+            .put(DECIMAL_DIGITS[bits & 0xFF]).put(LINE_SEPARATOR);
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,270 @@
+package com.abc.ppmimage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.abc.thread.ThreadTools;
+
+// results of executePipeline, keyed by a 64-bit hash of the input pixels, the image size and the stage chain
+// - memory tier: least recently used images are evicted once their pixels take up more than the byte budget
+// - disk tier (optional): every computed image is also written to the directory as P6, and looked up there on a
+//   memory miss; it is never evicted, clear the directory to reclaim the space
+// - concurrent requests for a key that is being computed wait for that computation instead of repeating it
+// two different images with the same hash would get each other's result, at 2^-64 per pair that is accepted
+public class ProcessedImageCache {
+	private static final long ENTRY_OVERHEAD_BYTES = 64;
+
+	private final long memoryBudgetBytes;
+	private final File diskDirectory;
+	// access ordered, so iteration starts at the least recently used entry; guarded by this
+	private final LinkedHashMap<Key, PpmImage> memory;
+	private long memoryBytes;
+	private final ConcurrentHashMap<Key, CompletableFuture<PpmImage>> inFlight;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong diskHitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong collapsedCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	public ProcessedImageCache(long memoryBudgetBytes) {
+		this(memoryBudgetBytes, null);
+	}
+
+	// diskDirectory may be null for a memory-only cache, it is created if it doesn't exist
+	public ProcessedImageCache(long memoryBudgetBytes, File diskDirectory) {
+		if (memoryBudgetBytes < 0) throw new IllegalArgumentException("memoryBudgetBytes must not be negative");
+		if (diskDirectory != null && !diskDirectory.isDirectory() && !diskDirectory.mkdirs()) {
+			throw new IllegalArgumentException("can't create cache directory " + diskDirectory);
+		}
+		this.memoryBudgetBytes = memoryBudgetBytes;
+		this.diskDirectory = diskDirectory;
+		memory = new LinkedHashMap<>(16, 0.75f, true);
+		inFlight = new ConcurrentHashMap<>();
+	}
+
+	public PpmImage process(PpmImage image, PipelineStage[] pipeline, PipelineConfig config)
+			throws InterruptedException {
+
+		return processAll(new PpmImage[] { image }, pipeline, config)[0];
+	}
+
+	// the images that miss both tiers are processed together in a single executePipeline run
+	public PpmImage[] processAll(PpmImage[] images, PipelineStage[] pipeline, PipelineConfig config)
+			throws InterruptedException {
+
+		PpmImage[] results = new PpmImage[images.length];
+		List<CompletableFuture<PpmImage>> awaited = new ArrayList<>();
+		List<Integer> awaitedIndexes = new ArrayList<>();
+		List<Key> ownedKeys = new ArrayList<>();
+		List<Integer> ownedIndexes = new ArrayList<>();
+		List<CompletableFuture<PpmImage>> ownedFutures = new ArrayList<>();
+		List<PpmImage> toCompute = new ArrayList<>();
+		List<Integer> toComputeIndexes = new ArrayList<>();
+
+		for (int i = 0; i < images.length; i++) {
+			Key key = new Key(images[i], pipeline);
+			PpmImage cached = getFromMemory(key);
+			if (cached != null) {
+				hitCount.incrementAndGet();
+				results[i] = cached;
+				continue;
+			}
+
+			CompletableFuture<PpmImage> future = new CompletableFuture<>();
+			CompletableFuture<PpmImage> existing = inFlight.putIfAbsent(key, future);
+			if (existing != null) {
+				// the same key earlier in this batch or in another thread
+				collapsedCount.incrementAndGet();
+				awaited.add(existing);
+				awaitedIndexes.add(i);
+				continue;
+			}
+			ownedKeys.add(key);
+			ownedIndexes.add(i);
+			ownedFutures.add(future);
+
+			// it may have been completed and put in memory between the lookup and the putIfAbsent
+			cached = getFromMemory(key);
+			if (cached == null) cached = readFromDisk(key);
+			if (cached != null) {
+				hitCount.incrementAndGet();
+				results[i] = cached;
+				putInMemory(key, cached);
+				future.complete(cached);
+			} else {
+				missCount.incrementAndGet();
+				toCompute.add(images[i]);
+				toComputeIndexes.add(i);
+			}
+		}
+
+		try {
+			if (!toCompute.isEmpty()) {
+				PpmImage[] computed =
+					PpmImageDemo.executePipeline(toCompute.toArray(new PpmImage[0]), pipeline, config);
+				for (int j = 0; j < computed.length; j++) {
+					results[toComputeIndexes.get(j)] = computed[j];
+				}
+				for (int j = 0; j < ownedKeys.size(); j++) {
+					if (ownedFutures.get(j).isDone()) continue; // found on disk
+					PpmImage result = results[ownedIndexes.get(j)];
+					putInMemory(ownedKeys.get(j), result);
+					writeToDisk(ownedKeys.get(j), result);
+					ownedFutures.get(j).complete(result);
+				}
+			}
+		} catch (InterruptedException | RuntimeException | Error x) {
+			// whoever collapsed onto these keys in other threads is waiting for them
+			for (CompletableFuture<PpmImage> future : ownedFutures) {
+				future.completeExceptionally(x);
+			}
+			throw x;
+		} finally {
+			for (int j = 0; j < ownedKeys.size(); j++) {
+				inFlight.remove(ownedKeys.get(j), ownedFutures.get(j));
+			}
+		}
+
+		for (int j = 0; j < awaited.size(); j++) {
+			try {
+				results[awaitedIndexes.get(j)] = awaited.get(j).get();
+			} catch (ExecutionException x) {
+				throw new IllegalStateException("processing image " + awaitedIndexes.get(j) + " failed", x.getCause());
+			}
+		}
+		return results;
+	}
+
+	private synchronized PpmImage getFromMemory(Key key) {
+		return memory.get(key);
+	}
+
+	private synchronized void putInMemory(Key key, PpmImage image) {
+		long bytes = sizeOf(image);
+		if (bytes > memoryBudgetBytes || memory.containsKey(key)) return;
+		memory.put(key, image);
+		memoryBytes += bytes;
+		for (Iterator<Map.Entry<Key, PpmImage>> it = memory.entrySet().iterator();
+				memoryBytes > memoryBudgetBytes && it.hasNext(); ) {
+
+			Map.Entry<Key, PpmImage> eldest = it.next();
+			it.remove();
+			memoryBytes -= sizeOf(eldest.getValue());
+			evictionCount.incrementAndGet();
+		}
+	}
+
+	private static long sizeOf(PpmImage image) {
+		return 4L * image.getRowCount() * image.getColumnCount() + ENTRY_OVERHEAD_BYTES;
+	}
+
+	private PpmImage readFromDisk(Key key) {
+		if (diskDirectory == null) return null;
+		File file = new File(diskDirectory, key.getFilename());
+		if (!file.isFile()) return null;
+		try {
+			PpmImage image = PpmReader.read(file.getPath());
+			diskHitCount.incrementAndGet();
+			return image;
+		} catch (IOException x) {
+			// a damaged entry is a miss, it gets rewritten
+			ThreadTools.outln("cache: dropping unreadable %s: %s", file, x);
+			file.delete();
+			return null;
+		}
+	}
+
+	// written to a temporary file first, so readers never see a half written entry
+	private void writeToDisk(Key key, PpmImage image) {
+		if (diskDirectory == null) return;
+		File file = new File(diskDirectory, key.getFilename());
+		File temporary = null;
+		try {
+			temporary = File.createTempFile("entry-", ".tmp", diskDirectory);
+			image.writeToFilename(temporary.getPath(), PpmImage.Format.P6);
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException x) {
+			// the disk tier is an optimization, the result is still returned and kept in memory
+			ThreadTools.outln("cache: can't write %s: %s", file, x);
+			if (temporary != null) temporary.delete();
+		}
+	}
+
+	public long getHitCount() { return hitCount.get(); }
+	public long getDiskHitCount() { return diskHitCount.get(); }
+	public long getMissCount() { return missCount.get(); }
+	public long getCollapsedCount() { return collapsedCount.get(); }
+	public long getEvictionCount() { return evictionCount.get(); }
+
+	public synchronized long getMemoryBytes() {
+		return memoryBytes;
+	}
+
+	public synchronized int getMemoryEntryCount() {
+		return memory.size();
+	}
+
+	// drops the memory tier, the disk tier is left alone
+	public synchronized void clearMemory() {
+		memory.clear();
+		memoryBytes = 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s[hits=%d (disk %d), misses=%d, collapsed=%d, evictions=%d, entries=%d, bytes=%d]",
+			getClass().getSimpleName(), getHitCount(), getDiskHitCount(), getMissCount(), getCollapsedCount(),
+			getEvictionCount(), getMemoryEntryCount(), getMemoryBytes());
+	}
+
+	// 64-bit hash of the pixels, the image size and the stage names in order
+	static final class Key {
+		private final long contentHash;
+		private final int rowCount;
+		private final int columnCount;
+		private final String stages;
+
+		Key(PpmImage image, PipelineStage[] pipeline) {
+			contentHash = PixelHash.of(image.intBitsArray());
+			rowCount = image.getRowCount();
+			columnCount = image.getColumnCount();
+			stages = Worker.describe(pipeline);
+		}
+
+		String getFilename() {
+			return String.format("%016x-%dx%d-%s.ppm", contentHash, columnCount, rowCount,
+				stages.isEmpty() ? "none" : stages);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key other = (Key) o;
+			return contentHash == other.contentHash && rowCount == other.rowCount &&
+				columnCount == other.columnCount && stages.equals(other.stages);
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(contentHash) * 31 + stages.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return getFilename();
+		}
+	}
+}
@@ -1,36 +1,150 @@
 package com.abc.ppmimage;
 
-import com.abc.pp.fifo.deluxe_bounded.PPDeluxeBoundedFifo;
-import com.abc.thread.ThreadTools;
+import java.io.IOException;
 
 public class Producer {
-	private final PPDeluxeBoundedFifo<PipelineWork> output;
+	private final PipelineFifo<PipelineWork> output;
 	private Thread thread;
 	private volatile boolean keepGoing;
 	private PpmImage image;
+	private PpmReader reader;
+	private OffHeapImage offHeapImage;
+	private volatile IOException failure;
 	private int imageIndex;
+	private int rowsPerBand;
+	private final PipelineMetrics.StageRecorder recorder;
+	private final BandPool pool;
 
-	public Producer(PpmImage image, int imageIndex, PPDeluxeBoundedFifo<PipelineWork> output) {
+	public Producer(PpmImage image, int imageIndex, PipelineFifo<PipelineWork> output) {
+		this(image, imageIndex, 1, output);
+	}
+
+	public Producer(PpmImage image, int imageIndex, int rowsPerBand, PipelineFifo<PipelineWork> output) {
+		this(image, null, null, imageIndex, rowsPerBand, output, null, null);
+	}
+
+	// rows are decoded from the reader as they are needed, its header must already have been read
+	public Producer(PpmReader reader, int imageIndex, int rowsPerBand, PipelineFifo<PipelineWork> output) {
+		this(null, reader, null, imageIndex, rowsPerBand, output, null, null);
+	}
+
+	public Producer(PpmImage image, int imageIndex, int rowsPerBand, PipelineFifo<PipelineWork> output,
+			PipelineMetrics metrics) {
+
+		this(image, null, null, imageIndex, rowsPerBand, output, metrics, null);
+	}
+
+	// bands are copied into envelopes from the pool instead of being views of the image's rows
+	public Producer(PpmImage image, int imageIndex, int rowsPerBand, PipelineFifo<PipelineWork> output,
+			PipelineMetrics metrics, BandPool pool) {
+
+		this(image, null, null, imageIndex, rowsPerBand, output, metrics, pool);
+	}
+
+	public Producer(PpmReader reader, int imageIndex, int rowsPerBand, PipelineFifo<PipelineWork> output,
+			PipelineMetrics metrics) {
+
+		this(null, reader, null, imageIndex, rowsPerBand, output, metrics, null);
+	}
+
+	// bands are copied out of the image's off-heap storage, into envelopes from the pool if there is one
+	public Producer(OffHeapImage image, int imageIndex, int rowsPerBand, PipelineFifo<PipelineWork> output,
+			PipelineMetrics metrics, BandPool pool) {
+
+		this(null, null, image, imageIndex, rowsPerBand, output, metrics, pool);
+	}
+
+	private Producer(PpmImage image, PpmReader reader, OffHeapImage offHeapImage, int imageIndex, int rowsPerBand,
+			PipelineFifo<PipelineWork> output, PipelineMetrics metrics, BandPool pool) {
+
+		if (rowsPerBand < 1) throw new IllegalArgumentException("rowsPerBand must be at least 1");
 		this.output = output;
 		this.image = image;
+		this.reader = reader;
+		this.offHeapImage = offHeapImage;
 		this.imageIndex = imageIndex;
+		this.rowsPerBand = rowsPerBand;
+		this.pool = pool;
+		recorder = metrics != null ? metrics.stage(getClass().getSimpleName()) : null;
 		keepGoing = true;
 		thread = new Thread(this::runWork, getClass().getSimpleName() + "- image " + imageIndex);
 		thread.start();
 	}
 
-	// takes an input image and creates a stream of rows
+	// takes an input image and creates a stream of row bands
 	private void runWork() {
-		ThreadTools.outln(Thread.currentThread().getName() + " starting");
+		ThreadLog.starting();
 		try {
-			for (int i = 0; i < image.getRowCount() && keepGoing; i++) {
-				output.add(new PipelineWork(image.getRowAt(i), i, imageIndex));
+			int rowCount = image != null ? image.getRowCount() :
+				reader != null ? reader.getRowCount() : offHeapImage.getRowCount();
+			for (int i = 0; i < rowCount && keepGoing; i += rowsPerBand) {
+				long startNanos = System.nanoTime();
+				int bandRowCount = Math.min(rowsPerBand, rowCount - i);
+				PipelineWork work = pool != null ? nextRecycledBand(i, bandRowCount, rowCount) :
+					new PipelineWork(nextBand(i, bandRowCount), i, imageIndex, rowCount);
+				long addNanos = System.nanoTime();
+				output.add(work);
+				if (recorder != null) {
+					recorder.record(work.getRowCount(), addNanos - startNanos, System.nanoTime() - addNanos);
+				}
 			}
+		} catch (IOException x) {
+			failure = x;
 		} catch (InterruptedException x) {
 			// ignore
 		} finally {
-			ThreadTools.outln(Thread.currentThread().getName() + " finished");
+			ThreadLog.finished();
+		}
+	}
+
+	private PpmImage.Row[] nextBand(int firstRowIndex, int bandRowCount) throws IOException {
+		PpmImage.Row[] band = new PpmImage.Row[bandRowCount];
+		if (image != null) {
+			for (int i = 0; i < band.length; i++) {
+				band[i] = image.getRowAt(firstRowIndex + i);
+			}
+			return band;
 		}
+
+		// decode the whole band into one array, the rows are views of it
+		int columnCount = getColumnCount();
+		int[] intBits = new int[bandRowCount * columnCount];
+		readPixels(firstRowIndex, bandRowCount, intBits);
+		for (int i = 0; i < band.length; i++) {
+			band[i] = new PpmImage.Row(intBits, i * columnCount, columnCount);
+		}
+		return band;
+	}
+
+	private PipelineWork nextRecycledBand(int firstRowIndex, int bandRowCount, int rowCount) throws IOException {
+		int columnCount = getColumnCount();
+		PipelineWork work = pool.acquire(firstRowIndex, imageIndex, rowCount, bandRowCount, columnCount);
+		if (image != null) {
+			System.arraycopy(image.intBitsArray(), firstRowIndex * columnCount, work.pixels, 0,
+				bandRowCount * columnCount);
+		} else {
+			readPixels(firstRowIndex, bandRowCount, work.pixels);
+		}
+		return work;
+	}
+
+	private int getColumnCount() {
+		return image != null ? image.getColumnCount() :
+			reader != null ? reader.getColumnCount() : offHeapImage.getColumnCount();
+	}
+
+	// the reader's rows come in order, so firstRowIndex is always the next one
+	private void readPixels(int firstRowIndex, int bandRowCount, int[] dest) throws IOException {
+		if (reader != null) {
+			reader.readPixels(dest, 0, bandRowCount * reader.getColumnCount());
+		} else {
+			offHeapImage.readRows(firstRowIndex, bandRowCount, dest, 0);
+		}
+	}
+
+	// the read error that stopped this producer early, if any
+	public IOException getFailure() {
+		return failure;
 	}
 
 	public void waitUntilStopped() throws InterruptedException {
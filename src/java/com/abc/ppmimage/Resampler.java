@@ -0,0 +1,257 @@
+package com.abc.ppmimage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// resizes images to a fixed size: a horizontal pass over every source row the output needs, then a vertical pass
+// over those, both with weight tables computed once per source size (14-bit fixed point weights summing to
+// exactly 1, so a flat color stays exactly the same); when downscaling the filter is stretched to cover every
+// source pixel, so thumbnails don't alias
+//
+// the output is cut into bands of rows that are resampled independently, a band redoes the horizontal pass of the
+// few source rows it shares with the band next to it instead of waiting for it; resize() is a single band on the
+// calling thread, resizeAll() spreads the bands of several outputs over a pool, both give exactly the same pixels
+public class Resampler {
+	public enum Filter {
+		// the source pixel the output pixel's center falls on
+		NEAREST(0.5),
+		// triangle, a tent over 2x2 pixels when upscaling
+		BILINEAR(1.0),
+		// windowed sinc with 3 lobes, the sharpest of the three, it may ring at hard edges
+		LANCZOS3(3.0);
+
+		private final double radius;
+
+		Filter(double radius) {
+			this.radius = radius;
+		}
+
+		double weight(double x) {
+			switch (this) {
+				case BILINEAR:
+					return Math.max(0.0, 1.0 - Math.abs(x));
+				case LANCZOS3:
+					if (x == 0.0) return 1.0;
+					if (Math.abs(x) >= radius) return 0.0;
+					double px = Math.PI * x;
+					return radius * Math.sin(px) * Math.sin(px / radius) / (px * px);
+				default:
+					return x >= -0.5 && x < 0.5 ? 1.0 : 0.0;
+			}
+		}
+	}
+
+	private static final int WEIGHT_BITS = 14;
+	private static final int ONE = 1 << WEIGHT_BITS;
+	// fraction bits kept between the passes, so the vertical sums stay inside an int even with lanczos' lobes
+	private static final int INTERMEDIATE_BITS = 7;
+	private static final int HORIZONTAL_SHIFT = WEIGHT_BITS - INTERMEDIATE_BITS;
+	private static final int VERTICAL_SHIFT = WEIGHT_BITS + INTERMEDIATE_BITS;
+
+	private final int columnCount;
+	private final int rowCount;
+	private final Filter filter;
+
+	public Resampler(int columnCount, int rowCount, Filter filter) {
+		if (columnCount < 1 || rowCount < 1) {
+			throw new IllegalArgumentException("unsupported output size: " + columnCount + "x" + rowCount);
+		}
+		this.columnCount = columnCount;
+		this.rowCount = rowCount;
+		this.filter = filter;
+	}
+
+	// the size that fits in maxColumns x maxRows with the source's aspect ratio, never larger than the source
+	public static Resampler fitting(PpmImage source, int maxColumns, int maxRows, Filter filter) {
+		double scale = Math.min(1.0, Math.min((double) maxColumns / source.getColumnCount(),
+			(double) maxRows / source.getRowCount()));
+		return new Resampler(Math.max(1, (int) Math.round(source.getColumnCount() * scale)),
+			Math.max(1, (int) Math.round(source.getRowCount() * scale)), filter);
+	}
+
+	public int getColumnCount() { return columnCount; }
+	public int getRowCount() { return rowCount; }
+	public Filter getFilter() { return filter; }
+
+	// on the calling thread
+	public PpmImage resize(PpmImage source) {
+		WeightTable horizontal = new WeightTable(source.getColumnCount(), columnCount, filter);
+		WeightTable vertical = new WeightTable(source.getRowCount(), rowCount, filter);
+		int[] out = new int[columnCount * rowCount];
+		resizeBand(source, horizontal, vertical, out, 0, rowCount);
+		return PpmImage.wrapIntBits(rowCount, columnCount, out);
+	}
+
+	// every output of the source at once, on a pool of config.getParallelism() threads with a band of
+	// config.getRowsPerBand(output columns) rows per task; results[j] is the source resampled by outputs[j]
+	public static PpmImage[] resizeAll(PpmImage source, Resampler[] outputs, PipelineConfig config)
+			throws InterruptedException {
+
+		ForkJoinPool pool = new ForkJoinPool(config.getParallelism());
+		try {
+			int[][] pixels = new int[outputs.length][];
+			List<Callable<Void>> bands = new ArrayList<>();
+			for (int j = 0; j < outputs.length; j++) {
+				Resampler output = outputs[j];
+				WeightTable horizontal = new WeightTable(source.getColumnCount(), output.columnCount, output.filter);
+				WeightTable vertical = new WeightTable(source.getRowCount(), output.rowCount, output.filter);
+				int[] out = new int[output.columnCount * output.rowCount];
+				pixels[j] = out;
+				int rowsPerBand = config.getRowsPerBand(output.columnCount);
+				for (int first = 0; first < output.rowCount; first += rowsPerBand) {
+					int bandFirst = first;
+					int bandRowCount = Math.min(rowsPerBand, output.rowCount - first);
+					bands.add(() -> {
+						output.resizeBand(source, horizontal, vertical, out, bandFirst, bandRowCount);
+						return null;
+					});
+				}
+			}
+			for (Future<Void> band : pool.invokeAll(bands)) {
+				try {
+					band.get();
+				} catch (ExecutionException x) {
+					throw new IllegalStateException("resampling failed", x.getCause());
+				}
+			}
+
+			PpmImage[] results = new PpmImage[outputs.length];
+			for (int j = 0; j < outputs.length; j++) {
+				results[j] = PpmImage.wrapIntBits(outputs[j].rowCount, outputs[j].columnCount, pixels[j]);
+			}
+			return results;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	// output rows firstRow to firstRow + bandRowCount - 1 into out; the first source row a vertical tap reads only
+	// grows from row to row, so the band needs one contiguous run of source rows
+	private void resizeBand(PpmImage source, WeightTable horizontal, WeightTable vertical, int[] out, int firstRow,
+			int bandRowCount) {
+
+		int[] src = source.intBitsArray();
+		int sourceColumns = source.getColumnCount();
+		int sourceFirst = vertical.first[firstRow];
+		int sourceEnd = vertical.first[firstRow + bandRowCount - 1] + vertical.taps;
+		// red, green and blue of each output column, with INTERMEDIATE_BITS of fraction
+		int[][] passed = new int[sourceEnd - sourceFirst][];
+		for (int s = sourceFirst; s < sourceEnd; s++) {
+			passed[s - sourceFirst] = resampleHorizontally(src, s * sourceColumns, horizontal);
+		}
+
+		for (int y = firstRow; y < firstRow + bandRowCount; y++) {
+			int rowFirst = vertical.first[y] - sourceFirst;
+			int weightIndex = y * vertical.taps;
+			int outOffset = y * columnCount;
+			for (int x = 0, c = 0; x < columnCount; x++, c += 3) {
+				int red = 0;
+				int green = 0;
+				int blue = 0;
+				for (int k = 0; k < vertical.taps; k++) {
+					int weight = vertical.weights[weightIndex + k];
+					int[] row = passed[rowFirst + k];
+					red += weight * row[c];
+					green += weight * row[c + 1];
+					blue += weight * row[c + 2];
+				}
+				out[outOffset + x] = PpmImage.Pixel.toIntBits(round(red, VERTICAL_SHIFT),
+					round(green, VERTICAL_SHIFT), round(blue, VERTICAL_SHIFT));
+			}
+		}
+	}
+
+	private int[] resampleHorizontally(int[] src, int offset, WeightTable horizontal) {
+		int[] passed = new int[3 * columnCount];
+		for (int x = 0, c = 0; x < columnCount; x++, c += 3) {
+			int sourceOffset = offset + horizontal.first[x];
+			int weightIndex = x * horizontal.taps;
+			int red = 0;
+			int green = 0;
+			int blue = 0;
+			for (int k = 0; k < horizontal.taps; k++) {
+				int weight = horizontal.weights[weightIndex + k];
+				int bits = src[sourceOffset + k];
+				red += weight * (bits >> 16 & 0xFF);
+				green += weight * (bits >> 8 & 0xFF);
+				blue += weight * (bits & 0xFF);
+			}
+			passed[c] = round(red, HORIZONTAL_SHIFT);
+			passed[c + 1] = round(green, HORIZONTAL_SHIFT);
+			passed[c + 2] = round(blue, HORIZONTAL_SHIFT);
+		}
+		return passed;
+	}
+
+	private static int round(int value, int shift) {
+		return value + (1 << shift - 1) >> shift;
+	}
+
+	@Override
+	public String toString() {
+		return columnCount + "x" + rowCount + " " + filter;
+	}
+
+	// for each output index, the first source index it reads and taps weights for that index and the ones after it;
+	// source indexes past the edges are folded onto the edge pixels
+	static final class WeightTable {
+		final int taps;
+		final int[] first;
+		final int[] weights;
+
+		WeightTable(int sourceLength, int targetLength, Filter filter) {
+			double scale = (double) sourceLength / targetLength;
+			first = new int[targetLength];
+			if (filter == Filter.NEAREST) {
+				taps = 1;
+				weights = new int[targetLength];
+				for (int i = 0; i < targetLength; i++) {
+					first[i] = Math.min(sourceLength - 1, (int) ((i + 0.5) * scale));
+					weights[i] = ONE;
+				}
+				return;
+			}
+
+			double stretch = Math.max(1.0, scale);
+			double support = filter.radius * stretch;
+			taps = Math.min(sourceLength, (int) Math.ceil(2 * support) + 1);
+			weights = new int[targetLength * taps];
+			double[] accumulated = new double[taps];
+			for (int i = 0; i < targetLength; i++) {
+				double center = (i + 0.5) * scale - 0.5;
+				int low = (int) Math.ceil(center - support);
+				int high = (int) Math.floor(center + support);
+				first[i] = Math.min(clamp(low, sourceLength), sourceLength - taps);
+				Arrays.fill(accumulated, 0.0);
+				double sum = 0.0;
+				for (int s = low; s <= high; s++) {
+					double weight = filter.weight((s - center) / stretch);
+					accumulated[clamp(s, sourceLength) - first[i]] += weight;
+					sum += weight;
+				}
+				setFixedPointWeights(accumulated, sum, i * taps);
+			}
+		}
+
+		private static int clamp(int index, int length) {
+			return Math.max(0, Math.min(index, length - 1));
+		}
+
+		// rounded so they add up to exactly ONE, the rounding error goes to the largest weight
+		private void setFixedPointWeights(double[] accumulated, double sum, int offset) {
+			int total = 0;
+			int largest = 0;
+			for (int k = 0; k < taps; k++) {
+				weights[offset + k] = (int) Math.round(accumulated[k] / sum * ONE);
+				total += weights[offset + k];
+				if (weights[offset + k] > weights[offset + largest]) largest = k;
+			}
+			weights[offset + largest] += ONE - total;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package com.abc.ppmimage;
+
+// the inner loops of the row stages over packed pixels (see PpmImage.Pixel#asIntBits()); they use the SIMD
+// versions in VectorRowKernels when the jdk.incubator.vector module is there (run with
+// --add-modules jdk.incubator.vector) and scalar loops otherwise, both give exactly the same pixels;
+// -Dcom.abc.ppmimage.vectorKernels=false forces the scalar loops
+final class RowKernels {
+	static final String VECTOR_KERNELS_PROPERTY = "com.abc.ppmimage.vectorKernels";
+
+	interface Implementation {
+		void flip(int[] src, int srcOffset, int[] dest, int destOffset, int count);
+		void grayscale(int[] src, int srcOffset, int[] dest, int destOffset, int count);
+	}
+
+	private static final Implementation SCALAR = new Implementation() {
+		@Override
+		public void flip(int[] src, int srcOffset, int[] dest, int destOffset, int count) {
+			flipScalar(src, srcOffset, dest, destOffset, count);
+		}
+
+		@Override
+		public void grayscale(int[] src, int srcOffset, int[] dest, int destOffset, int count) {
+			grayscaleScalar(src, srcOffset, dest, destOffset, count);
+		}
+	};
+
+	private static final Implementation IMPLEMENTATION = loadImplementation();
+
+	private RowKernels() {
+	}
+
+	// the vector class is only linked here, so a missing module can't surface anywhere else
+	private static Implementation loadImplementation() {
+		if (!Boolean.parseBoolean(System.getProperty(VECTOR_KERNELS_PROPERTY, "true"))) return SCALAR;
+		try {
+			Implementation vector = (Implementation) Class.forName(RowKernels.class.getPackage().getName() +
+				".VectorRowKernels").getDeclaredConstructor().newInstance();
+			int[] probe = { 0x123456 };
+			vector.grayscale(probe, 0, probe, 0, 1);
+			return vector;
+		} catch (ReflectiveOperationException | LinkageError | RuntimeException x) {
+			return SCALAR;
+		}
+	}
+
+	static boolean isVectorized() {
+		return IMPLEMENTATION != SCALAR;
+	}
+
+	// dest[destOffset + i] = src[srcOffset + count - 1 - i], the ranges must not overlap
+	static void flip(int[] src, int srcOffset, int[] dest, int destOffset, int count) {
+		IMPLEMENTATION.flip(src, srcOffset, dest, destOffset, count);
+	}
+
+	// dest[destOffset + i] = grayscale(src[srcOffset + i]), the ranges may be the same but must not be shifted
+	static void grayscale(int[] src, int srcOffset, int[] dest, int destOffset, int count) {
+		IMPLEMENTATION.grayscale(src, srcOffset, dest, destOffset, count);
+	}
+
+	static void flipScalar(int[] src, int srcOffset, int[] dest, int destOffset, int count) {
+		for (int i = destOffset, j = srcOffset + count - 1, end = destOffset + count; i < end; i++, j--) {
+			dest[i] = src[j];
+		}
+	}
+
+	static void grayscaleScalar(int[] src, int srcOffset, int[] dest, int destOffset, int count) {
+		for (int i = 0; i < count; i++) {
+			dest[destOffset + i] = grayscale(src[srcOffset + i]);
+		}
+	}
+
+	// 100 * (0.21 * red + 0.72 * green + 0.07 * blue) is the integer 21 * red + 72 * green + 7 * blue, so rounding
+	// its hundredth in integers is exact; except for ties (x.50) where the double formula lands a hair above or
+	// below .5 depending on the color, those take the double formula to round exactly like it
+	static int grayscale(int intBits) {
+		int red = intBits >> 16 & 0xFF;
+		int green = intBits >> 8 & 0xFF;
+		int blue = intBits & 0xFF;
+		int scaledPlusHalf = 21 * red + 72 * green + 7 * blue + 50;
+		int grayLevel = divideBy100(scaledPlusHalf);
+		if (grayLevel * 100 == scaledPlusHalf) grayLevel = (int) Math.round(0.21 * red + 0.72 * green + 0.07 * blue);
+		return grayLevel << 16 | grayLevel << 8 | grayLevel;
+	}
+
+	// x / 100 for x in [0..25550] (the largest scaled luminance plus 50), 5243 / 2^19 is just above 1/100
+	static int divideBy100(int x) {
+		return x * 5243 >>> 19;
+	}
+
+	// compares both implementations with the double formula for every one of the 2^24 colors, in rows of
+	// rowLength (any odd length exercises the tail loops); returns the first color that differs, or -1
+	static int findMismatch(int rowLength) {
+		int[] row = new int[rowLength];
+		int[] vectorGray = new int[rowLength];
+		int[] scalarGray = new int[rowLength];
+		int[] flipped = new int[rowLength];
+		for (int first = 0; first < 1 << 24; first += rowLength) {
+			int count = Math.min(rowLength, (1 << 24) - first);
+			for (int i = 0; i < count; i++) {
+				row[i] = first + i;
+			}
+			grayscale(row, 0, vectorGray, 0, count);
+			grayscaleScalar(row, 0, scalarGray, 0, count);
+			for (int i = 0; i < count; i++) {
+				int expected = PpmImage.Pixel.grayscaleIntBits(row[i]);
+				if (vectorGray[i] != expected || scalarGray[i] != expected) return row[i];
+			}
+			flip(row, 0, flipped, 0, count);
+			for (int i = 0; i < count; i++) {
+				if (flipped[i] != row[count - 1 - i]) return row[count - 1 - i];
+			}
+		}
+		return -1;
+	}
+}
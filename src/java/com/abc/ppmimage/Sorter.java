@@ -1,17 +1,22 @@
 package com.abc.ppmimage;
 
 import com.abc.pp.fifo.deluxe_bounded.PPDeluxeBoundedFifo;
-import com.abc.thread.ThreadTools;
 
 public class Sorter {
-	private final PPDeluxeBoundedFifo<PipelineWork> input;
-	private final PPDeluxeBoundedFifo<PipelineWork>[] output;
+	private final PipelineFifo<PipelineWork> input;
+	private final PipelineFifo<PipelineWork>[] output;
 	private Thread thread;
 	private volatile boolean keepGoing;
+	private final PipelineMetrics.StageRecorder recorder;
 
-	public Sorter(PPDeluxeBoundedFifo<PipelineWork> input, PPDeluxeBoundedFifo<PipelineWork>[] output) {
+	public Sorter(PipelineFifo<PipelineWork> input, PipelineFifo<PipelineWork>[] output) {
+		this(input, output, null);
+	}
+
+	public Sorter(PipelineFifo<PipelineWork> input, PipelineFifo<PipelineWork>[] output, PipelineMetrics metrics) {
 		this.input = input;
 		this.output = output;
+		recorder = metrics != null ? metrics.stage(getClass().getSimpleName()) : null;
 		keepGoing = true;
 		thread = new Thread(this::runWork, getClass().getSimpleName());
 		thread.start();
@@ -21,23 +26,24 @@ public class Sorter {
 	private void runWork() {
 		try {
 			while (keepGoing) {
-				PPDeluxeBoundedFifo.RemoveSingleResult<PipelineWork> removeResult = input.remove();
-				switch (removeResult.getStatus()) {
-					case EMPTY_AND_NO_MORE_ADDS_ALLOWED:
-						return;
-					case SUCCESS:
-						PipelineWork work = removeResult.getItem();
-						PPDeluxeBoundedFifo.AddStatus addStatus = output[work.imageIndex].add(work);
-						if (addStatus == PPDeluxeBoundedFifo.AddStatus.NO_MORE_ADDS_ALLOWED) {
-							throw new IllegalStateException("illegal state");
-						}
-						break;
+				long waitStartNanos = System.nanoTime();
+				PipelineWork work = input.removeOrNull();
+				if (work == null) return;
+				// read before the add, a recycled band may be back in its pool right after it
+				int rowCount = work.getRowCount();
+				PPDeluxeBoundedFifo.AddStatus addStatus = output[work.imageIndex].add(work);
+				if (addStatus == PPDeluxeBoundedFifo.AddStatus.NO_MORE_ADDS_ALLOWED) {
+					throw new IllegalStateException("illegal state");
+				}
+				// sorting is all waiting, there is no work of its own to speak of
+				if (recorder != null) {
+					recorder.record(rowCount, 0, System.nanoTime() - waitStartNanos);
 				}
 			}
 		} catch (InterruptedException x) {
 			// ignore
 		} finally {
-			ThreadTools.outln(Thread.currentThread().getName() + " finished");
+			ThreadLog.finished();
 		}
 	}
 
@@ -0,0 +1,196 @@
+package com.abc.ppmimage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.abc.thread.ThreadTools;
+
+// grows and shrinks the worker set of every segment of a StageNetwork; every interval it samples the occupancy of
+// each segment's input fifo and the segment's service rate, estimates how many workers would keep up with the
+// arrivals, and moves one step towards that; the active workers never exceed the budget, so a backed up segment
+// may get a worker that an idling segment gives up
+class StageAutoscaler {
+	private static final double HIGH_OCCUPANCY = 0.75;
+	private static final double LOW_OCCUPANCY = 0.10;
+	private static final int CALM_SAMPLES_BEFORE_SHRINKING = 3;
+
+	// one change to one segment's worker count, and what it was based on
+	public static final class Decision {
+		public final long nanoTime;
+		public final int segmentIndex;
+		public final int fromWorkers;
+		public final int toWorkers;
+		public final double occupancy;
+		public final double arrivalsPerSecond;
+		public final double perWorkerPerSecond;
+
+		Decision(int segmentIndex, int fromWorkers, int toWorkers, double occupancy, double arrivalsPerSecond,
+				double perWorkerPerSecond) {
+
+			nanoTime = System.nanoTime();
+			this.segmentIndex = segmentIndex;
+			this.fromWorkers = fromWorkers;
+			this.toWorkers = toWorkers;
+			this.occupancy = occupancy;
+			this.arrivalsPerSecond = arrivalsPerSecond;
+			this.perWorkerPerSecond = perWorkerPerSecond;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("segment %d: %d -> %d workers (occupancy %.2f, %.1f arrivals/s, %.1f/s per worker)",
+				segmentIndex, fromWorkers, toWorkers, occupancy, arrivalsPerSecond, perWorkerPerSecond);
+		}
+	}
+
+	private final StageNetwork network;
+	private final int workerBudget;
+	private final long intervalMillis;
+	private final List<Decision> decisions;
+	private final long[] lastProcessedCounts;
+	private final long[] lastBusyNanos;
+	private final int[] lastDepths;
+	private final int[] calmSamples;
+	private long lastSampleNanos;
+	private Thread thread;
+	private volatile boolean keepGoing;
+
+	public StageAutoscaler(StageNetwork network, PipelineConfig config) {
+		this.network = network;
+		int segmentCount = network.getSegmentCount();
+		int initialWorkers = 0;
+		for (int i = 0; i < segmentCount; i++) {
+			initialWorkers += network.getActiveWorkerCount(i);
+		}
+		workerBudget = config.getMaxWorkerThreads() > 0 ? config.getMaxWorkerThreads() : initialWorkers;
+		intervalMillis = config.getAutoscaleIntervalMillis();
+		decisions = Collections.synchronizedList(new ArrayList<>());
+		lastProcessedCounts = new long[segmentCount];
+		lastBusyNanos = new long[segmentCount];
+		lastDepths = new int[segmentCount];
+		calmSamples = new int[segmentCount];
+		lastSampleNanos = System.nanoTime();
+		keepGoing = true;
+		thread = new Thread(this::runWork, getClass().getSimpleName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void runWork() {
+		ThreadTools.outln(Thread.currentThread().getName() + " starting with a budget of " + workerBudget + " workers");
+		try {
+			while (keepGoing) {
+				Thread.sleep(intervalMillis);
+				sampleAndScale();
+			}
+		} catch (InterruptedException x) {
+			// ignore
+		} finally {
+			ThreadTools.outln(Thread.currentThread().getName() + " finished after " + decisions.size() + " decisions");
+		}
+	}
+
+	private void sampleAndScale() {
+		long now = System.nanoTime();
+		double seconds = (now - lastSampleNanos) / 1e9;
+		lastSampleNanos = now;
+
+		int segmentCount = network.getSegmentCount();
+		int[] active = new int[segmentCount];
+		int[] wanted = new int[segmentCount];
+		double[] occupancies = new double[segmentCount];
+		double[] arrivals = new double[segmentCount];
+		double[] perWorkerRates = new double[segmentCount];
+		int totalActive = 0;
+		for (int i = 0; i < segmentCount; i++) {
+			PipelineFifo<PipelineWork> input = network.getSegmentInput(i);
+			int depth = input.getCount();
+			long processed = network.getProcessedCount(i);
+			long busyNanos = network.getBusyNanos(i);
+			long processedDelta = processed - lastProcessedCounts[i];
+			long busyDelta = busyNanos - lastBusyNanos[i];
+
+			active[i] = network.getActiveWorkerCount(i);
+			totalActive += active[i];
+			occupancies[i] = Math.min(1.0, (double) depth / input.getCapacity());
+			// what came in is what went out plus what piled up in the fifo
+			arrivals[i] = Math.max(0.0, (processedDelta + depth - lastDepths[i]) / seconds);
+			perWorkerRates[i] = busyDelta > 0 ? processedDelta / (busyDelta / 1e9) : 0.0;
+
+			int needed = perWorkerRates[i] > 0 ? (int) Math.ceil(arrivals[i] / perWorkerRates[i]) : active[i];
+			if (occupancies[i] >= HIGH_OCCUPANCY || needed > active[i]) {
+				wanted[i] = active[i] + 1;
+				calmSamples[i] = 0;
+			} else if (occupancies[i] <= LOW_OCCUPANCY && needed < active[i]) {
+				calmSamples[i]++;
+				wanted[i] = calmSamples[i] >= CALM_SAMPLES_BEFORE_SHRINKING ? active[i] - 1 : active[i];
+			} else {
+				wanted[i] = active[i];
+				calmSamples[i] = 0;
+			}
+
+			lastProcessedCounts[i] = processed;
+			lastBusyNanos[i] = busyNanos;
+			lastDepths[i] = depth;
+		}
+
+		// shrink first, that frees budget for the segments that need to grow
+		for (int i = 0; i < segmentCount; i++) {
+			if (wanted[i] < active[i] && network.stopWorker(i)) {
+				totalActive--;
+				calmSamples[i] = 0;
+				record(new Decision(i, active[i], active[i] - 1, occupancies[i], arrivals[i], perWorkerRates[i]));
+				active[i]--;
+			}
+		}
+
+		// then grow, fullest fifo first; without budget left take a worker from a segment that has idle ones
+		while (true) {
+			int grow = -1;
+			for (int i = 0; i < segmentCount; i++) {
+				if (wanted[i] > active[i] && (grow < 0 || occupancies[i] > occupancies[grow])) grow = i;
+			}
+			if (grow < 0) break;
+			wanted[grow] = active[grow]; // at most one step per sample
+
+			if (totalActive >= workerBudget) {
+				int donor = -1;
+				for (int i = 0; i < segmentCount; i++) {
+					if (i != grow && active[i] > 1 && occupancies[i] <= LOW_OCCUPANCY &&
+							(donor < 0 || occupancies[i] < occupancies[donor])) {
+						donor = i;
+					}
+				}
+				if (donor < 0 || !network.stopWorker(donor)) continue;
+				record(new Decision(donor, active[donor], active[donor] - 1, occupancies[donor], arrivals[donor],
+					perWorkerRates[donor]));
+				active[donor]--;
+				totalActive--;
+			}
+			if (network.addWorker(grow)) {
+				record(new Decision(grow, active[grow], active[grow] + 1, occupancies[grow], arrivals[grow],
+					perWorkerRates[grow]));
+				active[grow]++;
+				totalActive++;
+			}
+		}
+	}
+
+	private void record(Decision decision) {
+		decisions.add(decision);
+		ThreadTools.outln("autoscaler: " + decision + " stages " + Worker.describe(network.getSegment(decision.segmentIndex)));
+	}
+
+	public List<Decision> getDecisions() {
+		synchronized (decisions) {
+			return new ArrayList<>(decisions);
+		}
+	}
+
+	public void stopAndWait() throws InterruptedException {
+		keepGoing = false;
+		thread.interrupt();
+		thread.join();
+	}
+}
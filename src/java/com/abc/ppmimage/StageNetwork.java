@@ -0,0 +1,195 @@
+package com.abc.ppmimage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// the worker stages of a pipeline: a fifo in front of every segment and one after the last segment, with workers
+// in between each pair; feeding the input and draining the output is up to the caller, unless a final sink is
+// given, then the last segment's workers hand their work straight to it and there is no output fifo
+//
+// a segment is a run of stages that one worker applies to a row in a single pass; when fusing, consecutive
+// row-local stages share a segment, so a fifo hop is only paid where a stage needs one
+//
+// a stage that isn't row-local always starts a segment, the workers of such a segment share a HaloGate that holds
+// each band back until the rows around it have come out of the segment before
+//
+// with autoscaling a StageAutoscaler adds and stops workers per segment while the network runs
+class StageNetwork {
+	private final PipelineStage[][] segments;
+	private final HaloGate[] gates;
+	private final PipelineFifo<PipelineWork>[] fifos;
+	private final WorkSink<PipelineWork> finalSink;
+	private final SegmentWorkers[] workers;
+	private final StageAutoscaler autoscaler;
+	private final PipelineMetrics metrics;
+
+	public StageNetwork(PipelineStage[] pipeline, PipelineConfig config) {
+		this(pipeline, config, null);
+	}
+
+	@SuppressWarnings("unchecked")
+	public StageNetwork(PipelineStage[] pipeline, PipelineConfig config, WorkSink<PipelineWork> finalSink) {
+		segments = planSegments(pipeline, config.isFuseStages());
+		this.finalSink = finalSink;
+		metrics = config.getMetrics();
+
+		// create fifos, every one of them has several threads adding or removing
+		fifos = new PipelineFifo[finalSink == null ? segments.length + 1 : segments.length];
+		for (int i = 0; i < fifos.length; i++) {
+			PipelineFifo.Kind kind = config.getStageFifoKind(i);
+			if (kind == PipelineFifo.Kind.LOCK_FREE_SPSC) {
+				throw new IllegalArgumentException("stage fifo " + i + " has more than one thread on a side, " +
+					kind + " can't be used there");
+			}
+			fifos[i] = PipelineFifo.create(kind, config.getFifoSize(), PipelineWork.class);
+			if (metrics != null) {
+				metrics.addFifo(i < segments.length ? "in " + Worker.describe(segments[i]) : "out", fifos[i]);
+			}
+		}
+
+		// create workers per segment, a fused segment gets the workers of all of its stages
+		gates = new HaloGate[segments.length];
+		workers = new SegmentWorkers[segments.length];
+		for (int i = 0; i < segments.length; i++) {
+			gates[i] = HaloGate.forSegment(segments[i]);
+			workers[i] = new SegmentWorkers();
+			int workerCount = config.getWorkersPerStage() * Math.max(1, segments[i].length);
+			for (int j = 0; j < workerCount; j++) {
+				addWorker(i);
+			}
+		}
+
+		autoscaler = config.isAutoscaling() ? new StageAutoscaler(this, config) : null;
+	}
+
+	// splits the pipeline into segments; without fusing every stage is a segment of its own; an empty pipeline
+	// still gets one (empty) segment, so there is always a worker to move the work along
+	static PipelineStage[][] planSegments(PipelineStage[] pipeline, boolean fuseStages) {
+		for (PipelineStage stage : pipeline) {
+			if (stage.isGeometric()) {
+				throw new IllegalArgumentException(stage + " needs the whole image, it can't run on bands");
+			}
+		}
+		if (pipeline.length == 0) return new PipelineStage[][] { pipeline };
+
+		List<PipelineStage[]> segments = new ArrayList<>();
+		int start = 0;
+		for (int i = 1; i <= pipeline.length; i++) {
+			boolean boundary = i == pipeline.length || !fuseStages || !pipeline[i].isRowLocal();
+			if (boundary) {
+				segments.add(Arrays.copyOfRange(pipeline, start, i));
+				start = i;
+			}
+		}
+		return segments.toArray(new PipelineStage[0][]);
+	}
+
+	public int getSegmentCount() {
+		return segments.length;
+	}
+
+	public PipelineStage[] getSegment(int segmentIndex) {
+		return segments[segmentIndex].clone();
+	}
+
+	public PipelineFifo<PipelineWork> getInput() {
+		return fifos[0];
+	}
+
+	// null when there is a final sink
+	public PipelineFifo<PipelineWork> getOutput() {
+		return fifos.length > segments.length ? fifos[fifos.length - 1] : null;
+	}
+
+	// the fifo the workers of the segment take their work from
+	public PipelineFifo<PipelineWork> getSegmentInput(int segmentIndex) {
+		return fifos[segmentIndex];
+	}
+
+	public int getActiveWorkerCount(int segmentIndex) {
+		SegmentWorkers segment = workers[segmentIndex];
+		synchronized (segment) {
+			return segment.active.size();
+		}
+	}
+
+	// returns false once the segment is finishing, then its worker set is final
+	public boolean addWorker(int segmentIndex) {
+		SegmentWorkers segment = workers[segmentIndex];
+		synchronized (segment) {
+			if (segment.finishing) return false;
+			WorkSink<PipelineWork> output = segmentIndex + 1 < fifos.length ? fifos[segmentIndex + 1] : finalSink;
+			Worker worker = new Worker(fifos[segmentIndex], output, segments[segmentIndex], segmentIndex, metrics,
+				gates[segmentIndex]);
+			segment.active.add(worker);
+			segment.all.add(worker);
+			return true;
+		}
+	}
+
+	// stops the most recently added worker after the work it has in hand, a segment always keeps one worker
+	public boolean stopWorker(int segmentIndex) {
+		SegmentWorkers segment = workers[segmentIndex];
+		synchronized (segment) {
+			if (segment.finishing || segment.active.size() <= 1) return false;
+			segment.active.remove(segment.active.size() - 1).stopRequest();
+			return true;
+		}
+	}
+
+	// totals over every worker the segment ever had
+	public long getProcessedCount(int segmentIndex) {
+		SegmentWorkers segment = workers[segmentIndex];
+		synchronized (segment) {
+			long total = 0;
+			for (Worker worker : segment.all) {
+				total += worker.getProcessedCount();
+			}
+			return total;
+		}
+	}
+
+	public long getBusyNanos(int segmentIndex) {
+		SegmentWorkers segment = workers[segmentIndex];
+		synchronized (segment) {
+			long total = 0;
+			for (Worker worker : segment.all) {
+				total += worker.getBusyNanos();
+			}
+			return total;
+		}
+	}
+
+	// the decisions the autoscaler made so far, empty without autoscaling
+	public List<StageAutoscaler.Decision> getScalingDecisions() {
+		return autoscaler != null ? autoscaler.getDecisions() : new ArrayList<>();
+	}
+
+	// call once nothing more will be added to the input, closes each segment's output after the segment drained
+	public void finishAndWait() throws InterruptedException {
+		fifos[0].indicateNoMoreAddsAllowed();
+
+		// wait for all workers to finish
+		for (int i = 0; i < workers.length; i++) {
+			// wait for segment to finish, no workers come or go after this point
+			List<Worker> segmentWorkers;
+			synchronized (workers[i]) {
+				workers[i].finishing = true;
+				segmentWorkers = new ArrayList<>(workers[i].all);
+			}
+			for (Worker worker : segmentWorkers) {
+				worker.waitUntilStopped();
+			}
+			if (i + 1 < fifos.length) fifos[i + 1].indicateNoMoreAddsAllowed();
+		}
+		if (autoscaler != null) autoscaler.stopAndWait();
+	}
+
+	// the workers of one segment, guarded by the instance's monitor
+	private static class SegmentWorkers {
+		final List<Worker> active = new ArrayList<>();
+		final List<Worker> all = new ArrayList<>();
+		boolean finishing;
+	}
+}
@@ -0,0 +1,103 @@
+package com.abc.ppmimage;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+public class StreamingAssembler {
+	private final PipelineFifo<PipelineWork> input;
+	private final PpmWriter writer;
+	private final int rowCount;
+	// bands that arrived ahead of nextRowIndex, by first row, never more than what is in flight in the pipeline
+	private final Map<Integer, PipelineWork> pendingBands;
+	private int nextRowIndex;
+	private Thread thread;
+	private volatile boolean keepGoing;
+	private volatile IOException failure;
+	private final PipelineMetrics metrics;
+	private final PipelineMetrics.StageRecorder recorder;
+
+	public StreamingAssembler(PipelineFifo<PipelineWork> input, PpmWriter writer, int imageIndex, int rowCount) {
+		this(input, writer, imageIndex, rowCount, null);
+	}
+
+	// the latency recorded is up to the band's arrival here, not until it is written (it may have to wait its turn)
+	public StreamingAssembler(PipelineFifo<PipelineWork> input, PpmWriter writer, int imageIndex, int rowCount,
+			PipelineMetrics metrics) {
+
+		this.input = input;
+		this.metrics = metrics;
+		recorder = metrics != null ? metrics.stage(getClass().getSimpleName()) : null;
+		this.writer = writer;
+		this.rowCount = rowCount;
+		pendingBands = new HashMap<>();
+		keepGoing = true;
+		thread = new Thread(this::runWork, getClass().getSimpleName() + "- image " + imageIndex);
+		thread.start();
+	}
+
+	// takes a stream of row bands in any order and writes the rows out in order, as early as possible
+	private void runWork() {
+		try {
+			while (keepGoing) {
+				long waitStartNanos = System.nanoTime();
+				PipelineFifo.RemoveSingleResult<PipelineWork> removeResult = input.remove();
+				switch (removeResult.getStatus()) {
+					case EMPTY_AND_NO_MORE_ADDS_ALLOWED:
+						if (failure == null && nextRowIndex != rowCount) {
+							failure = new IOException("only " + nextRowIndex + " of " + rowCount + " rows were written");
+						}
+						return;
+					case SUCCESS:
+						// after a failure keep draining, so nothing upstream blocks on us
+						PipelineWork work = removeResult.getItem();
+						long startNanos = System.nanoTime();
+						if (metrics != null) metrics.recordRowLatency(work);
+						if (failure == null) accept(work);
+						if (recorder != null) {
+							long busyNanos = System.nanoTime() - startNanos;
+							recorder.record(work.getRowCount(), busyNanos, startNanos - waitStartNanos);
+						}
+						break;
+				}
+			}
+		} catch (InterruptedException x) {
+			// ignore
+		} finally {
+			ThreadLog.finished();
+		}
+	}
+
+	private void accept(PipelineWork work) {
+		try {
+			if (work.firstRowIndex != nextRowIndex) {
+				pendingBands.put(work.firstRowIndex, work);
+				return;
+			}
+			for (PipelineWork band = work; band != null; band = pendingBands.remove(nextRowIndex)) {
+				for (PpmImage.Row row : band.rows) {
+					writer.writeRow(row);
+				}
+				nextRowIndex += band.getRowCount();
+			}
+			if (nextRowIndex == rowCount) writer.flush();
+		} catch (IOException x) {
+			failure = x;
+			pendingBands.clear();
+		}
+	}
+
+	// the write error that stopped this assembler, or the rows that never arrived
+	public IOException getFailure() {
+		return failure;
+	}
+
+	public void waitUntilStopped() throws InterruptedException {
+		thread.join();
+	}
+
+	public void stopRequest() {
+		keepGoing = false;
+		thread.interrupt();
+	}
+}
@@ -0,0 +1,26 @@
+package com.abc.ppmimage;
+
+import com.abc.thread.ThreadTools;
+
+// the "starting"/"finished" line every pipeline thread prints; with -Dcom.abc.ppmimage.quietThreads=true they are
+// dropped, which the benchmarks use so that no console output (under ThreadTools' lock) lands in a timed region
+final class ThreadLog {
+	// read once when the class is initialized
+	static final String QUIET_PROPERTY = "com.abc.ppmimage.quietThreads";
+	private static final boolean QUIET = Boolean.getBoolean(QUIET_PROPERTY);
+
+	private ThreadLog() {
+	}
+
+	static boolean isQuiet() {
+		return QUIET;
+	}
+
+	static void starting() {
+		if (!QUIET) ThreadTools.outln("%s starting", Thread.currentThread().getName());
+	}
+
+	static void finished() {
+		if (!QUIET) ThreadTools.outln("%s finished", Thread.currentThread().getName());
+	}
+}
@@ -0,0 +1,132 @@
+package com.abc.ppmimage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// the geometric stages (see PipelineStage#isGeometric()) over whole images: each image is cut into square tiles
+// (TileWork) that are rotated, transposed or flipped one at a time, so the column-strided side of the access only
+// ever spans the rows of one tile instead of the whole image; apply() goes through the tiles on the calling
+// thread, applyAll() spreads the tiles of several images over a pool, both give exactly the same pixels
+//
+// a geometric stage needs all of an image before any output row is complete, so executePipeline runs it as a
+// barrier between two ordinary pipelines
+public final class TileTransform {
+	// 64x64 packed pixels are 16KB, a tile and the output it writes fit in L1 together
+	static final int TILE_SIZE = 64;
+
+	private TileTransform() {
+	}
+
+	// on the calling thread
+	public static PpmImage apply(PpmImage image, PipelineStage stage) {
+		if (!stage.isGeometric()) throw new IllegalArgumentException("not a geometric stage: " + stage);
+		int[] out = new int[image.getRowCount() * image.getColumnCount()];
+		for (TileWork tile : cutIntoTiles(image, 0)) {
+			tile.process(stage, image, out);
+		}
+		return wrapOutput(image, stage, out);
+	}
+
+	// every image at once, on a pool of config.getParallelism() threads; results[i] is images[i] with the stage
+	// applied
+	public static PpmImage[] applyAll(PpmImage[] images, PipelineStage stage, PipelineConfig config)
+			throws InterruptedException {
+
+		if (!stage.isGeometric()) throw new IllegalArgumentException("not a geometric stage: " + stage);
+		ForkJoinPool pool = new ForkJoinPool(config.getParallelism());
+		try {
+			int[][] pixels = new int[images.length][];
+			List<Callable<Void>> tiles = new ArrayList<>();
+			for (int i = 0; i < images.length; i++) {
+				PpmImage image = images[i];
+				int[] out = new int[image.getRowCount() * image.getColumnCount()];
+				pixels[i] = out;
+				// a task per row of tiles, thousands of tiny tasks would cost more than the tiles themselves
+				List<TileWork> imageTiles = cutIntoTiles(image, i);
+				for (int first = 0, end; first < imageTiles.size(); first = end) {
+					for (end = first; end < imageTiles.size(); end++) {
+						if (imageTiles.get(end).firstRow != imageTiles.get(first).firstRow) break;
+					}
+					List<TileWork> tileRow = imageTiles.subList(first, end);
+					tiles.add(() -> {
+						for (TileWork tile : tileRow) {
+							tile.process(stage, image, out);
+						}
+						return null;
+					});
+				}
+			}
+			for (Future<Void> tile : pool.invokeAll(tiles)) {
+				try {
+					tile.get();
+				} catch (ExecutionException x) {
+					throw new IllegalStateException(stage + " failed", x.getCause());
+				}
+			}
+
+			PpmImage[] results = new PpmImage[images.length];
+			for (int i = 0; i < images.length; i++) {
+				results[i] = wrapOutput(images[i], stage, pixels[i]);
+			}
+			return results;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	// tiles in row-major order, the last ones in a row or column are smaller where the size isn't a multiple
+	static List<TileWork> cutIntoTiles(PpmImage image, int imageIndex) {
+		List<TileWork> tiles = new ArrayList<>();
+		for (int row = 0; row < image.getRowCount(); row += TILE_SIZE) {
+			for (int column = 0; column < image.getColumnCount(); column += TILE_SIZE) {
+				tiles.add(new TileWork(imageIndex, row, column, Math.min(TILE_SIZE, image.getRowCount() - row),
+					Math.min(TILE_SIZE, image.getColumnCount() - column)));
+			}
+		}
+		return tiles;
+	}
+
+	private static PpmImage wrapOutput(PpmImage image, PipelineStage stage, int[] out) {
+		return stage.swapsDimensions() ? PpmImage.wrapIntBits(image.getColumnCount(), image.getRowCount(), out) :
+			PpmImage.wrapIntBits(image.getRowCount(), image.getColumnCount(), out);
+	}
+
+	// the serial reference: every output pixel fetched from where the stage takes it, no tiles
+	static PpmImage applyReference(PpmImage image, PipelineStage stage) {
+		int rows = image.getRowCount();
+		int columns = image.getColumnCount();
+		int outRows = stage.swapsDimensions() ? columns : rows;
+		int outColumns = stage.swapsDimensions() ? rows : columns;
+		int[] out = new int[outRows * outColumns];
+		for (int r = 0; r < outRows; r++) {
+			for (int c = 0; c < outColumns; c++) {
+				int bits;
+				switch (stage) {
+					case FLIP_VERTICALLY:
+						bits = image.getIntBitsAt(rows - 1 - r, c);
+						break;
+					case TRANSPOSE:
+						bits = image.getIntBitsAt(c, r);
+						break;
+					case ROTATE_90:
+						bits = image.getIntBitsAt(rows - 1 - c, r);
+						break;
+					case ROTATE_180:
+						bits = image.getIntBitsAt(rows - 1 - r, columns - 1 - c);
+						break;
+					case ROTATE_270:
+						bits = image.getIntBitsAt(c, columns - 1 - r);
+						break;
+					default:
+						throw new IllegalArgumentException("not a geometric stage: " + stage);
+				}
+				out[r * outColumns + c] = bits;
+			}
+		}
+		return PpmImage.wrapIntBits(outRows, outColumns, out);
+	}
+}
@@ -0,0 +1,76 @@
+package com.abc.ppmimage;
+
+// a rectangle of one image, the work unit of the geometric stages (see TileTransform) the way a band of rows is the
+// work unit of the others; process() reads the tile row by row and writes every pixel straight to where the stage
+// puts it in the output, tiles cover disjoint parts of the output, so any number of them can be placed at once
+final class TileWork {
+	final int imageIndex;
+	final int firstRow;
+	final int firstColumn;
+	final int rowCount;
+	final int columnCount;
+
+	TileWork(int imageIndex, int firstRow, int firstColumn, int rowCount, int columnCount) {
+		this.imageIndex = imageIndex;
+		this.firstRow = firstRow;
+		this.firstColumn = firstColumn;
+		this.rowCount = rowCount;
+		this.columnCount = columnCount;
+	}
+
+	// out holds the whole output image, stage.swapsDimensions() tells its shape
+	void process(PipelineStage stage, PpmImage source, int[] out) {
+		int[] src = source.intBitsArray();
+		int sourceRows = source.getRowCount();
+		int sourceColumns = source.getColumnCount();
+		int rowEnd = firstRow + rowCount;
+		int columnEnd = firstColumn + columnCount;
+		for (int slowIndex = 0; slowIndex < PpmImage.getSlowFactor(); slowIndex++) {
+			switch (stage) {
+				case FLIP_VERTICALLY:
+					for (int y = firstRow; y < rowEnd; y++) {
+						System.arraycopy(src, y * sourceColumns + firstColumn, out,
+							(sourceRows - 1 - y) * sourceColumns + firstColumn, columnCount);
+					}
+					break;
+				case ROTATE_180:
+					for (int y = firstRow; y < rowEnd; y++) {
+						int from = y * sourceColumns;
+						int to = (sourceRows - 1 - y) * sourceColumns + sourceColumns - 1;
+						for (int x = firstColumn; x < columnEnd; x++) {
+							out[to - x] = src[from + x];
+						}
+					}
+					break;
+				// the output rows are the tile's columns: the reads go down a column of the tile, which is
+				// in the cache after the first one, and the writes run along an output row
+				case TRANSPOSE:
+					for (int x = firstColumn; x < columnEnd; x++) {
+						int to = x * sourceRows;
+						for (int y = firstRow; y < rowEnd; y++) {
+							out[to + y] = src[y * sourceColumns + x];
+						}
+					}
+					break;
+				case ROTATE_90:
+					for (int x = firstColumn; x < columnEnd; x++) {
+						int to = x * sourceRows + sourceRows - 1;
+						for (int y = firstRow; y < rowEnd; y++) {
+							out[to - y] = src[y * sourceColumns + x];
+						}
+					}
+					break;
+				case ROTATE_270:
+					for (int x = firstColumn; x < columnEnd; x++) {
+						int to = (sourceColumns - 1 - x) * sourceRows;
+						for (int y = firstRow; y < rowEnd; y++) {
+							out[to + y] = src[y * sourceColumns + x];
+						}
+					}
+					break;
+				default:
+					throw new IllegalArgumentException("not a geometric stage: " + stage);
+			}
+		}
+	}
+}
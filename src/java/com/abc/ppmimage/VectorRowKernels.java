@@ -0,0 +1,50 @@
+package com.abc.ppmimage;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+// the SIMD kernels, only ever loaded through RowKernels, which falls back to its scalar loops when this class
+// can't be linked (the incubator module isn't there)
+final class VectorRowKernels implements RowKernels.Implementation {
+	private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+	private static final VectorShuffle<Integer> REVERSE =
+		VectorShuffle.fromOp(SPECIES, i -> SPECIES.length() - 1 - i);
+
+	@Override
+	public void flip(int[] src, int srcOffset, int[] dest, int destOffset, int count) {
+		int length = SPECIES.length();
+		int i = 0;
+		// each vector from the end of the source, reversed, goes to the start of the destination
+		for (int bound = SPECIES.loopBound(count); i < bound; i += length) {
+			IntVector.fromArray(SPECIES, src, srcOffset + count - i - length).rearrange(REVERSE)
+				.intoArray(dest, destOffset + i);
+		}
+		RowKernels.flipScalar(src, srcOffset, dest, destOffset + i, count - i);
+	}
+
+	@Override
+	public void grayscale(int[] src, int srcOffset, int[] dest, int destOffset, int count) {
+		int i = 0;
+		for (int bound = SPECIES.loopBound(count); i < bound; i += SPECIES.length()) {
+			IntVector pixels = IntVector.fromArray(SPECIES, src, srcOffset + i);
+			IntVector red = pixels.lanewise(VectorOperators.LSHR, 16).and(0xFF);
+			IntVector green = pixels.lanewise(VectorOperators.LSHR, 8).and(0xFF);
+			IntVector blue = pixels.and(0xFF);
+			IntVector scaledPlusHalf = red.mul(21).add(green.mul(72)).add(blue.mul(7)).add(50);
+			IntVector grayLevel = scaledPlusHalf.mul(5243).lanewise(VectorOperators.LSHR, 19);
+			// the rare x.50 ties have to round like the double formula, see RowKernels.grayscale(int), so a chunk
+			// with one goes through the scalar loop, before dest is written since src may be dest; a tie is where
+			// 100 * grayLevel - scaledPlusHalf, which is in [-99, 0], is 0, found by a reduction rather than a
+			// VectorMask, which C2 can't always keep in registers and then allocates on every chunk
+			if (grayLevel.mul(100).sub(scaledPlusHalf).reduceLanes(VectorOperators.MAX) == 0) {
+				RowKernels.grayscaleScalar(src, srcOffset + i, dest, destOffset + i, SPECIES.length());
+				continue;
+			}
+			grayLevel.or(grayLevel.lanewise(VectorOperators.LSHL, 8)).or(grayLevel.lanewise(VectorOperators.LSHL, 16))
+				.intoArray(dest, destOffset + i);
+		}
+		RowKernels.grayscaleScalar(src, srcOffset + i, dest, destOffset + i, count - i);
+	}
+}
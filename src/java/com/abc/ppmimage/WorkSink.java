@@ -0,0 +1,8 @@
+package com.abc.ppmimage;
+
+import com.abc.pp.fifo.deluxe_bounded.PPDeluxeBoundedFifo.AddStatus;
+
+// somewhere a Worker can hand finished work to: the next fifo, or the final resting place of the rows
+public interface WorkSink<T> {
+	AddStatus add(T item) throws InterruptedException;
+}
@@ -0,0 +1,104 @@
+package com.abc.ppmimage;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.abc.thread.ThreadTools;
+
+// the WORK_STEALING engine: instead of a pool of workers per stage, one ForkJoinPool advances every band through
+// its segments; a band that finished a segment forks its next step, which the same thread usually picks up while
+// the row is still in its cache, but any idle thread can steal it, so no stage starves while another idles; a band
+// going into a segment that starts with a stage that isn't row-local goes through the segment's HaloGate first
+class WorkStealingPipeline {
+	private final PipelineStage[][] segments;
+	private final HaloGate[] gates;
+	private final ImageCompletions completions;
+	private final PipelineMetrics.StageRecorder[] recorders;
+
+	private WorkStealingPipeline(PipelineStage[][] segments, ImageCompletions completions, PipelineMetrics metrics) {
+		this.segments = segments;
+		this.completions = completions;
+		gates = new HaloGate[segments.length];
+		for (int i = 0; i < segments.length; i++) {
+			gates[i] = HaloGate.forSegment(segments[i]);
+		}
+		// the same stage names as the dedicated workers, there are no fifos, so nothing is ever blocked
+		recorders = new PipelineMetrics.StageRecorder[segments.length];
+		for (int i = 0; i < segments.length && metrics != null; i++) {
+			recorders[i] = metrics.stage(Worker.getRecorderName(i, segments[i]));
+		}
+	}
+
+	// returns right away, the pool shuts itself down once every image is done
+	public static List<CompletableFuture<PpmImage>> start(PpmImage[] images, PipelineStage[] pipeline,
+			PipelineConfig config) {
+
+		PipelineMetrics metrics = config.getMetrics();
+		WorkStealingPipeline run = new WorkStealingPipeline(StageNetwork.planSegments(pipeline, config.isFuseStages()),
+			new ImageCompletions(images, metrics), metrics);
+
+		ForkJoinPool pool = new ForkJoinPool(config.getParallelism());
+		CompletableFuture.allOf(run.completions.getFutures().toArray(new CompletableFuture<?>[0]))
+			.whenComplete((ignored, x) -> {
+				pool.shutdown();
+				if (metrics != null) metrics.stopWithoutWaiting();
+			});
+		ThreadTools.outln("work-stealing pipeline starting with " + pool.getParallelism() + " threads");
+		for (int i = 0; i < images.length; i++) {
+			int rowsPerBand = config.getRowsPerBand(images[i].getColumnCount());
+			for (int first = 0; first < images[i].getRowCount(); first += rowsPerBand) {
+				PpmImage.Row[] band = new PpmImage.Row[Math.min(rowsPerBand, images[i].getRowCount() - first)];
+				for (int j = 0; j < band.length; j++) {
+					band[j] = images[i].getRowAt(first + j);
+				}
+				pool.execute(run.new Advance(new PipelineWork(band, first, i, images[i].getRowCount()), false));
+			}
+		}
+		return run.completions.getFutures();
+	}
+
+	// applies the band's next segment, then either forks the step after it or places the finished rows
+	private class Advance extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final PipelineWork work;
+		// the band already went through the gate of its next segment
+		private final boolean admitted;
+
+		Advance(PipelineWork work, boolean admitted) {
+			this.work = work;
+			this.admitted = admitted;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				HaloGate gate = work.nextSegmentIndex < segments.length ? gates[work.nextSegmentIndex] : null;
+				if (gate != null && !admitted) {
+					// the band may have to wait for its neighbours, or complete the neighbourhood of others
+					for (PipelineWork ready : gate.arrive(work)) {
+						new Advance(ready, true).fork();
+					}
+					return;
+				}
+				if (work.nextSegmentIndex < segments.length) {
+					int segmentIndex = work.nextSegmentIndex++;
+					long startNanos = System.nanoTime();
+					work.process(segments[segmentIndex]);
+					if (recorders[segmentIndex] != null) {
+						recorders[segmentIndex].record(work.getRowCount(), System.nanoTime() - startNanos, 0);
+					}
+				}
+				if (work.nextSegmentIndex < segments.length) {
+					new Advance(work, false).fork();
+				} else {
+					completions.add(work);
+				}
+			} catch (Throwable x) {
+				completions.getFutures().get(work.imageIndex).completeExceptionally(x);
+			}
+		}
+	}
+}
@@ -1,57 +1,136 @@
 package com.abc.ppmimage;
 
-import com.abc.pp.fifo.deluxe_bounded.PPDeluxeBoundedFifo;
 import com.abc.pp.fifo.deluxe_bounded.PPDeluxeBoundedFifo.AddStatus;
-import com.abc.pp.fifo.deluxe_bounded.PPDeluxeBoundedFifo.RemoveSingleResult;
-import com.abc.thread.ThreadTools;
 
 public class Worker {
 	private static int id = 0;
-	private final PPDeluxeBoundedFifo<PipelineWork> input;
-	private final PPDeluxeBoundedFifo<PipelineWork> output;
+	private final PipelineFifo<PipelineWork> input;
+	private final WorkSink<PipelineWork> output;
 	private Thread thread;
 	private volatile boolean keepGoing;
-	private PipelineStage stage;
+	private PipelineStage[] stages;
+	private final PipelineMetrics.StageRecorder recorder;
+	// shared by the workers of a segment that starts with a stage that isn't row-local, null otherwise
+	private final HaloGate gate;
+	// only written by the worker's own thread
+	private volatile long processedCount;
+	private volatile long busyNanos;
+
+	public Worker(PipelineFifo<PipelineWork> input, WorkSink<PipelineWork> output, PipelineStage stage) {
+		this(input, output, new PipelineStage[] { stage });
+	}
+
+	// applies all of the (fused) stages to each row before passing it on
+	public Worker(PipelineFifo<PipelineWork> input, WorkSink<PipelineWork> output, PipelineStage[] stages) {
+		this(input, output, stages, null);
+	}
+
+	// records into the metrics' stage named after segment 0 and the (fused) stages, unless metrics is null
+	public Worker(PipelineFifo<PipelineWork> input, WorkSink<PipelineWork> output, PipelineStage[] stages,
+			PipelineMetrics metrics) {
+
+		this(input, output, stages, 0, metrics, null);
+	}
+
+	// bands are processed once the gate lets them through, see HaloGate.forSegment
+	public Worker(PipelineFifo<PipelineWork> input, WorkSink<PipelineWork> output, PipelineStage[] stages,
+			int segmentIndex, PipelineMetrics metrics, HaloGate gate) {
 
-	public Worker(PPDeluxeBoundedFifo<PipelineWork> input, PPDeluxeBoundedFifo<PipelineWork> output, PipelineStage stage) {
 		this.input = input;
 		this.output = output;
-		this.stage = stage;
+		this.stages = stages.clone();
+		this.gate = gate;
+		recorder = metrics != null ? metrics.stage(getRecorderName(segmentIndex, stages)) : null;
 		keepGoing = true;
-		thread = new Thread(this::runWork, getClass().getSimpleName()  + "- " + getNextId() + " stage " + stage);
+		thread = new Thread(this::runWork, getClass().getSimpleName()  + "- " + getNextId() + " stage " + describe(stages));
 		thread.start();
 	}
 
+	static String describe(PipelineStage[] stages) {
+		StringBuilder sb = new StringBuilder();
+		for (PipelineStage stage : stages) {
+			if (sb.length() > 0) sb.append('+');
+			sb.append(stage);
+		}
+		return sb.toString();
+	}
+
+	// the metrics' stage of a segment's workers; by index, two segments with the same stages are different rows
+	static String getRecorderName(int segmentIndex, PipelineStage[] stages) {
+		return "segment " + segmentIndex + ": " + describe(stages);
+	}
+
 	private static synchronized int getNextId() {
 		return id++;
 	}
 
-	// takes a stream of rows and processes them according to the specified stage
+	// takes a stream of rows and processes them according to the specified stages
 	private void runWork() {
-		ThreadTools.outln(Thread.currentThread().getName() + " starting");
+		ThreadLog.starting();
 		try {
 			while (keepGoing) {
-				RemoveSingleResult<PipelineWork> removeResult = input.remove();
-				switch (removeResult.getStatus()) {
-					case EMPTY_AND_NO_MORE_ADDS_ALLOWED:
-						return;
-					case SUCCESS:
-						PipelineWork work = removeResult.getItem();
-						work.process(stage);
-						AddStatus addStatus = output.add(work);
-						if (addStatus == AddStatus.NO_MORE_ADDS_ALLOWED) {
-							throw new IllegalStateException("illegal state");
-						}
-						break;
+				long waitStartNanos = System.nanoTime();
+				PipelineWork work = input.removeOrNull();
+				if (work == null) return;
+				if (gate == null) {
+					processAndPass(work, waitStartNanos);
+					continue;
+				}
+				// the band may have to wait for its neighbours, or complete the neighbourhood of others
+				for (PipelineWork ready : gate.arrive(work)) {
+					processAndPass(ready, waitStartNanos);
+					waitStartNanos = System.nanoTime();
 				}
 			}
 		} catch (InterruptedException x) {
 			// ignore
 		} finally {
-			ThreadTools.outln(Thread.currentThread().getName() + " finished");
+			ThreadLog.finished();
+		}
+	}
+
+	private void processAndPass(PipelineWork work, long waitStartNanos) {
+		long startNanos = System.nanoTime();
+		work.process(stages);
+		long endNanos = System.nanoTime();
+		busyNanos += endNanos - startNanos;
+		processedCount++;
+		// read before passing it on, a recycled band may be back in its pool right after that
+		int rowCount = work.getRowCount();
+		addEvenIfInterrupted(work);
+		if (recorder != null) {
+			recorder.record(rowCount, endNanos - startNanos,
+				startNanos - waitStartNanos + System.nanoTime() - endNanos);
 		}
 	}
 
+	// a stopRequest only ends the wait for more work, the work already in hand is always passed on
+	private void addEvenIfInterrupted(PipelineWork work) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				AddStatus addStatus = output.add(work);
+				if (addStatus == AddStatus.NO_MORE_ADDS_ALLOWED) {
+					throw new IllegalStateException("illegal state");
+				}
+				break;
+			} catch (InterruptedException x) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	// work items processed so far
+	public long getProcessedCount() {
+		return processedCount;
+	}
+
+	// time spent processing so far, as opposed to waiting on the fifos
+	public long getBusyNanos() {
+		return busyNanos;
+	}
+
 	public void waitUntilStopped() throws InterruptedException {
 		thread.join();
 	}
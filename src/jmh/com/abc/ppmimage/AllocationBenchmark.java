@@ -0,0 +1,73 @@
+package com.abc.ppmimage;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// the band loop of one image on a single thread (take a band, run the stages, copy it into the image), with new
+// rows per band against recycled band buffers; run with -prof gc, gc.alloc.rate.norm divided by rowCount is the
+// bytes allocated per row, which should be next to 0 for RECYCLED with the vector kernels as well as without
+// (they must not allocate either, see PpmImageDemo.checkKernels)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class AllocationBenchmark {
+	public enum Bands { ROWS, RECYCLED }
+
+	private static final PipelineStage[] PIPELINE = { PipelineStage.FLIP_HORIZONTALLY, PipelineStage.GRAYSCALE };
+
+	@Param({ "ROWS", "RECYCLED" })
+	public Bands bands;
+
+	@Param({ "16" })
+	public int rowsPerBand;
+
+	public int rowCount = 256;
+	public int columnCount = 1024;
+
+	private PpmImage image;
+	private BandPool pool;
+	private PpmImage.Row[] rows;
+	private int[] pixels;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		BenchmarkSupport.useSlowFactor(1);
+		Random random = new Random(42);
+		int[] intBits = new int[rowCount * columnCount];
+		for (int i = 0; i < intBits.length; i++) {
+			intBits[i] = random.nextInt(1 << 24);
+		}
+		image = PpmImage.wrapIntBits(rowCount, columnCount, intBits);
+		pool = new BandPool();
+		rows = new PpmImage.Row[rowCount];
+		pixels = new int[rowCount * columnCount];
+	}
+
+	@Benchmark
+	public Object image() {
+		for (int first = 0; first < rowCount; first += rowsPerBand) {
+			int count = Math.min(rowsPerBand, rowCount - first);
+			if (bands == Bands.ROWS) {
+				PpmImage.Row[] band = new PpmImage.Row[count];
+				for (int i = 0; i < count; i++) {
+					band[i] = image.getRowAt(first + i);
+				}
+				PipelineWork work = new PipelineWork(band, first, 0, rowCount);
+				work.process(PIPELINE);
+				System.arraycopy(work.rows, 0, rows, first, count);
+			} else {
+				PipelineWork work = pool.acquire(first, 0, rowCount, count, columnCount);
+				System.arraycopy(image.intBitsArray(), first * columnCount, work.pixels, 0, count * columnCount);
+				work.process(PIPELINE);
+				work.copyPixelsTo(pixels);
+				work.recycle();
+			}
+		}
+		return bands == Bands.ROWS ? rows : pixels;
+	}
+}
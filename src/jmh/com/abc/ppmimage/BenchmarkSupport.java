@@ -0,0 +1,26 @@
+package com.abc.ppmimage;
+
+// the slow factor is a static final read when PpmImage is initialized, so a benchmark sets it in its trial setup,
+// before anything touches PpmImage; JMH runs every parameter combination in a fork of its own, so each one gets
+// to set it; the same goes for silencing the pipeline threads' starting/finished lines
+final class BenchmarkSupport {
+	private BenchmarkSupport() {
+	}
+
+	static void useSlowFactor(int slowFactor) {
+		System.setProperty(PpmImage.SLOW_FACTOR_PROPERTY, Integer.toString(slowFactor));
+		if (PpmImage.getSlowFactor() != slowFactor) {
+			throw new IllegalStateException("PpmImage was initialized with slow factor " + PpmImage.getSlowFactor() +
+				" before " + slowFactor + " could be set, run the benchmark forked");
+		}
+	}
+
+	// no console output (under ThreadTools' lock) from the threads every executePipeline call starts
+	static void silencePipelineThreads() {
+		System.setProperty(ThreadLog.QUIET_PROPERTY, "true");
+		if (!ThreadLog.isQuiet()) {
+			throw new IllegalStateException("ThreadLog was initialized before its output could be silenced, run the " +
+				"benchmark forked");
+		}
+	}
+}
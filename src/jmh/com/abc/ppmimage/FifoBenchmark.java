@@ -0,0 +1,89 @@
+package com.abc.ppmimage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// hands ITEM_COUNT items from the producers to the consumers through one fifo per invocation; the fifo is closed
+// once the producers are done, so no thread is left blocked on it between iterations the way it could be with
+// asymmetric @Group threads
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class FifoBenchmark {
+	private static final int ITEM_COUNT = 100_000;
+
+	// MONITOR is the CircularArrayPPDeluxeBoundedFifo the pipeline started out with
+	@Param({ "MONITOR", "LOCK_FREE_MPMC" })
+	public PipelineFifo.Kind kind;
+
+	@Param({ "1", "2", "4" })
+	public int producerCount;
+
+	@Param({ "1", "2", "4" })
+	public int consumerCount;
+
+	@Param({ "4", "50" })
+	public int capacity;
+
+	private ExecutorService executor;
+	private PipelineWork item;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		executor = Executors.newFixedThreadPool(producerCount + consumerCount);
+		item = new PipelineWork(PpmImage.Row.createFromIntBits(new int[1]), 0, 0);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ITEM_COUNT)
+	public long transfer() throws Exception {
+		PipelineFifo<PipelineWork> fifo = PipelineFifo.create(kind, capacity, PipelineWork.class);
+
+		List<Future<Long>> consumers = new ArrayList<>();
+		for (int i = 0; i < consumerCount; i++) {
+			consumers.add(executor.submit(() -> {
+				long removed = 0;
+				while (fifo.remove().getStatus() == PipelineFifo.RemoveStatus.SUCCESS) {
+					removed++;
+				}
+				return removed;
+			}));
+		}
+
+		List<Future<?>> producers = new ArrayList<>();
+		for (int i = 0; i < producerCount; i++) {
+			int itemCount = ITEM_COUNT / producerCount + (i < ITEM_COUNT % producerCount ? 1 : 0);
+			producers.add(executor.submit(() -> {
+				for (int j = 0; j < itemCount; j++) {
+					fifo.add(item);
+				}
+				return null;
+			}));
+		}
+		for (Future<?> producer : producers) {
+			producer.get();
+		}
+		fifo.indicateNoMoreAddsAllowed();
+
+		long removed = 0;
+		for (Future<Long> consumer : consumers) {
+			removed += consumer.get();
+		}
+		if (removed != ITEM_COUNT) throw new IllegalStateException("removed " + removed + " of " + ITEM_COUNT);
+		return removed;
+	}
+}
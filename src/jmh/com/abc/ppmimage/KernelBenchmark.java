@@ -0,0 +1,55 @@
+package com.abc.ppmimage;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// the per-row and per-pixel work of the pipeline stages in isolation
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class KernelBenchmark {
+	@Param({ "1", "250" })
+	public int slowFactor;
+
+	@Param({ "256", "4096" })
+	public int columnCount;
+
+	private PpmImage.Row row;
+	private PpmImage.Pixel[] pixels;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		BenchmarkSupport.useSlowFactor(slowFactor);
+		Random random = new Random(42);
+		int[] intBits = new int[columnCount];
+		for (int i = 0; i < intBits.length; i++) {
+			intBits[i] = random.nextInt(1 << 24);
+		}
+		row = PpmImage.Row.createFromIntBits(intBits);
+		pixels = row.getPixels();
+	}
+
+	@Benchmark
+	public PpmImage.Row flipRow() {
+		return row.asRowFlippedHorizontally();
+	}
+
+	@Benchmark
+	public PpmImage.Row grayscaleRow() {
+		return row.asRowGrayscaled();
+	}
+
+	// Pixel.asGrayscale over a row's worth of pixels, so it compares directly to grayscaleRow
+	@Benchmark
+	public void grayscalePixels(Blackhole blackhole) {
+		for (PpmImage.Pixel pixel : pixels) {
+			blackhole.consume(pixel.asGrayscale());
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package com.abc.ppmimage;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// executePipeline end to end, images in memory, so no I/O is measured
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+	// rows x columns of each of the two synthetic images
+	@Param({ "300x400", "1200x1600" })
+	public String imageSize;
+
+	@Param({ "1", "2", "4" })
+	public int workersPerStage;
+
+	@Param({ "4", "50" })
+	public int fifoSize;
+
+	@Param({ "1", "250" })
+	public int slowFactor;
+
+	private PpmImage[] images;
+	private PipelineStage[] pipeline;
+	private PipelineConfig config;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		BenchmarkSupport.useSlowFactor(slowFactor);
+		BenchmarkSupport.silencePipelineThreads();
+		String[] size = imageSize.split("x");
+		int rowCount = Integer.parseInt(size[0]);
+		int columnCount = Integer.parseInt(size[1]);
+		images = new PpmImage[] {
+			PpmImageDemo.createSyntheticImage(rowCount, columnCount),
+			PpmImageDemo.createSyntheticImage(rowCount, columnCount)
+		};
+		pipeline = new PipelineStage[] { PipelineStage.FLIP_HORIZONTALLY, PipelineStage.GRAYSCALE };
+		config = new PipelineConfig().setWorkersPerStage(workersPerStage).setFifoSize(fifoSize);
+	}
+
+	@Benchmark
+	public PpmImage[] executePipeline() throws InterruptedException {
+		return PpmImageDemo.executePipeline(images, pipeline, config);
+	}
+}